@@ -3,22 +3,29 @@ package argus.tools.eclipse.contribution.weaving.jdt.jcompiler;
 import java.io.File;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
-import static java.util.Arrays.asList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.eclipse.core.resources.IFile;
 import org.eclipse.core.resources.IProject;
 import org.eclipse.core.resources.IResourceDelta;
 import org.eclipse.core.resources.IWorkspaceRoot;
 import org.eclipse.core.resources.ResourcesPlugin;
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.Path;
 import org.eclipse.jdt.internal.core.builder.AbstractImageBuilder;
 import org.eclipse.jdt.internal.core.builder.JavaBuilder;
 import org.eclipse.jdt.internal.core.builder.SourceFile;
 
 /**
- * Class used to store java files to be compile per projects
+ * Class used to store java files to be compile per projects.<br>
+ * Projects are built concurrently, so the store is thread-safe. The files of a project
+ * are only kept for the duration of its build, between the two calls to
+ * {@link #setJavaSourceFilesToCompile(File[], IProject)}.
  */
 public class BuildManagerStore {
   
@@ -30,7 +37,12 @@ public class BuildManagerStore {
   /**
    * Project to java files to compile
    */
-  private Map<IProject, File[]> projectToJavaSourceFiles= new HashMap<IProject, File[]>();
+  private final ConcurrentMap<IProject, BuildScope> projectToJavaSourceFiles= new ConcurrentHashMap<IProject, BuildScope>();
+
+  /**
+   * The <code>javaBuilder</code> field of {@link AbstractImageBuilder}, looked up once.
+   */
+  private volatile Field javaBuilderField;
   
   private BuildManagerStore() {
   }
@@ -46,25 +58,14 @@ public class BuildManagerStore {
     }
     
     // no need to create a new resource delta if no files have to be added.
-    File[] files= projectToJavaSourceFiles.get(project);
-    if (files == null || files.length == 0) {
+    BuildScope scope= projectToJavaSourceFiles.get(project);
+    if (scope == null || scope.isEmpty()) {
       return delta;
     }
 
-    // create a new delta
+    // create a new delta, with the additional files
     ExpandableResourceDelta newDelta= ExpandableResourceDelta.duplicate(delta);
-    
-    // add the additional files
-    IWorkspaceRoot workspaceRoot = ResourcesPlugin.getWorkspace().getRoot();
-    for (File file: files) {
-      for (IFile resource: workspaceRoot.findFilesForLocationURI(file.toURI())) {
-        // filter only the resources on the right project, to support nested projects
-        if (resource.getProject() == project) {
-          newDelta.addChangedResource(resource);
-        }
-      }
-    }
-    
+    newDelta.addChangedResources(scope.resources());
     return newDelta;
   }
   
@@ -76,31 +77,34 @@ public class BuildManagerStore {
     if (files == null) {
       projectToJavaSourceFiles.remove(project);
     } else {
-      projectToJavaSourceFiles.put(project, files);
+      projectToJavaSourceFiles.put(project, new BuildScope(project, files));
     }
   }
 
   private IProject project(AbstractImageBuilder imageBuilder) {
-	Field[] fields = AbstractImageBuilder.class.getDeclaredFields();
-	Field javaBuilderField = null;
-	for (Field f: fields) {
-	  if ("javaBuilder".equals(f.getName())) {
-	    javaBuilderField = f;
-	    javaBuilderField.setAccessible(true);
-	  } 
-	}
-	JavaBuilder builder = null;
-	try {
-	  builder = (JavaBuilder)javaBuilderField.get(imageBuilder);
-	  if (builder == null) {
-	    throw new IllegalArgumentException("java builder of image builder is null");
-	  }
-	} catch(Exception e) {
-	  throw new IllegalArgumentException("image builder met problems with retrieving java builder", e);
-	}
+    JavaBuilder builder = null;
+    try {
+      builder = (JavaBuilder)javaBuilderField().get(imageBuilder);
+    } catch(Exception e) {
+      throw new IllegalArgumentException("image builder met problems with retrieving java builder", e);
+    }
+    if (builder == null) {
+      throw new IllegalArgumentException("java builder of image builder is null");
+    }
     return builder.getProject();
   }
 
+  private Field javaBuilderField() throws NoSuchFieldException {
+    Field field = javaBuilderField;
+    if (field == null) {
+      // benign race, all threads find the same field
+      field = AbstractImageBuilder.class.getDeclaredField("javaBuilder");
+      field.setAccessible(true);
+      javaBuilderField = field;
+    }
+    return field;
+  }
+
   /**
    * Defensively filters <code>SourceFile</code> of current project in given scope.<br/>
    * @param sources
@@ -108,15 +112,83 @@ public class BuildManagerStore {
    * @return these <code>SourceFile</code> which resources belong to current compilation scope
    */
   public List<SourceFile> filterProjectSources(List<SourceFile> sources, AbstractImageBuilder imageBuilder) {
-	List<SourceFile> sourcesToCompile = new ArrayList<SourceFile>();
-	File[] scopeProjectSources = projectToJavaSourceFiles.get(project(imageBuilder));
-	List<File> projectFiles = scopeProjectSources != null ? asList(scopeProjectSources) : new ArrayList<File>();
-	for (SourceFile source: sources) {
-	  File file = source.resource.getRawLocation().makeAbsolute().toFile();
-	  if (projectFiles.contains(file)) {
-		sourcesToCompile.add(source);
-	  }
-	}
-	return sourcesToCompile;
+    List<SourceFile> sourcesToCompile = new ArrayList<SourceFile>();
+    BuildScope scope = projectToJavaSourceFiles.get(project(imageBuilder));
+    if (scope == null) {
+      return sourcesToCompile;
+    }
+    for (SourceFile source: sources) {
+      File file = source.resource.getRawLocation().makeAbsolute().toFile();
+      if (scope.contains(file)) {
+        sourcesToCompile.add(source);
+      }
+    }
+    return sourcesToCompile;
+  }
+
+  /**
+   * The java files to compile during one build of a project: their locations in a hash set,
+   * and the corresponding workspace files, resolved once.
+   */
+  private static class BuildScope {
+    private final IProject project;
+    private final Set<File> files;
+    private volatile List<IFile> resources;
+
+    BuildScope(IProject project, File[] files) {
+      this.project= project;
+      this.files= new HashSet<File>(files.length * 4 / 3 + 1);
+      for (File file: files) {
+        this.files.add(file.getAbsoluteFile());
+      }
+    }
+
+    boolean isEmpty() {
+      return files.isEmpty();
+    }
+
+    boolean contains(File file) {
+      return files.contains(file);
+    }
+
+    /**
+     * The workspace files of this project for the java files.
+     */
+    List<IFile> resources() {
+      List<IFile> result= resources;
+      if (result == null) {
+        result= Collections.unmodifiableList(resolve());
+        resources= result;
+      }
+      return result;
+    }
+
+    private List<IFile> resolve() {
+      List<IFile> result= new ArrayList<IFile>(files.size());
+      IPath projectLocation= project.getLocation();
+      IWorkspaceRoot workspaceRoot= null;
+      for (File file: files) {
+        IPath location= Path.fromOSString(file.getPath());
+        if (projectLocation != null && projectLocation.isPrefixOf(location)) {
+          // the common case, resolved without searching the workspace
+          IFile resource= project.getFile(location.removeFirstSegments(projectLocation.segmentCount()).setDevice(null));
+          if (resource.exists()) {
+            result.add(resource);
+            continue;
+          }
+        }
+        // linked resources
+        if (workspaceRoot == null) {
+          workspaceRoot= ResourcesPlugin.getWorkspace().getRoot();
+        }
+        for (IFile resource: workspaceRoot.findFilesForLocationURI(file.toURI())) {
+          // filter only the resources on the right project, to support nested projects
+          if (resource.getProject() == project) {
+            result.add(resource);
+          }
+        }
+      }
+      return result;
+    }
   }
 }
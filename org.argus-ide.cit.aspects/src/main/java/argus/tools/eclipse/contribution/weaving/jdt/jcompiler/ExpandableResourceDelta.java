@@ -1,7 +1,10 @@
 package argus.tools.eclipse.contribution.weaving.jdt.jcompiler;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.eclipse.core.resources.IContainer;
 import org.eclipse.core.resources.IMarkerDelta;
@@ -31,6 +34,11 @@ public class ExpandableResourceDelta extends PlatformObject implements IResource
    * The children of this resource delta.
    */
   private List<ExpandableResourceDelta> children= new ArrayList<ExpandableResourceDelta>();
+
+  /**
+   * The same children, by resource, to find a child without going through all of them.
+   */
+  private Map<IResource, ExpandableResourceDelta> childrenByResource= new HashMap<IResource, ExpandableResourceDelta>();
   
   /**
    * A resource. If it is set, this resource delta is content change for this resource.
@@ -223,6 +231,16 @@ public class ExpandableResourceDelta extends PlatformObject implements IResource
   public void addChangedResource(IResource changedResource) {
     getOrAddResourceForChange(changedResource);
   }
+
+  /**
+   * Add the given resources in this resource delta, as content change nodes.
+   * @see #addChangedResource(IResource)
+   */
+  public void addChangedResources(Collection<? extends IResource> changedResources) {
+    for (IResource changedResource: changedResources) {
+      getOrAddResourceForChange(changedResource);
+    }
+  }
   
   /**
    * Return the node for a given resource. If it doesn't exist yet, create it, and its parent if required.<br>
@@ -245,25 +263,29 @@ public class ExpandableResourceDelta extends PlatformObject implements IResource
     ExpandableResourceDelta parentResourceDelta= getOrAddResourceForChange(newResource.getParent());
     
     // check if one of the existing siblings is actually the node for the given resource
-    for (ExpandableResourceDelta childResourceDelta: parentResourceDelta.children) {
-      if (childResourceDelta.getResource().equals(newResource)) {
-        return childResourceDelta;
-      }
+    ExpandableResourceDelta childResourceDelta= parentResourceDelta.childrenByResource.get(newResource);
+    if (childResourceDelta != null) {
+      return childResourceDelta;
     }
     
     // if it doesn't exist, create the node and adds it to its parent
     ExpandableResourceDelta newResourceDelta= new ExpandableResourceDelta(newResource);
-    parentResourceDelta.children.add(newResourceDelta);
+    parentResourceDelta.addChild(newResourceDelta);
     return newResourceDelta;
   }
 
+  private void addChild(ExpandableResourceDelta child) {
+    children.add(child);
+    childrenByResource.put(child.getResource(), child);
+  }
+
   /**
    * Duplicate a resource delta by wrapping the root node and duplicating its children.
    */
   public static ExpandableResourceDelta duplicate(IResourceDelta original) {
     ExpandableResourceDelta newDelta = new ExpandableResourceDelta(original);
     for (IResourceDelta child: original.getAffectedChildren(ALL_WITH_PHANTOMS, IContainer.INCLUDE_HIDDEN | IContainer.INCLUDE_PHANTOMS | IContainer.INCLUDE_TEAM_PRIVATE_MEMBERS)) {
-      newDelta.children.add(duplicate(child));
+      newDelta.addChild(duplicate(child));
     }
     return newDelta;
   }
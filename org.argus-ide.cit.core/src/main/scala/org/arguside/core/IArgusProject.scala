@@ -122,6 +122,9 @@ trait IArgusProject extends Publisher[IArgusProjectEvent] {
 
   /** Return all source files in the source path. It only returns buildable files (meaning
    *  Java or pilar sources).
+   *
+   *  The files are indexed once and then maintained from resource deltas, so calling this
+   *  method does not walk the source folders.
    */
   def allSourceFiles(): Set[IFile]
 
@@ -131,6 +134,11 @@ trait IArgusProject extends Publisher[IArgusProjectEvent] {
    */
   def allFilesInSourceDirs(): Set[IFile]
 
+  /** Return `true` if the source path contains files that are not sources (resources),
+   *  and that have to be copied to the output folder.
+   */
+  def hasResourcesInSourceDirs(): Boolean
+
   /** Return the current project's preference store.
    *  @return A project-specific store if the project is set to use project-specific settings,
    *  a scoped preference store otherwise.
@@ -149,9 +157,9 @@ trait IArgusProject extends Publisher[IArgusProjectEvent] {
   def prepareBuild(): Boolean
 
   /**
-   * Builds the project.
+   * Builds the project. The `forced` sources are recompiled even if they didn't change.
    */
-  def build(addedOrUpdated: Set[IFile], removed: Set[IFile], monitor: SubMonitor): Unit
+  def build(addedOrUpdated: Set[IFile], removed: Set[IFile], forced: Set[IFile], monitor: SubMonitor): Unit
 
   /** Reset the presentation compiler of projects that depend on this one.
    *  This should be done after a successful build, since the output directory
@@ -2,6 +2,9 @@ package org.arguside.core.compiler
 
 import org.eclipse.jdt.core.compiler.IProblem
 import org.eclipse.core.resources.IFile
+import org.eclipse.core.runtime.IPath
+import java.util.concurrent.CancellationException
+import java.util.concurrent.TimeoutException
 import scala.concurrent.duration._
 import org.arguside.logging.HasLogger
 import org.eclipse.jdt.core.IJavaElement
@@ -42,14 +45,14 @@ import org.sireum.jawa.sjc.parser.JawaSymbol
  *    - dirty. Units that have changes that haven't been reloaded yet. This is usually a subset of `loaded` (excluding
  *             files that have been deleted or closed). A unit is added to the dirty set using `scheduleReload`, and removed
  *             when `flushScheduledReloads` is called (usually after the reconciliation timeout, 500ms). Dirty units are
- *             flushed automatically when calling various `ask` methods, so that completion and hyperlinking are always
- *             up-to-date
+ *             flushed automatically by the `ask` methods that load units. Queries (`askTypeAt`, `askLinkPos`) don't
+ *             wait for them: they are answered from the trees loaded last, and queue the flush behind them
  *    - crashed. A loaded unit that caused the jawa resolver to crash will be in this state. It won't be parsed
  *               nor type-checked anymore. To re-enable it, call `askToDoFirst`, which is usually called when an editor is
  *               open (meaning that when a file was closed and reopen it will be retried).
  *
  *  @note The self-type is necessary, since it changes the way calls to overridden ask methods are dispatched. Without the self-type
- *        they would go to the `CompilerControl` implementation, missing the overrides that call `flushScheduledReloads`
+ *        they would go to the `CompilerControl` implementation, missing the overrides that reload the dirty units
  */
 trait IJawaPresentationCompiler extends Global { self: JawaPresentationCompiler =>
   import IJawaPresentationCompiler._
@@ -108,9 +111,25 @@ trait IJawaPresentationCompiler extends Global { self: JawaPresentationCompiler
    *  This operation might interrupt background type-checking and take precedence. It
    *  is important that such operations are fast, or otherwise they will 'starve' any
    *  job waiting for a full type-check.
+   *
+   *  This is the same as `submit(Interactive)(op)`.
    */
   def asyncExec[A](op: => A): Response[A]
 
+  /** Asks for a computation to be done on the presentation compiler thread, after the pending
+   *  requests of a higher class.
+   *
+   *  @param requestClass The class of the request. `Interactive` requests run before `Reconcile`
+   *                      ones, which run before `Background` ones.
+   *  @param supersedes   If defined, the pending request submitted with the same key is cancelled.
+   *                      Use a key naming the unit and the kind of work, e.g. `("highlight", file)`.
+   *  @param timeout      If the request doesn't start within this time, it is dropped.
+   *
+   *  @return A response completed with the result of `op`, or with a `CancellationException`
+   *          (superseded request) or a `TimeoutException` (missed deadline).
+   */
+  def submit[A](requestClass: RequestClass, supersedes: Option[Any] = None, timeout: Duration = Duration.Inf)(op: => A): Response[A]
+
   /** Ask a fresh type-checking round on all loaded compilation units. */
   def askReloadManagedUnits(): Unit
 
@@ -118,6 +137,9 @@ trait IJawaPresentationCompiler extends Global { self: JawaPresentationCompiler
    *
    *  Unlike `askReloadManagedUnits`, this one causes a reload of only units that have
    *  changes that were not yet re-type-checked.
+   *
+   *  It does not wait for the reload to complete. Loading requests issued afterwards see the
+   *  reloaded units, while queries (`askTypeAt`, `askLinkPos`) run first, on the trees loaded last.
    */
   def flushScheduledReloads(): Response[Unit]
 
@@ -136,6 +158,17 @@ trait IJawaPresentationCompiler extends Global { self: JawaPresentationCompiler
   /** Atomically load a list of units in the current presentation compiler. */
   def askReload(units: List[InteractiveCompilationUnit]): Response[Unit]
 
+  /** Load a list of units, deferring the ones whose contents are unchanged since a compiler of
+   *  this project last reported their problems. Those report the cached problems until they
+   *  are edited or queried.
+   */
+  def askWarmReload(units: List[InteractiveCompilationUnit]): Response[Unit]
+
+  /** Prepare, in the background, the units that `icu` refers to, so that navigating to them
+   *  is fast. Usually called when `icu` is opened in an editor.
+   */
+  def askPrefetchRelated(icu: InteractiveCompilationUnit): Unit
+
   /** Stop compiling the given unit. Usually called when the user
    *  closed an editor.
    */
@@ -146,10 +179,16 @@ trait IJawaPresentationCompiler extends Global { self: JawaPresentationCompiler
    *
    *  This is usually called when files changed on disk and the associated compiler
    *  symbols need to be refreshed. For example, a git checkout will trigger
-   *  such a call.
+   *  such a call. It doesn't wait for the files to be refreshed.
    */
   def refreshChangedFiles(files: List[IFile]): Unit
 
+  /** Tell the presentation compiler that the folders at `paths` (source folders or packages)
+   *  were removed from the sources of the project. The units under them that are no longer
+   *  sources are dropped, everything else stays loaded.
+   */
+  def sourcesRemoved(paths: List[IPath]): Unit
+
   /** Return the compilation errors for the given unit. It will block until the
    *  type-checker finishes (but subsequent calls are fast once the type-checker finished).
    *
@@ -206,6 +245,18 @@ object IJawaPresentationCompiler extends HasLogger {
   /** The maximum time to wait for an `askOption` call to finish. */
   final val AskTimeout: Duration = 10000.millis
 
+  /** The classes of requests made to the presentation compiler, by decreasing priority. */
+  sealed abstract class RequestClass(val rank: Int)
+
+  /** Requests a user is waiting for, such as hyperlinks and hovers. */
+  case object Interactive extends RequestClass(0)
+
+  /** Requests that update the editor after an edit. */
+  case object Reconcile extends RequestClass(1)
+
+  /** Requests nobody is waiting for right now, such as indexing and semantic highlighting. */
+  case object Background extends RequestClass(2)
+
   /** Convenience method for creating a Response */
   def withResponse[A](op: Response[A] => Any): Response[A] = {
     val response = new Response[A]
@@ -261,6 +312,14 @@ object IJawaPresentationCompiler extends HasLogger {
                 }
                 None
 
+              case Right(c: CancellationException) =>
+                logger.debug("Cancelled request: " + c.getMessage)
+                None
+
+              case Right(t: TimeoutException) =>
+                logger.info("Dropped request: " + t.getMessage)
+                None
+
               case Right(m: MissingResponse) =>
                 logger.info("MissingResponse in ask. Called from: ", m)
                 None
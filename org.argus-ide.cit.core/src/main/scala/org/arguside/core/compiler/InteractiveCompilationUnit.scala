@@ -10,6 +10,7 @@ import org.sireum.jawa.io.AbstractFile
 import org.sireum.jawa.io.SourceFile
 import org.sireum.jawa.io.FgSourceFile
 import org.arguside.core.internal.ArgusPlugin
+import org.arguside.util.internal.ContentHash
 
 /** This trait represents a possibly translated Scala source. In the default case,
  *  the original and Scala sources and positions are the same.
@@ -49,6 +50,9 @@ trait ISourceMap {
    *  if this is a batch file or a script/other kind of source file.
    */
   def sourceFile: SourceFile
+
+  /** The `ContentHash` of the translated source. */
+  def contentHash: Long = ContentHash(jawaSource)
 }
 
 object ISourceMap {
@@ -150,7 +154,7 @@ trait InteractiveCompilationUnit {
    *        reconciliation strategy.
    */
   def forceReconcile(): IList[JawaCompilationProblem] = {
-    argusProject.presentationCompiler(_.flushScheduledReloads())
+    argusProject.presentationCompiler(_.flushScheduledReloads().get)
     currentProblems()
   }
 
@@ -158,13 +162,18 @@ trait InteractiveCompilationUnit {
    *  be called before any other calls to {{{IScalaPresentationCompiler.scheduleReload}}}
    *
    *  This method is the entry-point to the managed units in the presentation compiler: it should perform an initial
-   *  askReload and add the unit to the managed set, so from now on `scheduleReload` can be used instead.
+   *  askReload and add the unit to the managed set, so from now on `scheduleReload` can be used instead. The reload
+   *  is deferred if the unit didn't change since the last session (see `askWarmReload`). The units this unit
+   *  refers to are prefetched in the background (see `askPrefetchRelated`).
    *
    *  This method should not block.
    */
   def initialReconcile(): Response[Unit] = {
     val reloaded = argusProject.presentationCompiler { compiler =>
-      compiler.askReload(this, sourceMap(getContents).sourceFile)
+      sourceMap(getContents)
+      val reloaded = compiler.askWarmReload(List(this))
+      compiler.askPrefetchRelated(this)
+      reloaded
     } getOrElse {
       val dummy = new Response[Unit]
       dummy.set(())
@@ -21,17 +21,19 @@ import org.eclipse.jdt.core.IJavaElement
 import org.eclipse.jdt.core.IJavaElementDelta
 import org.eclipse.jdt.core.ElementChangedEvent
 import org.arguside.core.internal.project.ArgusProject
+import org.arguside.core.internal.compiler.PresentationCompilerManager
 import org.arguside.util.Utils.WithAsInstanceOfOpt
 import org.eclipse.jdt.core.IJavaProject
 import org.arguside.logging.HasLogger
 import org.arguside.logging.PluginLogConfigurator
 import org.arguside.ui.internal.editor.JawaDocumentProvider
-import org.eclipse.jdt.core.ICompilationUnit
 import org.arguside.core.internal.jdt.model.JawaSourceFile
 import org.arguside.core.internal.jdt.model.JawaClassFile
 import org.arguside.ui.internal.diagnostic
 import org.arguside.core.internal.jdt.model.JawaCompilationUnit
 import org.eclipse.core.resources.IFile
+import org.eclipse.core.resources.IContainer
+import org.eclipse.core.resources.IResource
 
 object ArgusPlugin {
 
@@ -39,6 +41,11 @@ object ArgusPlugin {
 
   def apply(): ArgusPlugin = plugin
 
+  /** Above this many changed files in a project (e.g. a source folder of a big APK was added),
+   *  its presentation compiler is restarted on its next request instead of being told about
+   *  each file.
+   */
+  private final val MaxRefreshedFiles = 256
 }
 
 class ArgusPlugin extends IArgusPlugin with PluginLogConfigurator with IResourceChangeListener with IElementChangedListener with HasLogger {
@@ -74,11 +81,16 @@ class ArgusPlugin extends IArgusPlugin with PluginLogConfigurator with IResource
 
   override def stop(context: BundleContext) = {
     ResourcesPlugin.getWorkspace.removeResourceChangeListener(this)
+    PresentationCompilerManager.stop()
     for {
       iProject <- ResourcesPlugin.getWorkspace.getRoot.getProjects
       if iProject.isOpen
       argusProject <- asArgusProject(iProject)
-    } argusProject.projectSpecificStorage.save()
+    } {
+      argusProject.projectSpecificStorage.save()
+      // saves the problems of the loaded units, for the next session
+      argusProject.presentationCompiler.shutdown()
+    }
     super.stop(context)
     ArgusPlugin.plugin = null
   }
@@ -130,6 +142,12 @@ class ArgusPlugin extends IArgusPlugin with PluginLogConfigurator with IResource
         disposeProject(project)
       case _ =>
     }
+    // keep the source indexes of the known projects in sync
+    for {
+      delta <- Option(event.getDelta()).toSeq
+      projectDelta <- delta.getAffectedChildren
+      argusProject <- projects.synchronized { projects.get(projectDelta.getResource.getProject) }
+    } argusProject.resourcesChanged(projectDelta)
     (Option(event.getDelta()) foreach (_.accept(new IResourceDeltaVisitor() {
       override def visit(delta: IResourceDelta): Boolean = {
         // This is obtained at project opening or closing, meaning the 'openness' state changed
@@ -174,8 +192,11 @@ class ArgusPlugin extends IArgusPlugin with PluginLogConfigurator with IResource
     }
     // process deleted files
     val buff: MList[JawaSourceFile] = mlistEmpty
-    val changed: MList[ICompilationUnit] = mlistEmpty
-    val projectsToReset: MSet[ArgusProject] = msetEmpty
+    // Jawa files to enter in the presentation compilers (changed or added), and folders whose
+    // units should be dropped from them. The presentation compiler only knows the sources of its
+    // project, so these are the only changes it needs to hear about: loaded units are kept.
+    val changed: MList[IFile] = mlistEmpty
+    val removedFolders: MList[IJavaElement] = mlistEmpty
 
     def findRemovedSources(delta: IJavaElementDelta) {
       val isChanged = delta.getKind == CHANGED
@@ -197,28 +218,35 @@ class ArgusPlugin extends IArgusPlugin with PluginLogConfigurator with IResource
           true
 
         case PACKAGE_FRAGMENT_ROOT =>
-          val hasContentChanged = isRemoved || hasFlag(F_REMOVED_FROM_CLASSPATH | F_ADDED_TO_CLASSPATH | F_ARCHIVE_CONTENT_CHANGED)
-          if (hasContentChanged) {
-            logger.info("package fragment root changed (resetting presentation compiler): " + elem.getElementName())
-            asArgusProject(elem.getJavaProject().getProject).foreach(projectsToReset += _)
+          // archives are not read by the presentation compiler, their changes don't concern it
+          val isRemovedRoot = isRemoved || hasFlag(F_REMOVED_FROM_CLASSPATH)
+          val isAddedRoot = isAdded || hasFlag(F_ADDED_TO_CLASSPATH)
+          if (isRemovedRoot) {
+            logger.info("package fragment root removed: " + elem.getElementName())
+            removedFolders += elem
+          } else if (isAddedRoot) {
+            logger.info("package fragment root added: " + elem.getElementName())
+            changed ++= jawaFilesIn(elem.getResource, deep = true)
           }
-          !hasContentChanged
+          !(isRemovedRoot || isAddedRoot)
 
         case PACKAGE_FRAGMENT =>
-          val hasContentChanged = isAdded || isRemoved
-          if (hasContentChanged) {
-            logger.debug("package fragment added or removed: " + elem.getElementName())
-            asArgusProject(elem.getJavaProject().getProject).foreach(projectsToReset += _)
+          // sub-packages have their own deltas
+          if (isRemoved) {
+            logger.debug("package fragment removed: " + elem.getElementName())
+            removedFolders += elem
+          } else if (isAdded) {
+            logger.debug("package fragment added: " + elem.getElementName())
+            changed ++= jawaFilesIn(elem.getResource, deep = false)
           }
-          // stop recursion here, we need to reset the PC anyway
-          !hasContentChanged
+          !(isAdded || isRemoved)
 
         // TODO: the check should be done with isInstanceOf[JawaSourceFile]
         case COMPILATION_UNIT if isChanged && elem.getResource != null && (elem.getResource.getName.endsWith(PilarFileExtn) || elem.getResource.getName.endsWith(PilarFileExtnShort)) =>
           val hasContentChanged = hasFlag(IJavaElementDelta.F_CONTENT)
           if (hasContentChanged)
             // mark the changed Argus files to be refreshed in the presentation compiler if needed
-            changed += elem.asInstanceOf[ICompilationUnit]
+            changed += elem.getResource.asInstanceOf[IFile]
           false
 
         case COMPILATION_UNIT if elem.isInstanceOf[JawaSourceFile] && isRemoved =>
@@ -227,7 +255,7 @@ class ArgusPlugin extends IArgusPlugin with PluginLogConfigurator with IResource
 
         case COMPILATION_UNIT if isAdded =>
           logger.debug("added compilation unit " + elem.getElementName())
-          asArgusProject(elem.getJavaProject().getProject).foreach(projectsToReset += _)
+          changed ++= jawaFilesIn(elem.getResource, deep = false)
           false
 
         case _ =>
@@ -238,29 +266,52 @@ class ArgusPlugin extends IArgusPlugin with PluginLogConfigurator with IResource
         delta.getAffectedChildren foreach findRemovedSources
     }
     findRemovedSources(event.getDelta)
+    // drop the units of the removed folders from each project presentation compiler
+    if (removedFolders.nonEmpty) {
+      removedFolders.toList groupBy (_.getJavaProject.getProject) foreach {
+        case (project, folders) =>
+          asArgusProject(project) foreach { p =>
+            if (project.isOpen)
+              p.presentationCompiler(_.sourcesRemoved(folders.map(_.getPath)))
+          }
+      }
+    }
     // ask for the changed jawa files to be refreshed in each project presentation compiler if needed
     if (changed.nonEmpty) {
-      changed.toList groupBy (_.getJavaProject.getProject) foreach {
-        case (project, units) =>
+      changed.toList.distinct groupBy (_.getProject) foreach {
+        case (project, files) =>
           asArgusProject(project) foreach { p =>
-            if (project.isOpen && !projectsToReset(p)) {
-              p.presentationCompiler(_.refreshChangedFiles(units.map(_.getResource.asInstanceOf[IFile])))
+            if (project.isOpen) {
+              if (files.size > ArgusPlugin.MaxRefreshedFiles) p.presentationCompiler.askRestart()
+              else p.presentationCompiler(_.refreshChangedFiles(files))
             }
           }
       }
     }
-    projectsToReset.foreach(_.presentationCompiler.askRestart())
     if (buff.nonEmpty) {
       buff.toList groupBy (_.getJavaProject.getProject) foreach {
         case (project, srcs) =>
           asArgusProject(project) foreach { p =>
-            if (project.isOpen && !projectsToReset(p))
+            if (project.isOpen)
               p.presentationCompiler.internal (_.filesDeleted(srcs))
           }
       }
     }
   }
 
+  /** The Jawa files in `resource`, and in its sub-folders if `deep`. */
+  private def jawaFilesIn(resource: IResource, deep: Boolean): IList[IFile] = resource match {
+    case file: IFile if file.getName.endsWith(PilarFileExtn) || file.getName.endsWith(PilarFileExtnShort) =>
+      List(file)
+    case container: IContainer if container.isAccessible =>
+      container.members.toList flatMap {
+        case file: IFile => jawaFilesIn(file, deep)
+        case folder: IContainer if deep => jawaFilesIn(folder, deep)
+        case _ => Nil
+      }
+    case _ => Nil
+  }
+
   def logError(message: String, exception: Throwable): Unit = {
     logger.error(if(message == null) "" else message, exception)
   }
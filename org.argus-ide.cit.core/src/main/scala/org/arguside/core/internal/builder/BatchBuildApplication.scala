@@ -0,0 +1,306 @@
+package org.arguside.core.internal.builder
+
+import java.io.File
+import java.io.FileOutputStream
+import java.io.OutputStreamWriter
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import scala.util.control.NonFatal
+import org.eclipse.core.resources.IMarker
+import org.eclipse.core.resources.IProject
+import org.eclipse.core.resources.IWorkspace
+import org.eclipse.core.resources.IWorkspaceRunnable
+import org.eclipse.core.resources.ResourcesPlugin
+import org.eclipse.core.runtime.IProgressMonitor
+import org.eclipse.core.runtime.NullProgressMonitor
+import org.eclipse.core.runtime.Path
+import org.eclipse.core.runtime.SubMonitor
+import org.eclipse.equinox.app.IApplication
+import org.eclipse.equinox.app.IApplicationContext
+import org.eclipse.jdt.core.IClasspathEntry
+import org.eclipse.jdt.core.JavaCore
+import org.eclipse.jdt.launching.JavaRuntime
+import org.arguside.core.internal.ArgusPlugin
+import org.arguside.core.internal.builder.jawa.BuildProblem
+import org.arguside.core.internal.builder.jawa.EclipseJawaBuildManager
+import org.arguside.core.internal.project.Nature
+import org.arguside.logging.HasLogger
+import org.arguside.util.eclipse.FileUtils
+import org.sireum.amandroid.decompile.ApkDecompiler
+import org.sireum.util._
+
+/** Imports, decompiles and builds many APKs without a workbench, e.g. on a CI server.
+ *
+ *  {{{
+ *  eclipse -nosplash -application org.argus-ide.cit.core.batchbuild
+ *      -apks <apk file or directory>... -out <directory> [-workers <n>] [-report <file>]
+ *  }}}
+ *
+ *  Each APK is decompiled in its own project under `-out`, and built with an
+ *  `EclipseJawaBuildManager`. Projects are processed by `-workers` threads (by default,
+ *  one per core), each holding the scheduling rule of its own project only. The cores
+ *  that are left are given to the parallel compilation of each project.
+ *
+ *  A project that already exists in the workspace is not decompiled again, and only
+ *  its changed sources are rebuilt.
+ *
+ *  Projects are named after their APK. When two APKs have the same name, their projects
+ *  get a suffix derived from the path of the APK, so that they don't overwrite each other.
+ *
+ *  The report is a JSON array with, for each APK, the time spent in each phase and
+ *  the errors and warnings reported by the compiler. The application exits with 0 if all projects built
+ *  without errors, and 1 otherwise.
+ */
+class BatchBuildApplication extends IApplication with HasLogger {
+  import BatchBuildApplication._
+
+  @volatile private var cancelled = false
+
+  override def start(context: IApplicationContext): AnyRef = {
+    val args = context.getArguments.get(IApplicationContext.APPLICATION_ARGS).asInstanceOf[Array[String]]
+    parseArguments(args.toList) match {
+      case Left(error) =>
+        System.err.println(error)
+        System.err.println(Usage)
+        ExitFailure
+
+      case Right(options) =>
+        val results = withoutAutoBuild(buildAll(options))
+        writeReport(options.report, results)
+        ResourcesPlugin.getWorkspace.save(true, null)
+        if (results.forall(_.status == Status.Ok)) IApplication.EXIT_OK else ExitFailure
+    }
+  }
+
+  override def stop(): Unit = cancelled = true
+
+  private def buildAll(options: Options): IList[ProjectResult] = {
+    val cores = Runtime.getRuntime.availableProcessors
+    val compileWorkers = (cores / options.workers) max 1
+    logger.info(s"Building ${options.apks.size} APK(s) with ${options.workers} worker(s), ${compileWorkers} compiler thread(s) each")
+
+    val names = projectNames(options.apks)
+    val pool = Executors.newFixedThreadPool(options.workers)
+    try {
+      val futures = options.apks map { apk =>
+        pool.submit(new Callable[ProjectResult] {
+          def call(): ProjectResult = process(apk, names(apk), options.outputDir, compileWorkers)
+        })
+      }
+      futures.map(_.get)
+    } finally {
+      pool.shutdownNow()
+      pool.awaitTermination(1, TimeUnit.MINUTES)
+    }
+  }
+
+  private def process(apk: File, name: String, outputDir: File, compileWorkers: Int): ProjectResult = {
+    val result = new ProjectResult(apk, name)
+    val monitor = new NullProgressMonitor {
+      override def isCanceled: Boolean = cancelled
+    }
+    val workspace = ResourcesPlugin.getWorkspace
+    val project = workspace.getRoot.getProject(name)
+
+    try {
+      if (!project.exists) {
+        val location = new File(outputDir, name)
+        val srcFolders = result.time((r, ms) => r.decompileMs = ms) {
+          ApkDecompiler.decompile(apk, location, None, false, false, true, true, createFolder = false)._2
+        }
+        // creating a project needs the workspace root rule, so imports are serialized
+        result.time((r, ms) => r.importMs = ms) {
+          workspace.run(new IWorkspaceRunnable {
+            def run(monitor: IProgressMonitor): Unit = createProject(project, location, srcFolders, monitor)
+          }, workspace.getRuleFactory.createRule(project), IWorkspace.AVOID_UPDATE, monitor)
+        }
+      } else if (!project.isOpen)
+        project.open(monitor)
+
+      // the build only holds the rule of this project, so
+      // several projects are built at the same time
+      workspace.run(new IWorkspaceRunnable {
+        def run(monitor: IProgressMonitor): Unit = {
+          val argusProject = ArgusPlugin().getArgusProject(project)
+          val sources = argusProject.allSourceFiles
+          result.sourceFiles = sources.size
+
+          val buildManager = new EclipseJawaBuildManager(argusProject, compileWorkers = Some(compileWorkers))
+          result.time((r, ms) => r.buildMs = ms) {
+            buildManager.build(sources, Set.empty, Set.empty, SubMonitor.convert(monitor))
+          }
+
+          // the compiler problems are not turned into markers, they are kept by the build manager
+          result.problems = buildManager.problems
+          result.status = if (buildManager.hasErrors || result.errors > 0) Status.Errors else Status.Ok
+        }
+      }, project, IWorkspace.AVOID_UPDATE, monitor)
+    } catch {
+      case NonFatal(e) =>
+        eclipseLog.error(s"Could not build $apk", e)
+        result.status = Status.Failed
+        result.message = String.valueOf(e.getMessage)
+    }
+    logger.info(s"${result.name}: ${result.status} (${result.decompileMs + result.importMs + result.buildMs}ms)")
+    result
+  }
+
+  /** A Java project with the Argus nature, whose source folders are the decompiled ones. */
+  private def createProject(project: IProject, location: File, srcFolders: ISet[String], monitor: IProgressMonitor): Unit = {
+    val workspace = ResourcesPlugin.getWorkspace
+    val description = workspace.newProjectDescription(project.getName)
+    if (location.getParentFile.getAbsoluteFile != workspace.getRoot.getLocation.toFile.getAbsoluteFile)
+      description.setLocation(new Path(location.getAbsolutePath))
+    project.create(description, monitor)
+    project.open(monitor)
+    Nature.setupProjectNatures(project, monitor, /* addAndroidNature */ false)
+
+    val javaProject = JavaCore.create(project)
+    val entries: IList[IClasspathEntry] =
+      srcFolders.toList.sorted.map(folder => JavaCore.newSourceEntry(project.getFolder(folder).getFullPath)) :+
+        JavaRuntime.getDefaultJREContainerEntry
+    val output = project.getFolder(OutputFolder)
+    FileUtils.createParentFolders(output)
+    javaProject.setRawClasspath(entries.toArray, output.getFullPath, monitor)
+  }
+
+  /** The builders of the workspace would build the new projects a second time. */
+  private def withoutAutoBuild[T](body: => T): T = {
+    val workspace = ResourcesPlugin.getWorkspace
+    val description = workspace.getDescription
+    val autoBuilding = description.isAutoBuilding
+    description.setAutoBuilding(false)
+    workspace.setDescription(description)
+    try body
+    finally {
+      description.setAutoBuilding(autoBuilding)
+      workspace.setDescription(description)
+    }
+  }
+
+  private def writeReport(report: File, results: IList[ProjectResult]): Unit = {
+    Option(report.getAbsoluteFile.getParentFile) foreach (_.mkdirs())
+    val out = new OutputStreamWriter(new FileOutputStream(report), StandardCharsets.UTF_8)
+    try out.write(results.map(_.toJson).mkString("[\n  ", ",\n  ", "\n]\n"))
+    finally out.close()
+    logger.info(s"Wrote the batch build report to $report")
+  }
+}
+
+object BatchBuildApplication {
+  private final val ExitFailure = Integer.valueOf(1)
+  private final val OutputFolder = "bin/classes"
+
+  private final val Usage =
+    "Usage: -apks <apk file or directory>... -out <directory> [-workers <n>] [-report <file>]"
+
+  private[builder] case class Options(apks: IList[File], outputDir: File, workers: Int, report: File)
+
+  private[builder] def parseArguments(args: IList[String]): Either[String, Options] = {
+    def loop(args: IList[String], apks: IList[File], out: Option[File], workers: Option[Int], report: Option[File]): Either[String, Options] =
+      args match {
+        case "-apks" :: rest =>
+          val (paths, next) = rest.span(!_.startsWith("-"))
+          loop(next, apks ++ paths.flatMap(p => apkFiles(new File(p))), out, workers, report)
+        case "-out" :: dir :: rest =>
+          loop(rest, apks, Some(new File(dir)), workers, report)
+        case "-workers" :: n :: rest =>
+          try loop(rest, apks, out, Some(n.toInt max 1), report)
+          catch { case _: NumberFormatException => Left(s"Invalid number of workers: $n") }
+        case "-report" :: file :: rest =>
+          loop(rest, apks, out, workers, Some(new File(file)))
+        case unknown :: _ =>
+          Left(s"Unknown argument: $unknown")
+        case Nil =>
+          if (apks.isEmpty) Left("No APK to build")
+          else out match {
+            case None => Left("Missing output directory")
+            case Some(dir) =>
+              Right(Options(apks.distinct, dir, workers.getOrElse(Runtime.getRuntime.availableProcessors),
+                report.getOrElse(new File(dir, "build-report.json"))))
+          }
+      }
+    loop(args, Nil, None, None, None)
+  }
+
+  /** The project of each APK, named after it, and disambiguated by the hash of its path when
+   *  other APKs have the same name. The names are stable across runs.
+   */
+  private[builder] def projectNames(apks: IList[File]): Map[File, String] = {
+    def baseName(apk: File) = apk.getName.stripSuffix(".apk")
+    apks.groupBy(baseName).flatMap {
+      case (name, List(apk)) => List(apk -> name)
+      case (name, sameName) =>
+        sameName map (apk => apk -> "%s_%08x".format(name, apk.getAbsolutePath.hashCode))
+    }
+  }
+
+  private def apkFiles(path: File): IList[File] =
+    if (path.isDirectory) path.listFiles.toList.filter(_.getName.endsWith(".apk")).sortBy(_.getName)
+    else List(path)
+
+  private[builder] object Status extends Enumeration {
+    val Ok = Value("ok")
+    val Errors = Value("errors")
+    val Failed = Value("failed")
+  }
+
+  /** The outcome of one APK, filled in as it goes through the phases. */
+  private[builder] class ProjectResult(val apk: File, val name: String) {
+    @volatile var status = Status.Failed
+    @volatile var message = ""
+    @volatile var decompileMs = 0L
+    @volatile var importMs = 0L
+    @volatile var buildMs = 0L
+    @volatile var sourceFiles = 0
+    @volatile var problems: IList[BuildProblem] = Nil
+
+    def errors: Int = problems.count(_.severity == IMarker.SEVERITY_ERROR)
+    def warnings: Int = problems.count(_.severity == IMarker.SEVERITY_WARNING)
+
+    def time[T](record: (ProjectResult, Long) => Unit)(body: => T): T = {
+      val start = System.nanoTime
+      try body
+      finally record(this, TimeUnit.NANOSECONDS.toMillis(System.nanoTime - start))
+    }
+
+    def toJson: String =
+      Seq(
+        "apk" -> quote(apk.getAbsolutePath),
+        "project" -> quote(name),
+        "status" -> quote(status.toString),
+        "decompileMs" -> decompileMs,
+        "importMs" -> importMs,
+        "buildMs" -> buildMs,
+        "sourceFiles" -> sourceFiles,
+        "errors" -> errors,
+        "warnings" -> warnings,
+        "problems" -> problems.map(problemJson).mkString("[", ", ", "]"),
+        "message" -> quote(message)).map { case (k, v) => s""""$k": $v""" }.mkString("{", ", ", "}")
+
+    private def problemJson(problem: BuildProblem): String = {
+      val severity = if (problem.severity == IMarker.SEVERITY_ERROR) "error" else "warning"
+      Seq(
+        "severity" -> quote(severity),
+        "file" -> quote(problem.path),
+        "line" -> problem.line,
+        "message" -> quote(problem.message)).map { case (k, v) => s""""$k": $v""" }.mkString("{", ", ", "}")
+    }
+  }
+
+  private def quote(s: String): String = {
+    val sb = new StringBuilder("\"")
+    s foreach {
+      case '"' => sb ++= "\\\""
+      case '\\' => sb ++= "\\\\"
+      case '\n' => sb ++= "\\n"
+      case '\r' => sb ++= "\\r"
+      case '\t' => sb ++= "\\t"
+      case c if c < ' ' => sb ++= "\\u%04x".format(c.toInt)
+      case c => sb += c
+    }
+    (sb += '"').toString
+  }
+}
@@ -2,6 +2,7 @@
 
 import org.eclipse.core.resources.IResource
 import org.eclipse.core.resources.IMarker
+import org.arguside.core.resources.MarkerBatch
 import org.arguside.core.resources.MarkerFactory
 import org.arguside.core.resources.MarkerFactory.Position
 import org.arguside.core.resources.MarkerFactory.NoPosition
@@ -16,10 +17,18 @@ object BuildProblemMarker extends MarkerFactory(CitConstants.ProblemMarkerId) {
   def create(project: IArgusProject, e: Throwable): Unit =
     create(project.underlying, "Error in Jawa compiler: " + e.getMessage)
 
+  /** Add a marker indicating an error state for the passed Argus `project` to `batch`. */
+  def create(batch: MarkerBatch, project: IArgusProject, e: Throwable): Unit =
+    create(batch, project.underlying, "Error in Jawa compiler: " + e.getMessage)
+
   /** Create a marker indicating an error state for the passed `resource`. */
   def create(resource: IResource, msg: String): Unit =
     create(resource, IMarker.SEVERITY_ERROR, msg)
 
+  /** Add a marker indicating an error state for the passed `resource` to `batch`. */
+  def create(batch: MarkerBatch, resource: IResource, msg: String): Unit =
+    create(batch, resource, IMarker.SEVERITY_ERROR, msg, NoPosition)
+
   /** Create marker with a source position in the Problem view.
    *  @param resource The resource to use to create the marker (hence, the marker will be associated to the passed resource)
    *  @param severity Indicates the marker's error state. Its value can be one of:
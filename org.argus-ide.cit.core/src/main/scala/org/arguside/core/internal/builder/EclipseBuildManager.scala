@@ -8,7 +8,10 @@ import org.eclipse.core.runtime.SubMonitor
  * Abstraction which exposes jawa compiler to eclipse.
  */
 trait EclipseBuildManager {
-  def build(addedOrUpdated: Set[IFile], removed: Set[IFile], monitor: SubMonitor): Unit
+  /** Build the changes of `addedOrUpdated` and `removed`. The `forced` sources are recompiled
+   *  even if their contents didn't change since they were last compiled.
+   */
+  def build(addedOrUpdated: Set[IFile], removed: Set[IFile], forced: Set[IFile], monitor: SubMonitor): Unit
 
   /** Has build errors? Only valid if the project has been built before. */
   @volatile protected var hasInternalErrors: Boolean = false
@@ -19,12 +22,33 @@ trait EclipseBuildManager {
   /** Can be used to clean an compiler's internal state. */
   def clean(implicit monitor: IProgressMonitor): Unit
 
+  /** Forget which sources are up to date, so the next build recompiles all of them.
+   *  Unlike `clean`, the output folders are kept.
+   */
+  def invalidate(): Unit = {}
+
   /** Says about a compilation result. */
   def hasErrors: Boolean = hasInternalErrors
 
   /** Says if underlying compiler is able to find out and add dependencies to build path. */
   def canTrackDependencies: Boolean
 
+  /** The source files depending on any of the given fully qualified class names.
+   *  Only meaningful if `canTrackDependencies` is `true`.
+   */
+  def dependentsOf(classNames: Set[String]): Set[IFile] = Set.empty
+
+  /** A fingerprint of the API of the project's sources, as of the last successful build.
+   *  Dependent projects only need to be rebuilt when it changes. `None` if the compiler
+   *  can't tell, in which case any change has to be considered an API change.
+   */
+  def apiFingerprint: Option[Long] = None
+
+  /** Does the compiler write its output through the workspace? If not, the
+   *  output folders have to be refreshed after each build.
+   */
+  def keepsOutputInSync: Boolean = false
+
   /** Gives back the latest dependencies analysis done by underlying compiler. */
 //  def latestAnalysis(incOptions: => IncOptions): Analysis
 }
@@ -25,11 +25,15 @@ import org.arguside.util.internal.SettingConverterUtil
 import org.arguside.ui.internal.preferences
 import org.arguside.core.CitConstants
 import org.arguside.core.IArgusPlugin
+import org.arguside.core.internal.ArgusPlugin
 
 class JawaBuilder extends IncrementalProjectBuilder with JDTBuilderFacade with HasLogger {
 
   override def project = getProject()
 
+  /** The API fingerprints of the dependencies, as seen by the last build of this project. */
+  private val dependencyFingerprints = scala.collection.mutable.Map.empty[IProject, Long]
+
   /** Lock only the current project during build. */
   override def getRule(kind: Int, args: java.util.Map[String, String]): ISchedulingRule =
     project
@@ -57,18 +61,24 @@ class JawaBuilder extends IncrementalProjectBuilder with JDTBuilderFacade with H
       return new Array[IProject](0)
     }
 
+    // the workspace listener updates the source index after the auto-build, so the files
+    // added or removed by the changes being built are applied to it first
+    Option(getDelta(this.project)) foreach (ArgusPlugin().getArgusProject(this.project).resourcesChanged(_))
+
     val allSourceFiles = project.allSourceFiles()
-    val allFilesInSourceDirs = project.allFilesInSourceDirs()
 
-    val needToCopyResources = allSourceFiles.size != allFilesInSourceDirs.size
+    val needToCopyResources = project.hasResourcesInSourceDirs()
 
-    val (addedOrUpdated, removed) = if (project.prepareBuild())
-      (allSourceFiles, Set.empty[IFile])
+    // `forced` sources are recompiled even if their contents didn't change
+    val (addedOrUpdated, removed, forced) = if (project.prepareBuild())
+      (allSourceFiles, Set.empty[IFile], Set.empty[IFile])
     else {
       kind match {
         case INCREMENTAL_BUILD | AUTO_BUILD =>
           val addedOrUpdated0 = new HashSet[IFile] ++ allSourceFiles.filter(FileUtils.hasBuildErrors(_))
           val removed0 = new HashSet[IFile]
+          // sources to recompile because of a change in a dependency, their own contents are unchanged
+          val forced0 = new HashSet[IFile]
 
           getDelta(project.underlying).accept(new IResourceDeltaVisitor {
             def visit(delta: IResourceDelta) = {
@@ -87,26 +97,35 @@ class JawaBuilder extends IncrementalProjectBuilder with JDTBuilderFacade with H
             }
           })
           if (project.buildManager.canTrackDependencies) {
-            def hasChanges(prj: IProject): Boolean = {
-              val delta = getDelta(prj)
-              delta == null || delta.getKind != IResourceDelta.NO_CHANGE
-            }
+            val dependencyDeltas = project.directDependencies.map(prj => (prj, getDelta(prj)))
 
-            if (project.directDependencies.exists(hasChanges)) {
-              // reset presentation compilers if a dependency has been rebuilt
-              logger.debug("Resetting presentation compiler for %s due to dependent project change".format(project.underlying.getName()))
+            if (dependencyDeltas.exists(_._2 == null)) {
+              // no delta for a dependency means we don't know what changed in it
+              logger.debug("Resetting presentation compiler for %s due to unknown dependent project state".format(project.underlying.getName()))
               project.presentationCompiler.askRestart()
+              forced0 ++= allSourceFiles
+            } else {
+              val changedDependencies = dependencyDeltas filter {
+                case (prj, delta) => delta.getKind != IResourceDelta.NO_CHANGE && hasApiChanged(prj)
+              }
+              val changedClasses = changedDependencies.flatMap {
+                case (prj, delta) => changedClassNames(prj, delta)
+              }.toSet
+
+              if (changedClasses.nonEmpty) {
+                // reset presentation compilers if a dependency has been rebuilt
+                logger.debug("Resetting presentation compiler for %s due to dependent project change".format(project.underlying.getName()))
+                project.presentationCompiler.askRestart()
 
-              // in theory need to be able to identify the exact dependencies
-              // but this is deeply rooted inside the sbt dependency tracking mechanism
-              // so we just tell it to have a look at all the files
-              // and it will figure out the exact changes during initialization
-              addedOrUpdated0 ++= allSourceFiles
+                // only the sources referring to a class file that changed in a dependency need to be recompiled
+                forced0 ++= project.buildManager.dependentsOf(changedClasses)
+              }
             }
           }
-          (Set.empty ++ addedOrUpdated0, Set.empty ++ removed0)
+          (Set.empty ++ addedOrUpdated0, Set.empty ++ removed0, Set.empty ++ forced0)
         case CLEAN_BUILD | FULL_BUILD =>
-          (allSourceFiles, Set.empty[IFile])
+          // e.g. the output folder was deleted, the unchanged sources have to be compiled too
+          (allSourceFiles, Set.empty[IFile], allSourceFiles)
       }
     }
 
@@ -114,8 +133,7 @@ class JawaBuilder extends IncrementalProjectBuilder with JDTBuilderFacade with H
     subMonitor.beginTask("Running Jawa Builder on " + project.underlying.getName, 100)
 
     logger.info("Building project " + project)
-    project.build(addedOrUpdated, removed, subMonitor)
-    TaskManager.updateTasks(project, addedOrUpdated)
+    project.build(addedOrUpdated, removed, forced, subMonitor)
 
     val depends = project.transitiveDependencies
 
@@ -137,6 +155,44 @@ class JawaBuilder extends IncrementalProjectBuilder with JDTBuilderFacade with H
       (Set.empty ++ depends ++ javaDepends).toArray
     }
   }
+
+  /** Has the API of `dependency` changed since this project last looked at it?
+   *  Dependencies which can't compute a fingerprint are always considered changed.
+   */
+  private def hasApiChanged(dependency: IProject): Boolean =
+    IArgusPlugin().asArgusProject(dependency).flatMap(_.buildManager.apiFingerprint) match {
+      case Some(fingerprint) =>
+        val changed = !dependencyFingerprints.get(dependency).contains(fingerprint)
+        dependencyFingerprints(dependency) = fingerprint
+        if (!changed)
+          logger.debug(s"API of ${dependency.getName} unchanged, ignoring its changes in ${project.getName}")
+        changed
+      case None =>
+        true
+    }
+
+  /** The fully qualified names of the class files added, changed or removed
+   *  in the output folders of `dependency`, according to `delta`.
+   */
+  private def changedClassNames(dependency: IProject, delta: IResourceDelta): Seq[String] = {
+    val outputFolders = IArgusPlugin().getArgusProject(dependency).outputFolders
+    val names = Seq.newBuilder[String]
+
+    delta.accept(new IResourceDeltaVisitor {
+      def visit(delta: IResourceDelta) = {
+        delta.getResource match {
+          case file: IFile if file.getName.endsWith(".class") =>
+            val path = file.getFullPath
+            outputFolders.find(_.isPrefixOf(path)) foreach { folder =>
+              names += path.makeRelativeTo(folder).removeFileExtension.toString.replace('/', '.')
+            }
+          case _ =>
+        }
+        true
+      }
+    })
+    names.result
+  }
 }
 
 object StateUtils extends ReflectionUtils {
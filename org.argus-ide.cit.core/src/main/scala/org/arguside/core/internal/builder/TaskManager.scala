@@ -1,80 +1,55 @@
 package org.arguside.core.internal.builder
 
-import java.io.InputStream
-import org.eclipse.core.internal.resources.ResourceException
 import org.eclipse.core.resources.IFile
 import org.eclipse.core.resources.IMarker
-import org.eclipse.core.resources.IResource
 import org.eclipse.jdt.core.IJavaModelMarker
 import org.eclipse.jdt.core.JavaCore
 import org.eclipse.jdt.core.compiler.IProblem
 import org.eclipse.jdt.internal.core.builder.JavaBuilder
 import org.arguside.core.IArgusProject
 import org.arguside.core.CitConstants
-import org.arguside.core.internal.jdt.model.JawaSourceFile
 import org.arguside.core.resources.EclipseResource
+import org.arguside.core.resources.MarkerBatch
+import org.sireum.jawa.io.FgSourceFile
 import org.sireum.jawa.io.Position
-import org.sireum.jawa.io.SourceFile
-import org.sireum.jawa.sjc.lexer.JawaLexer
-import org.sireum.jawa.DefaultReporter
 
 object TaskManager {
 
-  private case class Comment(msg: String, pos: Position)
+  /** A comment token, as produced by the lexer. */
+  case class Comment(offset: Int, text: String)
 
   /**
-   * Removes all task markers from this file.
+   * Replaces the tasks (`TODO`s and `FIXME`s) of `iFile` by the ones found in `comments`.
+   * The changes are recorded in `batch`, and made when it is applied.
+   *
+   * The comments are the ones the builder collected while lexing `contents`, so the
+   * file is neither read nor tokenized again.
    */
-  def clearTasks(file: IFile) = try {
-    file.deleteMarkers(CitConstants.TaskMarkerId, true, IResource.DEPTH_INFINITE)
-  } catch {
-    case _: ResourceException => // Ignore
-  }
-
-  /**
-   * Updates all tasks (`TODO`s and `FIXME`s) for given project in given files.
-   */
-  def updateTasks(project: IArgusProject, files: Set[IFile]): Unit = {
-    val taskScanner = new TaskScanner(project)
-
-    for {
-      iFile <- files
-      jawaFile <- JawaSourceFile.createFromPath(iFile.getFullPath.toOSString)
-      sourceFile = jawaFile.lastSourceMap().sourceFile
-      Comment(msg, pos) <- extractComments(sourceFile, iFile.getContents, iFile.getCharset)
-      if pos.isDefined
-      task <- taskScanner.extractTasks(msg, pos)
-      if task.pos.isDefined
-    } task.pos.source.file match {
-      case EclipseResource(file: IFile) => registerTask(file, task)
-      case _ => // ignore
-    }
-  }
-
-  private def extractComments(sourceFile: SourceFile, contentStream: InputStream, charset: String): Seq[Comment] = {
-    val contents = try {
-      scala.io.Source.fromInputStream(contentStream)(charset).mkString
-    } finally contentStream.close()
-
-    for {
-      token <- JawaLexer.rawTokenise(Left(contents), new DefaultReporter)
-      if (token.tokenType.isComment)
-    } yield {
-      val position = Position.range(sourceFile, token.offset, token.lastCharacterOffset - token.offset + 1)
-      Comment(token.text, position)
+  def updateTasks(batch: MarkerBatch, taskScanner: TaskScanner, iFile: IFile, contents: String, comments: Seq[Comment]): Unit = {
+    batch.reset(iFile, CitConstants.TaskMarkerId)
+    if (comments.nonEmpty) {
+      val sourceFile = new FgSourceFile(EclipseResource(iFile), contents.toCharArray)
+
+      for {
+        Comment(offset, text) <- comments
+        pos = Position.range(sourceFile, offset, text.length)
+        task <- taskScanner.extractTasks(text, pos)
+        if task.pos.isDefined
+      } task.pos.source.file match {
+        case EclipseResource(file: IFile) => batch.add(file, CitConstants.TaskMarkerId, taskAttributes(task))
+        case _ => // ignore
+      }
     }
   }
 
-  private def registerTask(file: IFile, task: TaskScanner.Task) = {
-    val marker = file.createMarker(CitConstants.TaskMarkerId)
-
+  private def taskAttributes(task: TaskScanner.Task): Map[String, AnyRef] = {
     val prioNum = task.priority match {
       case JavaCore.COMPILER_TASK_PRIORITY_HIGH => IMarker.PRIORITY_HIGH
       case JavaCore.COMPILER_TASK_PRIORITY_LOW => IMarker.PRIORITY_LOW
       case _ => IMarker.PRIORITY_NORMAL
     }
 
-    val attributes = Seq(
+    Map(
       IMarker.MESSAGE -> s"${task.tag} ${task.msg}",
       IMarker.PRIORITY -> Integer.valueOf(prioNum),
       IJavaModelMarker.ID -> Integer.valueOf(IProblem.Task),
@@ -83,9 +58,5 @@ object TaskManager {
       IMarker.LINE_NUMBER -> Integer.valueOf(task.pos.line),
       IMarker.USER_EDITABLE -> java.lang.Boolean.valueOf(false),
       IMarker.SOURCE_ID -> JavaBuilder.SOURCE_ID)
-
-    attributes.foreach {
-      case (key, value) => marker.setAttribute(key, value)
-    }
   }
 }
@@ -17,68 +17,150 @@ class TaskScanner(project : IArgusProject) {
     }
   }
 
-  lazy val taskTags = getJavaOptions(JavaCore.COMPILER_TASK_TAGS)
+  lazy val taskTags = getJavaOptions(JavaCore.COMPILER_TASK_TAGS).filter(_.nonEmpty)
   lazy val tagPriority = {
     val taskPriorities = getJavaOptions(JavaCore.COMPILER_TASK_PRIORITIES)
     Map() ++ (taskTags zip taskPriorities)
   }
 
+  private lazy val matcher = new TagMatcher(taskTags)
+
+  /** The tasks in `comment`, found in a single pass over it, whatever the number of task tags.
+   *
+   *  The message of a task extends to the next tag on the same line, or to the end of the
+   *  line. A tag without a message gets the message of the next tag on its line.
+   */
   def extractTasks(comment : String, pos : Position) : List[Task] = {
-    def extractTasksFromLine(line : String, offset : Int) : List[Task] = {
-      val tags = new ArrayBuffer[(Int, String)]
-      for (tag <- taskTags) {
-        var i = 0
-        val tagLen = tag.length
-        val limit = line.length-tagLen
-        val checkStart = Character.isJavaIdentifierPart(tag.charAt(0))
-        val checkEnd = Character.isJavaIdentifierPart(tag.charAt(tagLen-1))
-
-        while (i >= 0 && i < limit) {
-          i = line.indexOf(tag, i)
-          if (i >= 0) {
-            if ((!checkStart || i == 0 || !Character.isJavaIdentifierPart(line(i-1))) &&
-                (!checkEnd || i+tagLen >= line.length || !Character.isJavaIdentifierPart(line(i+tagLen))))
-              tags += ((i, tag))
-
-            i += tagLen
-          }
+    val body = if (comment.startsWith("/*")) comment.substring(0, comment.length-2) else comment
+    val tags = matcher.findAll(body)
+    if (tags.isEmpty) Nil
+    else {
+      val tasks = List.newBuilder[Task]
+      var i = 0
+      while (i < tags.length) {
+        // the tags on the same line as tags(i)
+        val lineEnd = endOfLine(body, tags(i).start)
+        var j = i
+        while (j < tags.length && tags(j).start < lineEnd) j += 1
+
+        val msgs = for (k <- i until j) yield {
+          val start = tags(k).start + tags(k).tag.length
+          val end = if (k + 1 < j) tags(k + 1).start else lineEnd
+          (start, body.substring(start, end).trim)
         }
+        for (k <- i until j) {
+          val TagMatch(start, tag) = tags(k)
+          val (point, msg) = msgs.drop(k - i).find(_._2.nonEmpty).getOrElse((start + tag.length, ""))
+          tasks += Task(tag, msg, tagPriority.getOrElse(tag, JavaCore.COMPILER_TASK_PRIORITY_NORMAL),
+            new RangePosition(pos.source, pos.start + start, pos.start + point + msg.length))
+        }
+        i = j
       }
+      tasks.result
+    }
+  }
+
+  private def endOfLine(text: String, from: Int): Int = {
+    var i = from
+    while (i < text.length && text.charAt(i) != '\n' && text.charAt(i) != '\r') i += 1
+    i
+  }
+}
+
+object TaskScanner {
+  case class Task(tag : String, msg : String, priority : String, pos : Position)
+
+  private[builder] case class TagMatch(start: Int, tag: String)
 
-      val orderedTags = tags.sortBy(_._1)
+  /** An Aho-Corasick automaton over the task tags.
+   *
+   *  A tag only matches if it isn't part of a longer identifier (when the tag itself starts
+   *  or ends with an identifier character), and occurrences of the same tag don't overlap.
+   *  Tags never span lines, so the automaton is reset at line breaks.
+   */
+  private[builder] class TagMatcher(tags: Seq[String]) {
+    private val next = ArrayBuffer(new ju.HashMap[Character, Integer])
+    private val fail = ArrayBuffer(0)
+    /** The tags recognized in each state, longest first. */
+    private val out = ArrayBuffer(List.empty[String])
 
-      val starts = orderedTags.map(t => t._1+t._2.length)
-      val ends = orderedTags.drop(1).map(_._1) += line.length
-      val msgs = (starts zip ends).map({ case (start, end) => (start, line.substring(start, end).trim)}).filter(_._2.length != 0)
+    build()
 
-      (for((start, tag) <- orderedTags) yield {
-        val (point, msg) = msgs.find(_._1 > start).getOrElse((start+tag.length, ""))
-        Task(tag, msg, tagPriority(tag), new RangePosition(pos.source, offset+start, offset+point+msg.length))
-      }).toList
+    private def build(): Unit = {
+      for (tag <- tags.distinct) {
+        var state = 0
+        for (c <- tag) {
+          val target = next(state).get(c)
+          state =
+            if (target ne null) target
+            else {
+              next += new ju.HashMap[Character, Integer]
+              fail += 0
+              out += Nil
+              next(state).put(c, next.size - 1)
+              next.size - 1
+            }
+        }
+        out(state) = tag :: out(state)
+      }
+
+      // breadth-first, so the failure state of a node is computed before its children's
+      val queue = new ju.ArrayDeque[Integer]
+      val rootChildren = next(0).values.iterator
+      while (rootChildren.hasNext) queue.add(rootChildren.next)
+      while (!queue.isEmpty) {
+        val state: Int = queue.poll()
+        val transitions = next(state).entrySet.iterator
+        while (transitions.hasNext) {
+          val entry = transitions.next
+          val c = entry.getKey.charValue
+          val child: Int = entry.getValue
+          var f = fail(state)
+          while (f != 0 && !next(f).containsKey(c)) f = fail(f)
+          val target = next(f).get(c)
+          fail(child) = if ((target ne null) && target.intValue != child) target else 0
+          out(child) = out(child) ++ out(fail(child))
+          queue.add(child)
+        }
+      }
     }
 
-    val body = if (comment.startsWith("/*")) comment.substring(0, comment.length-2) else comment
-    val lines = new ArrayBuffer[(Int, String)]
-    var i = 0
-    var prev = 0
-    val limit = body.length
-    while (i <= limit) {
-      val ch = if (i < limit) body(i) else '\n'
-      if (ch == '\n' || ch == '\r') {
-        if (i > prev) {
-          val line = body.substring(prev, i)
-          if (line.length > 0)
-            lines += ((prev, line))
+    /** The tag occurrences in `text`, ordered by position. */
+    def findAll(text: String): IndexedSeq[TagMatch] = {
+      if (tags.isEmpty) return IndexedSeq.empty
+
+      val found = new ArrayBuffer[TagMatch]
+      val lastEnd = new ju.HashMap[String, Integer]
+      var state = 0
+      var i = 0
+      while (i < text.length) {
+        val c = text.charAt(i)
+        if (c == '\n' || c == '\r') state = 0
+        else {
+          while (state != 0 && !next(state).containsKey(c)) state = fail(state)
+          val target = next(state).get(c)
+          state = if (target ne null) target else 0
+
+          for (tag <- out(state)) {
+            val start = i - tag.length + 1
+            val end = i + 1
+            val previous = lastEnd.get(tag)
+            if (((previous eq null) || start >= previous) && isDelimited(text, tag, start, end)) {
+              found += TagMatch(start, tag)
+              lastEnd.put(tag, end)
+            }
+          }
         }
-        prev = i+1
+        i += 1
       }
-      i += 1
+      found.sortBy(_.start)
     }
 
-    lines.flatMap({ case (offset, line) => extractTasksFromLine(line, pos.start+offset)}).toList
+    private def isDelimited(text: String, tag: String, start: Int, end: Int): Boolean = {
+      val checkStart = Character.isJavaIdentifierPart(tag.charAt(0))
+      val checkEnd = Character.isJavaIdentifierPart(tag.charAt(tag.length - 1))
+      (!checkStart || start == 0 || !Character.isJavaIdentifierPart(text.charAt(start - 1))) &&
+        (!checkEnd || end >= text.length || !Character.isJavaIdentifierPart(text.charAt(end)))
+    }
   }
 }
-
-object TaskScanner {
-  case class Task(tag : String, msg : String, priority : String, pos : Position)
-}
@@ -0,0 +1,162 @@
+package org.arguside.core.internal.builder.jawa
+
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.ByteArrayInputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+import java.nio.file.Files
+import java.util.zip.GZIPInputStream
+import java.util.zip.GZIPOutputStream
+import org.eclipse.core.resources.IContainer
+import org.eclipse.core.resources.IFile
+import org.eclipse.core.runtime.IProgressMonitor
+import org.eclipse.core.runtime.Path
+import org.arguside.logging.HasLogger
+import org.arguside.util.eclipse.FileUtils
+import org.arguside.util.internal.ContentHash
+import org.sireum.util._
+
+/** Moves the class files produced by the Jawa compiler to the output folders.
+ *
+ *  The compiler writes to a staging folder. Only the class files whose contents differ
+ *  from what the previous build published are written to the output folder, through the
+ *  workspace API, so the output never has to be refreshed and identical class files
+ *  don't show up in resource deltas (and don't trigger hot code replace).
+ *
+ *  The content hash and the workspace timestamp of every published file are persisted
+ *  in `store`. A class file that was modified behind our back has a different timestamp,
+ *  and is always written again.
+ *
+ *  @note This class is not thread-safe, it is only accessed from the project's builder.
+ */
+private[jawa] class ClassFileOutput(store: File) extends HasLogger {
+  import ClassFileOutput._
+
+  /** Keyed by the full path of the class file in the workspace. */
+  private val published: MMap[String, Published] = mmapEmpty
+  private var loaded = false
+
+  /** Publish the class files found in the staging folders to the corresponding output folders.
+   *
+   *  @return the class files that were actually written
+   */
+  def publish(stagingOutputs: IList[(File, IContainer)], monitor: IProgressMonitor): ISet[IFile] = {
+    ensureLoaded()
+    val written = Set.newBuilder[IFile]
+    var unchanged = 0
+
+    for {
+      (staging, output) <- stagingOutputs
+      (file, relativePath) <- classFiles(staging)
+    } {
+      val target = output.getFile(new Path(relativePath))
+      val key = target.getFullPath.toString
+      val bytes = Files.readAllBytes(file.toPath)
+      val hash = ContentHash(bytes)
+
+      val upToDate = target.exists && published.get(key).exists { p =>
+        p.hash == hash && p.timestamp == target.getLocalTimeStamp
+      }
+      if (upToDate) unchanged += 1
+      else {
+        if (target.exists)
+          target.setContents(new ByteArrayInputStream(bytes), /* force */ true, /* keepHistory */ false, monitor)
+        else {
+          FileUtils.createParentFolders(target.getParent)
+          target.create(new ByteArrayInputStream(bytes), /* force */ true, monitor)
+        }
+        published(key) = Published(hash, target.getLocalTimeStamp)
+        written += target
+      }
+    }
+
+    val result = written.result
+    logger.info(s"Published ${result.size} class file(s), ${unchanged} unchanged")
+    save()
+    result
+  }
+
+  /** Delete the class files of the given records from the output folders. */
+  def delete(classNames: ISet[String], outputs: Seq[IContainer], monitor: IProgressMonitor): Unit = {
+    ensureLoaded()
+    for {
+      name <- classNames
+      output <- outputs
+      target = output.getFile(new Path(name.replace('.', '/') + ClassFileExtn))
+      if target.exists
+    } {
+      target.delete(/* force */ true, monitor)
+      published -= target.getFullPath.toString
+    }
+  }
+
+  /** Forget everything, and delete the persisted hashes. */
+  def clear(): Unit = {
+    published.clear()
+    loaded = true
+    store.delete()
+  }
+
+  /** The class files under `dir`, with their path relative to it. */
+  private def classFiles(dir: File): IList[(File, String)] = {
+    def walk(f: File, prefix: String): IList[(File, String)] =
+      if (f.isDirectory) f.listFiles.toList.flatMap(child => walk(child, prefix + child.getName + (if (child.isDirectory) "/" else "")))
+      else if (f.getName.endsWith(ClassFileExtn)) List((f, prefix))
+      else Nil
+    if (dir.isDirectory) walk(dir, "") else Nil
+  }
+
+  private def ensureLoaded(): Unit =
+    if (!loaded) {
+      loaded = true
+      if (store.isFile) {
+        try load()
+        catch {
+          case e: IOException =>
+            logger.info(s"Discarding unreadable class file hashes ${store}: ${e.getMessage}")
+            published.clear()
+        }
+      }
+    }
+
+  private def load(): Unit = {
+    val in = new DataInputStream(new GZIPInputStream(new BufferedInputStream(new FileInputStream(store))))
+    try {
+      if (in.readInt() != FormatVersion)
+        throw new IOException("unknown format version")
+      for (_ <- 0 until in.readInt())
+        published(in.readUTF()) = Published(in.readLong(), in.readLong())
+    } finally in.close()
+  }
+
+  private def save(): Unit =
+    try {
+      store.getParentFile.mkdirs()
+      val out = new DataOutputStream(new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(store))))
+      try {
+        out.writeInt(FormatVersion)
+        out.writeInt(published.size)
+        for ((path, p) <- published) {
+          out.writeUTF(path)
+          out.writeLong(p.hash)
+          out.writeLong(p.timestamp)
+        }
+      } finally out.close()
+    } catch {
+      case e: IOException =>
+        eclipseLog.error(s"Could not save the class file hashes to $store", e)
+        store.delete()
+    }
+}
+
+private[jawa] object ClassFileOutput {
+  private final val FormatVersion = 1
+  private final val ClassFileExtn = ".class"
+
+  private case class Published(hash: Long, timestamp: Long)
+}
@@ -0,0 +1,156 @@
+package org.arguside.core.internal.builder.jawa
+
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.zip.GZIPInputStream
+import java.util.zip.GZIPOutputStream
+import java.util.zip.ZipFile
+import scala.collection.JavaConverters._
+import org.arguside.core.internal.ArgusPlugin
+import org.arguside.logging.HasLogger
+import org.arguside.util.internal.ContentHash
+import org.sireum.jawa.sjc.compile.DefinesClass
+
+/** The entries of the archives on the classpath, shared by all projects and builds.
+ *
+ *  An archive is identified by its path, size and modification time, so a modified jar is
+ *  indexed again. Indexes are kept in memory for the session, and persisted in the plugin
+ *  state location, so after a restart the archive does not have to be opened at all.
+ *
+ *  On disk, the entry names of an archive are sorted and front-coded (each name only stores
+ *  the suffix it doesn't share with the previous one). They are loaded in a hash set, so
+ *  `DefinesClass` lookups are constant time.
+ *
+ *  @note This object is thread-safe.
+ */
+private[jawa] object ClasspathIndex extends HasLogger {
+
+  private final val FormatVersion = 1
+
+  private val archives = new ConcurrentHashMap[String, ArchiveEntries]
+
+  /** The class locator of `archive`, indexing it if needed. */
+  def apply(archive: File): DefinesClass = {
+    val path = archive.getAbsolutePath
+    val size = archive.length
+    val lastModified = archive.lastModified
+
+    archives.get(path) match {
+      case cached: ArchiveEntries if cached.size == size && cached.lastModified == lastModified =>
+        cached
+      case _ =>
+        // two threads may index the same archive concurrently, both results are valid
+        val fresh = new ArchiveEntries(archive, size, lastModified)
+        archives.put(path, fresh)
+        fresh
+    }
+  }
+
+  /** Drop the in-memory indexes. The persisted ones are still used. */
+  def clear(): Unit = archives.clear()
+
+  class ArchiveEntries(archive: File, val size: Long, val lastModified: Long) extends DefinesClass {
+    private lazy val names: java.util.Set[String] = load() getOrElse index()
+
+    def apply(className: String): Boolean = names.contains(className)
+
+    private def storeFile: Option[File] =
+      Option(ArgusPlugin()) map { plugin =>
+        val dir = plugin.getStateLocation.append("classpath-index").toFile
+        new File(dir, java.lang.Long.toHexString(ContentHash(archive.getAbsolutePath)) + ".idx")
+      }
+
+    private def index(): java.util.Set[String] = {
+      val start = System.currentTimeMillis
+      val zipFile = new ZipFile(archive, ZipFile.OPEN_READ)
+      val sorted = try
+        zipFile.entries.asScala.filterNot(_.isDirectory).map(_.getName).toArray.sorted
+      finally
+        zipFile.close()
+      logger.debug(s"Indexed ${sorted.length} entries of $archive in ${System.currentTimeMillis - start}ms")
+
+      storeFile foreach (save(_, sorted))
+      toSet(sorted)
+    }
+
+    private def toSet(names: Array[String]): java.util.Set[String] = {
+      val set = new java.util.HashSet[String](names.length * 4 / 3 + 1)
+      names foreach set.add
+      set
+    }
+
+    private def load(): Option[java.util.Set[String]] =
+      storeFile filter (_.isFile) flatMap { file =>
+        try {
+          val in = new DataInputStream(new GZIPInputStream(new BufferedInputStream(new FileInputStream(file))))
+          try {
+            val matches = in.readInt() == FormatVersion &&
+              in.readUTF() == archive.getAbsolutePath &&
+              in.readLong() == size &&
+              in.readLong() == lastModified
+            if (!matches) None
+            else {
+              val count = in.readInt()
+              val names = new Array[String](count)
+              var previous = ""
+              for (i <- 0 until count) {
+                val shared = in.readUnsignedShort()
+                previous = previous.substring(0, shared) + in.readUTF()
+                names(i) = previous
+              }
+              Some(toSet(names))
+            }
+          } finally in.close()
+        } catch {
+          case e: IOException =>
+            logger.debug(s"Discarding unreadable classpath index $file", e)
+            None
+        }
+      }
+
+    private def save(file: File, sorted: Array[String]): Unit =
+      try {
+        file.getParentFile.mkdirs()
+        val tmp = File.createTempFile(file.getName, ".tmp", file.getParentFile)
+        try {
+          val out = new DataOutputStream(new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(tmp))))
+          try {
+            out.writeInt(FormatVersion)
+            out.writeUTF(archive.getAbsolutePath)
+            out.writeLong(size)
+            out.writeLong(lastModified)
+            out.writeInt(sorted.length)
+            var previous = ""
+            for (name <- sorted) {
+              val shared = commonPrefixLength(previous, name) min 0xffff
+              out.writeShort(shared)
+              out.writeUTF(name.substring(shared))
+              previous = name
+            }
+          } finally out.close()
+          // replace atomically, another build may be reading it
+          if (!tmp.renameTo(file)) {
+            file.delete()
+            tmp.renameTo(file)
+          }
+        } finally tmp.delete()
+      } catch {
+        case e: IOException =>
+          logger.debug(s"Could not persist the classpath index of $archive", e)
+      }
+
+    private def commonPrefixLength(a: String, b: String): Int = {
+      val max = a.length min b.length
+      var i = 0
+      while (i < max && a.charAt(i) == b.charAt(i)) i += 1
+      i
+    }
+  }
+}
@@ -0,0 +1,46 @@
+package org.arguside.core.internal.builder.jawa
+
+import scala.collection.mutable
+import org.eclipse.core.resources.IMarker
+import org.sireum.jawa.DefaultReporter
+import org.sireum.jawa.io.Position
+import org.sireum.util._
+
+/** A problem reported by a build.
+ *
+ *  @param severity one of `IMarker.SEVERITY_ERROR`, `IMarker.SEVERITY_WARNING`
+ *  @param path     the path of the file, empty if the problem has no position
+ *  @param line     the line of the problem, 0 if it has no position
+ */
+case class BuildProblem(severity: Int, message: String, path: String, line: Int)
+
+/** A reporter that keeps the errors and warnings it is told about, so that they can be
+ *  listed once the build is over (see `EclipseJawaBuildManager.problems`).
+ *
+ *  @note This class is thread-safe.
+ */
+private[jawa] class CollectingReporter extends DefaultReporter {
+  private val collected = mutable.ArrayBuffer.empty[BuildProblem]
+
+  override def info0(pos: Position, msg: String, severity: Severity, force: Boolean): Unit = {
+    super.info0(pos, msg, severity, force)
+    val eclipseSeverity = severity.id match {
+      case ERROR.id => Some(IMarker.SEVERITY_ERROR)
+      case WARNING.id => Some(IMarker.SEVERITY_WARNING)
+      case _ => None
+    }
+    for (sev <- eclipseSeverity) {
+      val problem =
+        if (pos.isDefined) BuildProblem(sev, msg, pos.source.file.path, pos.line)
+        else BuildProblem(sev, msg, "", 0)
+      synchronized { collected += problem }
+    }
+  }
+
+  override def reset(): Unit = {
+    super.reset()
+    synchronized { collected.clear() }
+  }
+
+  def problems: IList[BuildProblem] = synchronized { collected.toList }
+}
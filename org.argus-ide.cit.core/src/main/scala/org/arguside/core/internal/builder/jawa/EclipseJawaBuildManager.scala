@@ -13,6 +13,7 @@ import org.arguside.core.internal.builder.BuildProblemMarker
 import org.eclipse.core.runtime.IProgressMonitor
 import org.eclipse.core.resources.IResource
 import org.arguside.core.internal.builder.TaskManager
+import org.arguside.core.internal.builder.TaskScanner
 import java.io.File
 import org.eclipse.core.runtime.Path
 import org.sireum.jawa.sjc.compile.CompileProgress
@@ -24,31 +25,54 @@ import org.sireum.jawa.sjc.log.{Logger => sjcLogger}
 import org.sireum.jawa.io.NoPosition
 import org.sireum.jawa.sjc.log.Severity
 import org.sireum.jawa.DefaultReporter
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import org.arguside.core.CitConstants
+import org.arguside.util.internal.SettingConverterUtil
+import org.arguside.util.eclipse.FileUtils
+import org.arguside.core.resources.MarkerBatch
 
 
 /**
  * @author fgwei
+ *
+ * @param compileWorkers the number of parallel compilation workers, overriding the
+ *                       project's `ParallelWorkersSetting` when defined
  */
 class EclipseJawaBuildManager(val project: IArgusProject, analysisCache: Option[IFile] = None,
-  addToClasspath: Seq[IPath] = Seq.empty, srcOutputs: Seq[(IContainer, IContainer)] = Seq.empty)
+  addToClasspath: Seq[IPath] = Seq.empty, srcOutputs: Seq[(IContainer, IContainer)] = Seq.empty,
+  compileWorkers: Option[Int] = None)
     extends CachedAnalysisBuildManager with HasLogger {
   import EclipseJawaBuildManager._
   
   /** Initialized in `build`, used by the SbtProgress. */
   private var monitor: SubMonitor = _
 
-  private val sources: MSet[IFile] = msetEmpty
-
   def analysisStore = analysisCache.getOrElse(project.underlying.getFile(".cache"))
   private def cacheFile = analysisStore.getLocation.toFile
+
+  /** The per-file API signatures and dependency edges, persisted next to the `analysisStore`. */
+  private lazy val analysis = new JawaBuildAnalysis(new File(cacheFile.getPath + ".deps"))
+
+  /** The hashes of the class files published to the output folders. */
+  private lazy val output = new ClassFileOutput(new File(cacheFile.getPath + ".out"))
   
-  // this directory is used by Jawa to store classfiles between
-  // compilation runs to implement all-or-nothing compilation
-  // sementics. Original files are copied over to tempDir and
-  // moved back in case of compilation errors.
+  // this directory is used by Jawa to stage the classfiles of a
+  // compilation run. They are only published to the output folders
+  // (see `ClassFileOutput`) if the compilation succeeded, which
+  // implements all-or-nothing compilation semantics.
   private val tempDir = project.underlying.getFolder(".tmpBin")
   private def tempDirFile = tempDir.getLocation().toFile()
 
+  private def sourceOutputs: IList[(IContainer, IContainer)] =
+    if (srcOutputs.nonEmpty) srcOutputs.toList else project.sourceOutputFolders.toList
+
+  /** The source folders, each mapped to its own staging folder. */
+  private def stagingOutputs: IList[(IContainer, IContainer)] =
+    sourceOutputs.zipWithIndex map { case ((src, _), i) => (src, tempDir.getFolder(i.toString): IContainer) }
+
   private val jawaLogger = new sjcLogger {
     override def error(msg: String) = logger.error(msg)
     override def warn(msg: String) = logger.warn(msg)
@@ -57,93 +81,229 @@ class EclipseJawaBuildManager(val project: IArgusProject, analysisCache: Option[
     override def trace(exc: Throwable) = logger.error("", exc)
   }
   
-  private lazy val jawaReporter = new DefaultReporter
-  
-  override def build(addedOrUpdated: Set[IFile], removed: Set[IFile], pm: SubMonitor): Unit = {
+  private lazy val jawaReporter = new CollectingReporter
+
+  /** Set when a parallel compilation worker reported errors to its own reporter. */
+  @volatile private var workerErrors = false
+
+  /** The problems reported to the reporters of the parallel compilation workers. */
+  // @GuardedBy("this")
+  private var workerProblems: IList[BuildProblem] = Nil
+
+  /** The errors and warnings reported by the last build. */
+  def problems: IList[BuildProblem] = jawaReporter.problems ++ synchronized { workerProblems }
+
+  private def reportedErrors: Boolean = jawaReporter.hasErrors || workerErrors
+
+  /** The number of threads compiling Jawa sources, a value of 1 disables parallel compilation. */
+  private def parallelWorkers: Int =
+    compileWorkers.getOrElse(project.storage.getInt(SettingConverterUtil.convertNameToProperty(ParallelWorkersSetting))) max 1
+
+  override def build(addedOrUpdated: Set[IFile], removed: Set[IFile], forced: Set[IFile], pm: SubMonitor): Unit = {
+    val markers = new MarkerBatch
+    try build(addedOrUpdated, removed, forced, pm, markers)
+    finally markers.apply(pm)
+  }
+
+  /** Build, recording the task and problem markers of the build in `markers`.
+   *  The caller applies them, in one operation with its own changes.
+   */
+  protected def build(addedOrUpdated: Set[IFile], removed: Set[IFile], forced: Set[IFile], pm: SubMonitor, markers: MarkerBatch): Unit = {
     jawaReporter.reset()
+    workerErrors = false
+    synchronized { workerProblems = Nil }
     val toBuild = addedOrUpdated -- removed
     monitor = pm
     hasInternalErrors = false
     try {
-      update(toBuild, removed)
+      update(toBuild, removed, forced -- removed, markers)
     } catch {
       case oce: OperationCanceledException =>
         throw oce
       case e: Throwable =>
         hasInternalErrors = true
-        BuildProblemMarker.create(project, e)
+        BuildProblemMarker.create(markers, project, e)
         eclipseLog.error("Error in Jawa compiler", e)
         jawaReporter.error(NoPosition, "Jawa builder crashed while compiling. The error message is '" + e.getMessage() + "'. Check Error Log for details.")
     }
-    hasInternalErrors = jawaReporter.hasErrors || hasInternalErrors
+    hasInternalErrors = reportedErrors || hasInternalErrors
   }
-  
-  
 
   override def clean(implicit monitor: IProgressMonitor) {
     analysisStore.refreshLocal(IResource.DEPTH_ZERO, null)
     analysisStore.delete(true, false, monitor)
+    // worker caches of older builds were kept next to the cache, whatever the number of workers
+    Option(cacheFile.getParentFile.listFiles) foreach { files =>
+      files filter (_.getName.startsWith(cacheFile.getName + "-")) foreach (_.delete())
+    }
+    analysis.clear()
+    output.clear()
+    FileUtils.deleteDir(tempDirFile)
   }
 
+  override def invalidate(): Unit =
+    analysis.clear()
+
   override def invalidateAfterLoad: Boolean = true
 
   override def canTrackDependencies: Boolean = true
 
-  /** Remove the given files from the managed build process. */
-  private def removeFiles(files: scala.collection.Set[IFile]) {
-    if (!files.isEmpty)
-      sources --= files
-  }
+  override def dependentsOf(classNames: Set[String]): Set[IFile] =
+    analysis.dependentsOf(classNames)
+
+  override def apiFingerprint: Option[Long] =
+    Some(analysis.apiFingerprint)
+
+  override def keepsOutputInSync: Boolean = true
 
   /** The given files have been modified by the user. Recompile
-   *  them and their dependent files.
+   *  them, the `forced` ones and the files depending on a changed API.
+   *
+   *  Files whose contents did not change since the last successful build are
+   *  skipped, unless forced, which makes the build requested after a restart cheap as well.
    */
-  private def update(added: ISet[IFile], removed: ISet[IFile]) {
+  private def update(added: ISet[IFile], removed: ISet[IFile], forced: ISet[IFile], markers: MarkerBatch) {
     if (added.isEmpty && removed.isEmpty)
       logger.info("No changes in project, running the builder for potential transitive changes.")
-    clearTasks(added)
-    removeFiles(removed)
-    sources ++= added
-    runCompiler(sources.asJFiles)
+    val taskScanner = new TaskScanner(project)
+    val plan = analysis.plan(added, removed, forced) { (file, contents, comments) =>
+      TaskManager.updateTasks(markers, taskScanner, file, contents, comments)
+    }
+    var succeeded = false
+    try
+      succeeded = plan.toCompile.isEmpty || (runCompiler(plan.toCompile.asJFiles) && !reportedErrors)
+    finally {
+      if (succeeded) {
+        output.delete(analysis.obsoleteRecords(plan), sourceOutputs.map(_._2), monitor)
+        analysis.commit(plan)
+      } else analysis.abort(plan)
+    }
   }
 
-  private def clearTasks(included: scala.collection.Set[IFile]) {
-    included foreach TaskManager.clearTasks
+  /** Compile `sources`, returning `false` if the compiler gave up.
+   *
+   *  Jawa sources are compiled first, to the staging folders, and their class files are
+   *  published to the output folders before the Java sources are compiled against them.
+   *  When more than one worker is configured and there are enough Jawa sources, they are
+   *  compiled in parallel (see `compileInParallel`).
+   */
+  private def runCompiler(sources: IList[File]): Boolean = {
+    val workers = parallelWorkers
+    val (javaSources, jawaSources) = sources.partition(_.getName.endsWith(CitConstants.JavaFileExtn))
+
+    val jawaCompiled = jawaSources.isEmpty || {
+      val staging = stagingOutputs
+      FileUtils.deleteDir(tempDirFile)
+      try {
+        val compiled =
+          if (workers > 1 && jawaSources.size >= 2 * MinFilesPerWorker) {
+            logger.info(s"Running compiler on ${jawaSources.size} Jawa file(s) with ${workers} workers")
+            compileInParallel(jawaSources, workers, staging)
+          } else {
+            logger.info(s"Running compiler on ${jawaSources.size} Jawa file(s)")
+            compile(jawaSources, new JawaCompilerProgress, cacheFile, jawaReporter, staging, withJava = false)
+          }
+        if (compiled && !reportedErrors) {
+          val published = staging.zip(sourceOutputs) map {
+            case ((_, stagingFolder), (_, outputFolder)) => (stagingFolder.getLocation.toFile, outputFolder)
+          }
+          output.publish(published, monitor)
+        }
+        compiled
+      } finally FileUtils.deleteDir(tempDirFile)
+    }
+
+    jawaCompiled && (javaSources.isEmpty || {
+      logger.info(s"Running compiler on ${javaSources.size} Java file(s)")
+      compile(javaSources, new JawaCompilerProgress, cacheFile, jawaReporter, sourceOutputs, withJava = true)
+    })
   }
 
-  private def runCompiler(sources: IList[File]): Unit = {
-    logger.info(s"Running compiler")
-    val progress = new JawaCompilerProgress
-    val inputs = new JawaInputs(sources, project, monitor, progress)
-    try
-      aggressiveCompile(inputs, jawaLogger)
-    catch {
-      case _: CompileFailed => Nil
+  private def compile(sources: IList[File], progress: CompileProgress, cache: File, reporter: DefaultReporter,
+    outputs: IList[(IContainer, IContainer)], withJava: Boolean): Boolean = {
+    val inputs = new JawaInputs(sources, project, monitor, progress, outputs, compileJava = withJava)
+    try {
+      aggressiveCompile(inputs, cache, reporter, jawaLogger)
+      true
+    } catch {
+      case _: CompileFailed => false
     }
-//    analysis foreach setCached
   }
-  
-  private def aggressiveCompile(in: JawaInputs, log: sjcLogger): Unit = {
+
+  /** Compile Jawa sources on a bounded pool of `workers` threads.
+   *
+   *  Sources are sorted and split in contiguous chunks, so a given set of sources is always
+   *  partitioned the same way. Each chunk has its own reporter, and reports to a shared progress
+   *  that forwards to the build `SubMonitor`. The first cancellation or crash cancels the
+   *  remaining chunks.
+   *
+   *  The chunks hold different files from one build to the next, so the compiler cache of a
+   *  chunk is of no use to the next build: it is kept in the staging directory, and deleted
+   *  with it. What to recompile is decided by `JawaBuildAnalysis`, not by these caches.
+   */
+  private def compileInParallel(sources: IList[File], workers: Int, outputs: IList[(IContainer, IContainer)]): Boolean = {
+    val sorted = sources.sortBy(_.getPath)
+    val chunkSize = math.max(MinFilesPerWorker, (sorted.size + workers - 1) / workers)
+    val chunks = sorted.grouped(chunkSize).toList
+    val progress = new JawaCompilerProgress(chunks.size)
+    tempDirFile.mkdirs()
+
+    val pool = Executors.newFixedThreadPool(chunks.size min workers)
+    try {
+      val futures: IList[Future[Boolean]] = chunks.zipWithIndex map {
+        case (chunk, i) =>
+          pool.submit(new Callable[Boolean] {
+            def call(): Boolean = {
+              val reporter = new CollectingReporter
+              try compile(chunk, progress.part(i), workerCacheFile(i), reporter, outputs, withJava = false)
+              finally {
+                if (reporter.hasErrors) workerErrors = true
+                EclipseJawaBuildManager.this.synchronized { workerProblems ++= reporter.problems }
+              }
+            }
+          })
+      }
+
+      try futures.map(_.get).forall(identity)
+      catch {
+        case e: ExecutionException =>
+          futures foreach (_.cancel(true))
+          throw e.getCause
+      }
+    } finally pool.shutdownNow()
+  }
+
+  private def workerCacheFile(i: Int): File = new File(tempDirFile, s"worker-$i.cache")
+
+  private def aggressiveCompile(in: JawaInputs, cache: File, reporter: DefaultReporter, log: sjcLogger): Unit = {
     val compilers = in.compilers
-    val agg = new AggressiveCompile(cacheFile)
+    val agg = new AggressiveCompile(cache)
     val defClass = (f: File) => { val dc = Locator(f); (name: String) => dc.apply(name) }
 
     import compilers._
     agg(jawac, javac, in.sources, in.output, in.progress, in.javacOptions,
-      defClass, jawaReporter)(log)
+      defClass, reporter)(log)
   }
 
-  private class JawaCompilerProgress extends CompileProgress {
+  /** Forwards the compiler progress to the build monitor.
+   *
+   *  A compilation split over several workers reports each part through `part(i)`; the
+   *  monitor then shows the sum of all parts. Monitor updates are guarded by this object,
+   *  since `SubMonitor` is not thread-safe.
+   */
+  private class JawaCompilerProgress(parts: Int = 1) extends CompileProgress {
+    private val partWorked = new Array[Int](parts)
+    private val partTotal = new Array[Int](parts)
     private var lastWorked = 0
     private var savedTotal = 0
     private var throttledMessages = 0
 
-    private var compiledFiles: Set[IFile] = Set()
-
-    /** Return the set of files that were reported as being compiled during this session */
-    def actualCompiledFiles: Set[IFile] = compiledFiles
+    def part(i: Int): CompileProgress = new CompileProgress {
+      override def startUnit(unitPath: String): Unit = JawaCompilerProgress.this.startUnit(unitPath)
+      override def advance(current: Int, total: Int): Boolean = JawaCompilerProgress.this.advance(i, current, total)
+    }
 
-    override def startUnit(unitPath: String): Unit = {
+    override def startUnit(unitPath: String): Unit = synchronized {
       def unitIPath: IPath = Path.fromOSString(unitPath)
 
       if (monitor.isCanceled)
@@ -161,25 +321,40 @@ class EclipseJawaBuildManager(val project: IArgusProject, analysisCache: Option[
     }
 
     override def advance(current: Int, total: Int): Boolean =
+      advance(0, current, total)
+
+    private def advance(part: Int, current: Int, total: Int): Boolean = synchronized {
       if (monitor.isCanceled) {
         throw new OperationCanceledException
       } else {
-        if (savedTotal != total) {
-          monitor.setWorkRemaining(total - lastWorked)
-          savedTotal = total
+        partWorked(part) = current
+        partTotal(part) = total
+        val worked = partWorked.sum
+        val allTotal = partTotal.sum
+
+        if (savedTotal != allTotal) {
+          monitor.setWorkRemaining(allTotal - lastWorked)
+          savedTotal = allTotal
         }
 
-        if (lastWorked < current) {
-          monitor.worked(current - lastWorked)
-          lastWorked = current
+        if (lastWorked < worked) {
+          monitor.worked(worked - lastWorked)
+          lastWorked = worked
         }
         true
       }
+    }
   }
   
 }
 
 object EclipseJawaBuildManager {
+  /** Name of the setting holding the number of parallel compilation workers. */
+  final val ParallelWorkersSetting = "-parallelCompileWorkers"
+
+  /** Below this number of sources per worker, compiling in parallel is not worth it. */
+  private final val MinFilesPerWorker = 50
+
   private implicit class FileHelper(val files: scala.collection.Set[IFile]) extends AnyVal {
     def asJFiles: IList[File] = files.map(ifile => ifile.getLocation.toFile).toList
   }
@@ -6,8 +6,6 @@ import org.eclipse.core.resources.IProject
 import org.arguside.util.eclipse.FileUtils
 import argus.tools.eclipse.contribution.weaving.jdt.jcompiler.BuildManagerStore
 import org.eclipse.core.resources.IncrementalProjectBuilder.INCREMENTAL_BUILD
-import org.eclipse.core.resources.ResourcesPlugin
-import org.eclipse.core.resources.IResource
 import org.arguside.core.internal.builder.JDTBuilderFacade
 import org.arguside.core.IArgusPlugin
 import org.sireum.jawa.sjc.compile.JavaCompiler
@@ -31,11 +29,8 @@ class JavaEclipseCompiler(p: IProject, monitor: SubMonitor) extends JavaCompiler
     else {
       ensureProject
 
-      // refresh output directories
-      for (folder <- argusProject.outputFolders) {
-        val container = ResourcesPlugin.getWorkspace().getRoot().getFolder(folder)
-        container.refreshLocal(IResource.DEPTH_INFINITE, null)
-      }
+      // the Jawa class files are published through the workspace (see `ClassFileOutput`),
+      // so the output directories don't need to be refreshed before running the JDT builder
 
       BuildManagerStore.INSTANCE.setJavaSourceFilesToCompile(sources.toArray, project)
       try
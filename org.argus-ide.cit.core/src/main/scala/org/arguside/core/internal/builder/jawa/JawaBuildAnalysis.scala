@@ -0,0 +1,310 @@
+package org.arguside.core.internal.builder.jawa
+
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import java.util.zip.GZIPInputStream
+import java.util.zip.GZIPOutputStream
+import org.eclipse.core.resources.IFile
+import org.eclipse.core.resources.ResourcesPlugin
+import org.eclipse.core.runtime.Path
+import org.arguside.core.CitConstants
+import org.arguside.core.internal.builder.TaskManager.Comment
+import org.arguside.logging.HasLogger
+import org.arguside.util.internal.ContentHash
+import org.sireum.jawa.DefaultReporter
+import org.sireum.jawa.sjc.lexer.JawaLexer
+import org.sireum.jawa.sjc.lexer.Tokens._
+import org.sireum.util._
+
+/** What the builder remembers about a compiled source file.
+ *
+ *  @param contentHash hash of the file contents at the time it was compiled
+ *  @param apiHash     hash of the declarations in the file, procedure bodies excluded
+ *  @param commentHash hash of the comments in the file, and of their offsets
+ *  @param declared    fully qualified names of the records declared in the file
+ *  @param references  fully qualified names referenced by the file, and their owners
+ */
+private[jawa] case class SourceAnalysis(contentHash: Long, apiHash: Long, commentHash: Long, declared: ISet[String], references: ISet[String])
+
+/** The dependency graph of a Jawa project, persisted between builds.
+ *
+ *  Jawa sources only refer to other classes by their fully qualified name, so the
+ *  graph is computed from the tokens of each file: the record names declared in it,
+ *  and the qualified names it mentions. A change to the declarations of a file (its
+ *  API) invalidates the files referencing one of its records, while a change confined
+ *  to procedure bodies only recompiles the file itself.
+ *
+ *  @note This class is not thread-safe, it is only accessed from the project's builder.
+ */
+private[jawa] class JawaBuildAnalysis(store: File) extends HasLogger {
+  import JawaBuildAnalysis._
+
+  private val entries: MMap[IFile, SourceAnalysis] = mmapEmpty
+  private val dependents: MMap[String, MSet[IFile]] = mmapEmpty
+  private var loaded = false
+
+  /** Combination of the API hashes of all files, maintained as entries come and go. */
+  private var fingerprint = 0L
+
+  /** Files that were scheduled by a failed build, and must be part of the next one. */
+  private val pending: MSet[IFile] = msetEmpty
+
+  /** The changes a build has to apply to the analysis once it succeeds. */
+  case class Plan(toCompile: ISet[IFile], updated: IMap[IFile, SourceAnalysis], removed: ISet[IFile])
+
+  /** Compute the files to recompile after `added` were added or modified and `removed` were deleted.
+   *
+   *  Files whose contents did not change since the last successful build are skipped, unless
+   *  they are `forced`: files whose output is out of date for another reason (e.g. a full build,
+   *  or a change in a dependency). The result contains the changed and forced files, plus the
+   *  files referencing a record whose API changed.
+   *
+   *  `commentsChanged` is called with the contents and the comments of each Jawa file whose
+   *  comments changed since the last successful build, so tasks can be updated without
+   *  lexing the file again.
+   */
+  def plan(added: ISet[IFile], removed: ISet[IFile], forced: ISet[IFile])(commentsChanged: (IFile, String, IList[Comment]) => Unit): Plan = {
+    ensureLoaded()
+    val candidates = (added ++ forced ++ pending.filter(_.exists)) -- removed
+    val updated = imapEmpty[IFile, SourceAnalysis] ++ (for {
+      file <- candidates
+      bytes <- readContents(file)
+      hash = ContentHash(bytes)
+      if entries.get(file).forall(_.contentHash != hash) || pending(file) || forced(file)
+    } yield file -> {
+      if (isJawaSource(file)) {
+        val contents = new String(bytes, charsetOf(file))
+        val (analysis, comments) = analyze(hash, contents)
+        if (entries.get(file).forall(_.commentHash != analysis.commentHash) || pending(file))
+          commentsChanged(file, contents, comments)
+        analysis
+      }
+      // Java sources are not lexed, any change to them is considered an API change
+      else SourceAnalysis(hash, hash, 0L, isetEmpty, isetEmpty)
+    })
+
+    val changedApis: ISet[String] = {
+      val fromUpdated = updated.flatMap {
+        case (file, analysis) =>
+          entries.get(file) match {
+            case Some(old) if old.apiHash == analysis.apiHash => Nil
+            case Some(old) => old.declared ++ analysis.declared
+            case None => analysis.declared
+          }
+      }
+      val fromRemoved = removed.flatMap(entries.get).flatMap(_.declared)
+      (fromUpdated ++ fromRemoved).toSet
+    }
+
+    val toCompile = updated.keySet ++ (dependentsOf(changedApis) -- removed)
+    logger.info(s"Incremental build: ${updated.size} changed file(s), ${toCompile.size - updated.size} dependent file(s), ${changedApis.size} changed API(s)")
+    Plan(toCompile, updated, removed)
+  }
+
+  /** Record the result of a successful build and persist it. */
+  def commit(plan: Plan): Unit = {
+    ensureLoaded()
+    plan.removed foreach removeEntry
+    plan.updated foreach { case (file, analysis) => putEntry(file, analysis) }
+    pending.clear()
+    save()
+  }
+
+  /** The records declared by the files of `plan` before the build, that they no longer declare. */
+  def obsoleteRecords(plan: Plan): ISet[String] = {
+    ensureLoaded()
+    val before = (plan.removed ++ plan.updated.keySet).flatMap(file => entries.get(file).map(_.declared).getOrElse(isetEmpty[String]))
+    before -- plan.updated.values.flatMap(_.declared)
+  }
+
+  /** Remember the files of a failed build, so the next build retries them. */
+  def abort(plan: Plan): Unit =
+    pending ++= plan.toCompile
+
+  /** The known source files that reference any of the given fully qualified class names. */
+  def dependentsOf(classNames: ISet[String]): ISet[IFile] = {
+    ensureLoaded()
+    classNames.flatMap(name => dependents.getOrElse(name, msetEmpty[IFile]))
+  }
+
+  /** A fingerprint of the API of the whole project. It changes when a file's declarations change,
+   *  or when a file is added or removed, but not when only procedure bodies change.
+   */
+  def apiFingerprint: Long = {
+    ensureLoaded()
+    fingerprint
+  }
+
+  /** Forget everything, and delete the persisted analysis. */
+  def clear(): Unit = {
+    entries.clear()
+    dependents.clear()
+    fingerprint = 0L
+    pending.clear()
+    loaded = true
+    store.delete()
+  }
+
+  private def putEntry(file: IFile, analysis: SourceAnalysis): Unit = {
+    removeEntry(file)
+    entries(file) = analysis
+    fingerprint ^= entryFingerprint(file, analysis)
+    analysis.references foreach { name =>
+      dependents.getOrElseUpdate(name, msetEmpty) += file
+    }
+  }
+
+  private def removeEntry(file: IFile): Unit =
+    entries.remove(file) foreach { old =>
+      fingerprint ^= entryFingerprint(file, old)
+      old.references foreach { name =>
+        dependents.get(name) foreach { files =>
+          files -= file
+          if (files.isEmpty) dependents -= name
+        }
+      }
+    }
+
+  private def readContents(file: IFile): Option[Array[Byte]] = {
+    val location = file.getLocation
+    if (location == null) None
+    else try Some(Files.readAllBytes(location.toFile.toPath))
+    catch {
+      case e: IOException =>
+        logger.debug(s"Could not read $file", e)
+        None
+    }
+  }
+
+  private def isJawaSource(file: IFile): Boolean =
+    file.getName.endsWith(CitConstants.PilarFileExtn) || file.getName.endsWith(CitConstants.PilarFileExtnShort)
+
+  private def entryFingerprint(file: IFile, analysis: SourceAnalysis): Long =
+    new ContentHash.Hasher().update(file.getFullPath.toString).update(analysis.apiHash).result
+
+  private def charsetOf(file: IFile): String =
+    try file.getCharset
+    catch { case _: Exception => StandardCharsets.UTF_8.name }
+
+  private def ensureLoaded(): Unit =
+    if (!loaded) {
+      loaded = true
+      if (store.isFile) {
+        try load()
+        catch {
+          case e: IOException =>
+            logger.info(s"Discarding unreadable build analysis ${store}: ${e.getMessage}")
+            entries.clear()
+            dependents.clear()
+            fingerprint = 0L
+        }
+      }
+    }
+
+  private def load(): Unit = {
+    val in = new DataInputStream(new GZIPInputStream(new BufferedInputStream(new FileInputStream(store))))
+    try {
+      if (in.readInt() != FormatVersion)
+        throw new IOException("unknown format version")
+      val root = ResourcesPlugin.getWorkspace.getRoot
+      def readSet(): ISet[String] = (0 until in.readInt()).map(_ => in.readUTF()).toSet
+      for (_ <- 0 until in.readInt()) {
+        val file = root.getFile(new Path(in.readUTF()))
+        val analysis = SourceAnalysis(in.readLong(), in.readLong(), in.readLong(), readSet(), readSet())
+        putEntry(file, analysis)
+      }
+    } finally in.close()
+  }
+
+  private def save(): Unit =
+    try {
+      store.getParentFile.mkdirs()
+      val out = new DataOutputStream(new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(store))))
+      try {
+        def writeSet(names: ISet[String]): Unit = {
+          out.writeInt(names.size)
+          names foreach out.writeUTF
+        }
+        out.writeInt(FormatVersion)
+        out.writeInt(entries.size)
+        for ((file, analysis) <- entries) {
+          out.writeUTF(file.getFullPath.toString)
+          out.writeLong(analysis.contentHash)
+          out.writeLong(analysis.apiHash)
+          out.writeLong(analysis.commentHash)
+          writeSet(analysis.declared)
+          writeSet(analysis.references)
+        }
+      } finally out.close()
+    } catch {
+      case e: IOException =>
+        eclipseLog.error(s"Could not save the build analysis to $store", e)
+        store.delete()
+    }
+}
+
+private[jawa] object JawaBuildAnalysis {
+  private final val FormatVersion = 2
+
+  private final val RecordKeyword = "record"
+  private final val ProcedureKeyword = "procedure"
+
+  /** Computes the declarations, references and API hash of a Jawa source, and collects its comments. */
+  def analyze(contentHash: Long, contents: String): (SourceAnalysis, IList[Comment]) = {
+    val api = new ContentHash.Hasher
+    val commentHash = new ContentHash.Hasher
+    val comments = List.newBuilder[Comment]
+    val declared = Set.newBuilder[String]
+    val references = Set.newBuilder[String]
+
+    var expectRecordName = false
+    var inProcedureHeader = false
+    var bodyDepth = 0
+
+    for {
+      token <- JawaLexer.rawTokenise(Left(contents), new DefaultReporter)
+      if token.tokenType != WS
+    } if (token.tokenType.isComment) {
+      comments += Comment(token.offset, token.text)
+      commentHash.update(token.offset.toLong).update(token.text)
+    } else {
+      val text = token.text
+      if (bodyDepth > 0) {
+        token.tokenType match {
+          case LBRACE => bodyDepth += 1
+          case RBRACE => bodyDepth -= 1
+          case _ =>
+        }
+      } else {
+        api.update(text)
+        if (text == ProcedureKeyword) inProcedureHeader = true
+        else if (inProcedureHeader && token.tokenType == LBRACE) {
+          inProcedureHeader = false
+          bodyDepth = 1
+        }
+      }
+
+      if (token.tokenType.isId) {
+        val name = unquote(text)
+        if (expectRecordName) declared += name
+        if (name.indexOf('.') > 0) {
+          references += name
+          references += name.substring(0, name.lastIndexOf('.'))
+        }
+      }
+      expectRecordName = text == RecordKeyword
+    }
+    (SourceAnalysis(contentHash, api.result, commentHash.result, declared.result, references.result), comments.result)
+  }
+
+  private def unquote(id: String): String =
+    if (id.length > 1 && id.head == '`' && id.last == '`') id.substring(1, id.length - 1) else id
+}
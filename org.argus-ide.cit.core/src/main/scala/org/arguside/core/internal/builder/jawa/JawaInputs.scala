@@ -6,8 +6,9 @@ import org.eclipse.core.runtime.SubMonitor
 import org.sireum.jawa.sjc.compile.CompileProgress
 import org.sireum.jawa.sjc.compile.Compilers
 import org.sireum.jawa.sjc.compile.JawaCompiler
+import org.sireum.jawa.sjc.compile.JavaCompiler
+import org.sireum.jawa.sjc.log.Logger
 import org.sireum.jawa.sjc.compile.DefinesClass
-import java.util.zip.ZipFile
 import org.sireum.jawa.sjc.util.cp.ClasspathUtilities
 import org.sireum.jawa.sjc.util.cp.Locate
 import org.sireum.util._
@@ -23,7 +24,8 @@ class JawaInputs(
     project: IArgusProject,
     javaMonitor: SubMonitor,
     jawaProgress: CompileProgress,
-    srcOutputs: IList[(IContainer, IContainer)] = ilistEmpty) {
+    srcOutputs: IList[(IContainer, IContainer)] = ilistEmpty,
+    compileJava: Boolean = true) {
 
   def sources = sourceFiles
   
@@ -45,13 +47,20 @@ class JawaInputs(
   
   def compilers: Compilers[JawaCompiler] = {
     new Compilers[JawaCompiler] {
-      def javac = new JavaEclipseCompiler(project.underlying, javaMonitor)
+      def javac = if (compileJava) new JavaEclipseCompiler(project.underlying, javaMonitor) else NoJavaCompiler
       def jawac = new JawaCompiler()
     }
   }
   
 }
 
+/** Used by compilations that only contain Jawa sources, e.g. the parallel workers,
+ *  which must not trigger the (single threaded) JDT builder.
+ */
+private[jawa] object NoJavaCompiler extends JavaCompiler {
+  def compile(sources: IList[File], options: IList[String], log: Logger): Unit = ()
+}
+
 private[jawa] object Locator {
   val NoClass = new DefinesClass {
     def apply(className: String) = false
@@ -61,24 +70,11 @@ private[jawa] object Locator {
     if (f.isDirectory)
       new DirectoryLocator(f)
     else if (f.exists && ClasspathUtilities.isArchive(f))
-      new JarLocator(f)
+      ClasspathIndex(f)
     else
       NoClass
 
   class DirectoryLocator(dir: File) extends DefinesClass {
     def apply(className: String): Boolean = Locate.classFile(dir, className).isFile
   }
-
-  class JarLocator(jar: File) extends DefinesClass {
-    lazy val entries: Set[String] = {
-      val zipFile = new ZipFile(jar, ZipFile.OPEN_READ)
-      try {
-        import scala.collection.JavaConverters._
-        zipFile.entries.asScala.filterNot(_.isDirectory).map(_.getName).toSet
-      } finally
-        zipFile.close()
-    }
-
-    def apply(className: String): Boolean = entries.contains(className)
-  }
-}
\ No newline at end of file
+}
@@ -0,0 +1,193 @@
+package org.arguside.core.internal.compiler
+
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+import java.util.zip.GZIPInputStream
+import java.util.zip.GZIPOutputStream
+import org.eclipse.jdt.core.IClasspathEntry
+import org.eclipse.jdt.core.JavaModelException
+import org.osgi.framework.FrameworkUtil
+import org.arguside.core.IArgusPlugin
+import org.arguside.core.IArgusProject
+import org.arguside.core.compiler.JawaCompilationProblem
+import org.arguside.util.eclipse.EclipseUtils
+import org.arguside.logging.HasLogger
+import org.sireum.jawa.io.AbstractFile
+import org.sireum.jawa.sjc.interactive.Global
+import org.sireum.util._
+
+/** What the presentation compilers of a project last knew about its managed units, persisted
+ *  across compiler restarts and sessions.
+ *
+ *  For each unit, the hash of the contents the compiler last loaded, the fingerprint of the
+ *  sources, dependencies and classpath of the project at that time, and the problems it reported. A fresh
+ *  compiler doesn't need to load a unit whose key (see `UnitKey`) is unchanged right away: the
+ *  cached problems are shown until the unit is needed. Once a unit the problems may depend on
+ *  changes, the project fingerprint changes, and so do the keys of all the units.
+ *
+ *  The cache is discarded when the version of the Jawa compiler changes. The entries of files
+ *  that no longer exist are dropped when it is saved.
+ *
+ *  @param fingerprint computes the current fingerprint of the project, see `projectFingerprint`
+ *
+ *  @note This class is thread-safe.
+ */
+class CompilationUnitCache(store: File, fingerprint: () => Long) extends HasLogger {
+  import CompilationUnitCache._
+
+  /** Keyed by the path of the unit's file. */
+  private val entries: MMap[String, Entry] = mmapEmpty
+  private var loaded = false
+
+  /** The current fingerprint of the sources and classpath of the project. It is computed on
+   *  each call, callers compute it once for all the units they look up.
+   */
+  def projectFingerprint(): Long = fingerprint()
+
+  /** The cached problems of `file`, if it was last loaded with the given key. */
+  def problems(file: AbstractFile, key: UnitKey): Option[IList[JawaCompilationProblem]] = synchronized {
+    ensureLoaded()
+    entries.get(file.path) collect {
+      case entry if entry.key == key => entry.problems
+    }
+  }
+
+  def isUpToDate(file: AbstractFile, key: UnitKey): Boolean =
+    problems(file, key).isDefined
+
+  /** Record the problems reported for `file` when loaded with the given key. */
+  def update(file: AbstractFile, key: UnitKey, problems: IList[JawaCompilationProblem]): Unit = synchronized {
+    ensureLoaded()
+    entries(file.path) = Entry(key, problems)
+  }
+
+  def save(): Unit = synchronized {
+    if (loaded) {
+      // the paths are locations in the file system, see `EclipseFile.path`
+      entries retain { (path, _) => new File(path).isFile }
+      try {
+        store.getParentFile.mkdirs()
+        val out = new DataOutputStream(new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(store))))
+        try {
+          out.writeInt(FormatVersion)
+          out.writeUTF(CompilerVersion)
+          out.writeInt(entries.size)
+          for ((path, entry) <- entries) {
+            out.writeUTF(path)
+            out.writeLong(entry.key.contentHash)
+            out.writeLong(entry.key.projectFingerprint)
+            out.writeInt(entry.problems.size)
+            for (p <- entry.problems) {
+              out.writeUTF(p.fileName)
+              out.writeInt(p.severity)
+              out.writeUTF(p.message)
+              out.writeInt(p.start)
+              out.writeInt(p.end)
+              out.writeInt(p.lineNumber)
+              out.writeInt(p.columnNumber)
+            }
+          }
+        } finally out.close()
+      } catch {
+        case e: IOException =>
+          eclipseLog.error(s"Could not save the presentation compiler cache to $store", e)
+          store.delete()
+      }
+    }
+  }
+
+  private def ensureLoaded(): Unit =
+    if (!loaded) {
+      loaded = true
+      if (store.isFile) {
+        try load()
+        catch {
+          case e: IOException =>
+            logger.info(s"Discarding the presentation compiler cache ${store}: ${e.getMessage}")
+            entries.clear()
+        }
+      }
+    }
+
+  private def load(): Unit = {
+    val in = new DataInputStream(new GZIPInputStream(new BufferedInputStream(new FileInputStream(store))))
+    try {
+      if (in.readInt() != FormatVersion)
+        throw new IOException("unknown format version")
+      if (in.readUTF() != CompilerVersion)
+        throw new IOException("written by another compiler version")
+      for (_ <- 0 until in.readInt()) {
+        val path = in.readUTF()
+        val key = UnitKey(in.readLong(), in.readLong())
+        val problems = List.fill(in.readInt()) {
+          JawaCompilationProblem(in.readUTF(), in.readInt(), in.readUTF(), in.readInt(), in.readInt(), in.readInt(), in.readInt())
+        }
+        entries(path) = Entry(key, problems)
+      }
+    } finally in.close()
+  }
+}
+
+object CompilationUnitCache {
+  private final val FormatVersion = 2
+
+  private lazy val CompilerVersion: String =
+    Option(FrameworkUtil.getBundle(classOf[Global])).map(_.getVersion.toString).getOrElse("unknown")
+
+  /** What the problems of a unit depend on.
+   *
+   *  @param contentHash        the hash of the contents of the unit (see `ContentHash`)
+   *  @param projectFingerprint the fingerprint of the project (see `projectFingerprint`)
+   */
+  case class UnitKey(contentHash: Long, projectFingerprint: Long)
+
+  private case class Entry(key: UnitKey, problems: IList[JawaCompilationProblem])
+
+  /** A fingerprint of what the problems of the units of `project` depend on: the paths and
+   *  modification stamps of the sources of the project, the API fingerprints of the projects
+   *  it depends on (see `EclipseBuildManager.apiFingerprint`), and the paths and modification
+   *  times of the libraries on its classpath.
+   *
+   *  Edits of the procedure bodies of a dependency leave it unchanged. A dependency is seen
+   *  as it was last built.
+   */
+  def projectFingerprint(project: IArgusProject): Long = {
+    var hash = 17L
+    def add(value: Long): Unit = hash = hash * 31 + value
+
+    def addSources(p: IArgusProject): Unit =
+      for (file <- p.allSourceFiles().toSeq.sortBy(_.getFullPath.toString)) {
+        add(file.getFullPath.toString.hashCode)
+        add(file.getModificationStamp)
+      }
+
+    add(project.underlying.getName.hashCode)
+    addSources(project)
+    val dependencies = project.transitiveDependencies.flatMap(p => IArgusPlugin().asArgusProject(p))
+    for (p <- dependencies.sortBy(_.underlying.getName)) {
+      add(p.underlying.getName.hashCode)
+      p.buildManager.apiFingerprint match {
+        case Some(api) => add(api)
+        // without an API fingerprint, any change of its sources counts
+        case None      => addSources(p)
+      }
+    }
+
+    val classpath =
+      try project.javaProject.getResolvedClasspath(true).toList
+      catch { case _: JavaModelException => Nil }
+    for (cpe <- classpath if cpe.getEntryKind == IClasspathEntry.CPE_LIBRARY) {
+      add(cpe.getPath.toString.hashCode)
+      // a library is either in the workspace or in the file system
+      val location = Option(EclipseUtils.workspaceRoot.findMember(cpe.getPath)).map(_.getLocation.toFile).getOrElse(cpe.getPath.toFile)
+      add(location.lastModified)
+    }
+    hash
+  }
+}
@@ -1,5 +1,7 @@
 package org.arguside.core.internal.compiler
 
+import java.util.concurrent.ConcurrentHashMap
+import scala.collection.JavaConverters._
 import scala.collection.concurrent
 import scala.collection.mutable
 import scala.collection.mutable.ArrayBuffer
@@ -10,13 +12,16 @@ import org.eclipse.jdt.internal.compiler.problem.ProblemSeverities
 import org.arguside.logging.HasLogger
 import org.eclipse.jdt.core.IMethod
 import org.arguside.core.internal.jdt.model.JawaSourceFile
-import org.arguside.core.extensions.SourceFileProviderRegistry
 import org.eclipse.core.runtime.Path
+import org.eclipse.jdt.core.JavaCore
+import org.eclipse.core.runtime.IPath
 import org.eclipse.core.resources.IFile
 import org.eclipse.jdt.internal.core.util.Util
 import org.arguside.core.IArgusProject
 import org.arguside.core.IArgusPlugin
 import scala.util.Try
+import scala.util.control.NonFatal
+import scala.concurrent.duration.Duration
 import org.eclipse.jface.text.IRegion
 import org.eclipse.jdt.core.IJavaProject
 import org.eclipse.jface.text.hyperlink.IHyperlink
@@ -66,7 +71,7 @@ import org.eclipse.core.resources.ResourcesPlugin
 import org.sireum.jawa.sjc.parser.DefSymbol
 import org.eclipse.jdt.ui.JavaUI
 
-class JawaPresentationCompiler(name: String) extends {
+class JawaPresentationCompiler(name: String, unitCache: Option[CompilationUnitCache] = None) extends {
   /*
    * Lock object for protecting compiler names. Names are cached in a global `Array[Char]`
    * and concurrent access may lead to overwritten names.
@@ -81,6 +86,7 @@ class JawaPresentationCompiler(name: String) extends {
   with JawaJavaMapper
   with JawaIndexBuilder
   with LocateAST
+  with RelatedUnitsPrefetcher
   with IJawaPresentationCompiler
   with HasLogger { self =>
 
@@ -91,87 +97,161 @@ class JawaPresentationCompiler(name: String) extends {
   def presentationReporter = reporter.asInstanceOf[JawaPresentationCompiler.PresentationReporter]
   presentationReporter.compiler = this
 
-  def compilationUnits: IList[InteractiveCompilationUnit] = {
-    val files = managedFiles.toList
-    for {
-      f <- files.collect { case ef: EclipseFile => ef }
-      icu <- SourceFileProviderRegistry.getProvider(f.workspacePath).createFrom(f.workspacePath)
-      if icu.exists
-    } yield icu
+  /** The units managed by this compiler, keyed by their file.
+   *
+   *  Kept next to the managed files of `Global`, so that checking whether a unit is managed
+   *  doesn't go through the source file providers.
+   */
+  private val managedUnits = new ConcurrentHashMap[AbstractFile, InteractiveCompilationUnit]
+
+  def compilationUnits: IList[InteractiveCompilationUnit] =
+    managedUnits.values.asScala.filter(_.exists).toList
+
+  private[arguside] def isManaged(icu: InteractiveCompilationUnit): Boolean =
+    managedUnits.containsKey(icu.file)
+
+  /** A rough estimate of the heap used by this compiler: a fixed overhead, plus the trees and
+   *  symbols of the loaded units, which grow with the size of their sources.
+   */
+  def estimatedFootprint: Long = {
+    var loadedChars = 0L
+    for (icu <- managedUnits.values.asScala if !deferredUnits.containsKey(icu.file))
+      loadedChars += icu.lastSourceMap().sourceFile.length
+    JawaPresentationCompiler.BaseFootprint + loadedChars * JawaPresentationCompiler.BytesPerSourceChar
   }
 
+  /** Managed units that are not loaded yet, with the key of the cached problems they report
+   *  meanwhile. See `askWarmReload`.
+   */
+  private val deferredUnits = new ConcurrentHashMap[AbstractFile, CompilationUnitCache.UnitKey]
+
   def askReloadManagedUnits() {
     askReload(compilationUnits)
   }
 
   /**
-   * The set of compilation units to be reloaded at the next refresh round.
+   * The compilation units to be reloaded at the next refresh round, with their latest contents.
    * Refresh rounds can be triggered by the reconciler, but also interactive requests
-   * (e.g. completion)
+   * (e.g. completion). Successive edits of a unit replace each other, so a unit is reloaded
+   * only once per round, with its last contents.
    */
-  private val scheduledUnits: MMap[InteractiveCompilationUnit, SourceFile] = mmapEmpty
-  
+  private val scheduledUnits = new ConcurrentHashMap[InteractiveCompilationUnit, SourceFile]
+
+  private val scheduler = new RequestScheduler(name, job => askForResponse(job))
+
   /**
    * Add a compilation unit (CU) to the set of CUs to be Reloaded at the next refresh round.
    */
   def scheduleReload(icu : InteractiveCompilationUnit, srcFile: SourceFile) : Unit = {
-    scheduledUnits.synchronized { scheduledUnits += ((icu, srcFile)) }
+    scheduledUnits.put(icu, srcFile)
   }
 
   /**
    * Reload the scheduled compilation units and reset the set of scheduled reloads.
    *  For any CU unknown by the compiler at reload, this is a no-op.
+   *
+   *  This doesn't wait for the reload: it is a `Reconcile` request, and the returned response
+   *  is completed once it ran. Callers that need the reload to be done (e.g. to read the
+   *  problems of a unit) wait on it.
    */
-  def flushScheduledReloads(): Response[Unit] = {
-    val res = new Response[Unit]
-    scheduledUnits.synchronized {
-      val reloadees = scheduledUnits.filter{(scu:(InteractiveCompilationUnit, SourceFile)) => compilationUnits.contains(scu._1)}.toList
-
-      if (reloadees.isEmpty) res.set(())
-      else {
-        val reloadFiles = reloadees map { case (_, srcFile) => srcFile }
-        askReload(reloadFiles, res)
-        logger.info(s"Flushed ${reloadFiles.mkString("", ",", "")}")
+  def flushScheduledReloads(): Response[Unit] =
+    submit(Reconcile)(reloadScheduledUnits())
+
+  /** Reload the scheduled units, on the compiler thread.
+   *
+   *  The scheduled units are taken when a request runs, not when it is made, so a loading
+   *  request that runs before a pending flush still sees the latest edits.
+   */
+  private def reloadScheduledUnits(): Unit = {
+    val reloadFiles = List.newBuilder[SourceFile]
+    val units = scheduledUnits.keySet.iterator
+    while (units.hasNext) {
+      val icu = units.next()
+      // `remove` returns the latest contents, even if the unit was scheduled again meanwhile
+      val srcFile = scheduledUnits.remove(icu)
+      if ((srcFile ne null) && isManaged(icu)) {
+        deferredUnits.remove(icu.file)
+        reloadFiles += srcFile
       }
-      scheduledUnits.clear()
     }
-    res.get
-    res
+
+    reloadFiles.result match {
+      case Nil =>
+      case files =>
+        logger.info(s"Flushed ${files.mkString("", ",", "")}")
+        // on the compiler thread, the request is run right away
+        askReload(files, new Response[Unit])
+    }
   }
 
+  /* The `ask` operations of `Global` are ordered by the scheduler, like `submit`: queries of
+   * hovers and hyperlinks are `Interactive`, loading and structure requests are `Reconcile`.
+   * A request holds the compiler until `Global` answered it, so a query waits at most for one
+   * loading request. Loading requests reload the scheduled units first. Queries don't wait for
+   * them: they are answered from the trees loaded last, and leave the reload queued behind them.
+   */
+
+  override def askReload(sources: List[SourceFile], response: Response[Unit]): Unit =
+    scheduler.forward(Reconcile, response) { super.askReload(sources, _) }
+
   override def askFilesDeleted(sources: IList[SourceFile], response: Response[Unit]): Unit = {
-    flushScheduledReloads()
-    super.askFilesDeleted(sources, response)
+    sources foreach { src =>
+      managedUnits.remove(src.file)
+      deferredUnits.remove(src.file)
+      presentationReporter.forget(src.file)
+    }
+    scheduler.forward(Reconcile, response) { res =>
+      reloadScheduledUnits()
+      super.askFilesDeleted(sources, res)
+    }
   }
 
-  override def askLinkPos(sym: JawaSymbol, response: Response[Position]): Unit = {
-    flushScheduledReloads()
-    super.askLinkPos(sym, response)
-  }
+  override def askParsedEntered(source: SourceFile, keepLoaded: Boolean, response: Response[CompilationUnit]): Unit =
+    scheduler.forward(Reconcile, response) { res =>
+      reloadScheduledUnits()
+      loadDeferred(source.file)
+      super.askParsedEntered(source, keepLoaded, res)
+    }
 
-  override def askParsedEntered(source: SourceFile, keepLoaded: Boolean, response: Response[CompilationUnit]): Unit = {
-    flushScheduledReloads()
-    super.askParsedEntered(source, keepLoaded, response)
-  }
+  // no response to wait for, `Global` is only asked to reorder its work
+  override def askToDoFirst(source: SourceFile): Unit =
+    submit(Reconcile) {
+      reloadScheduledUnits()
+      loadDeferred(source.file)
+      super.askToDoFirst(source)
+    }
 
-  override def askToDoFirst(source: SourceFile): Unit = {
-    flushScheduledReloads()
-    super.askToDoFirst(source)
-  }
-  
   override def askTypeAt(pos: Position, response: Response[Option[JawaSymbol]]): Unit = {
-    flushScheduledReloads()
-    super.askTypeAt(pos, response)
+    scheduler.forward(Interactive, response) { res =>
+      // a deferred unit has no trees to answer from
+      loadDeferred(pos.source.file)
+      super.askTypeAt(pos, res)
+    }
+    flushPendingReloads()
   }
 
-  override def askStructure(sourceFile: SourceFile, keepLoaded: Boolean): Response[CompilationUnit] = {
-    withResponse[CompilationUnit](askStructure(keepLoaded)(sourceFile, _))
+  override def askLinkPos(sym: JawaSymbol, response: Response[Position]): Unit = {
+    scheduler.forward(Interactive, response) { super.askLinkPos(sym, _) }
+    flushPendingReloads()
   }
 
+  /** Queue a flush behind a query, if units are waiting to be reloaded. */
+  private def flushPendingReloads(): Unit =
+    if (!scheduledUnits.isEmpty) flushScheduledReloads()
+
+  override def askStructure(sourceFile: SourceFile, keepLoaded: Boolean): Response[CompilationUnit] =
+    withResponse[CompilationUnit] { res =>
+      scheduler.forward(Reconcile, res) { askStructure(keepLoaded)(sourceFile, _) }
+    }
+
   def problemsOf(file: AbstractFile): IList[JawaCompilationProblem] = {
+    val deferred = deferredUnits.get(file)
+    if (deferred ne null)
+      return unitCache.flatMap(_.problems(file, deferred)).getOrElse(Nil)
+
     getCompilationUnit(file) match {
       case Some(unit) =>
-        unit.problems.toList flatMap presentationReporter.eclipseProblem
+        presentationReporter.eclipseProblems(file, unit.problems.toList)
       case None =>
         logger.info("Missing unit for file %s when retrieving errors. Errors will not be shown in this file".format(file))
         logger.info(getCompilationUnits.toString)
@@ -188,7 +268,11 @@ class JawaPresentationCompiler(name: String) extends {
    *  a timeout value when awaiting on a future returned by this method.
    */
   def asyncExec[A](op: => A): Response[A] = {
-    askForResponse(() => op)
+    submit(Interactive)(op)
+  }
+
+  def submit[A](requestClass: RequestClass, supersedes: Option[Any], timeout: Duration)(op: => A): Response[A] = {
+    scheduler.submit(requestClass, supersedes, timeout)(op)
   }
 
   /** Ask to put scu in the beginning of the list of files to be resolved.
@@ -203,55 +287,140 @@ class JawaPresentationCompiler(name: String) extends {
    *  compiler, it will be from now on.
    */
   def askReload(scu: InteractiveCompilationUnit, source: SourceFile): Response[Unit] = {
+    managedUnits.put(scu.file, scu)
+    deferredUnits.remove(scu.file)
     withResponse[Unit] { res => askReload(List(source), res) }
   }
 
   /** Atomically load a list of units in the current presentation compiler. */
   def askReload(units: List[InteractiveCompilationUnit]): Response[Unit] = {
-    withResponse[Unit] { res => askReload(units.map(_.lastSourceMap().sourceFile), res) }
+    units foreach { icu =>
+      managedUnits.put(icu.file, icu)
+      deferredUnits.remove(icu.file)
+    }
+    val sources = ParallelPreparation.map(units)(_.lastSourceMap().sourceFile)
+    withResponse[Unit] { res => askReload(sources, res) }
+  }
+
+  /** Load a list of units, like `askReload`, except that the units whose contents didn't change,
+   *  nor the sources and classpath of the project, since the last time a compiler of this project
+   *  reported their problems are not loaded yet.
+   *  They are managed, report their cached problems, and are loaded the first time they are
+   *  edited or queried.
+   */
+  def askWarmReload(units: List[InteractiveCompilationUnit]): Response[Unit] = {
+    val projectFingerprint = unitCache.fold(0L)(_.projectFingerprint())
+    // the contents are read and hashed on the worker pool. The source files of the
+    // unchanged units are not created, they are created when the units are loaded
+    val prepared = ParallelPreparation.map(units) { icu =>
+      val key = CompilationUnitCache.UnitKey(icu.lastSourceMap().contentHash, projectFingerprint)
+      (icu, key, unitCache.exists(_.isUpToDate(icu.file, key)))
+    }
+    val (unchanged, changed) = prepared partition (_._3)
+    for ((icu, key, _) <- unchanged) {
+      managedUnits.put(icu.file, icu)
+      deferredUnits.put(icu.file, key)
+    }
+    if (unchanged.nonEmpty)
+      logger.info(s"Deferred loading ${unchanged.size} unchanged unit(s), reloading ${changed.size}")
+
+    if (changed.nonEmpty) askReload(changed.map(_._1))
+    else {
+      val res = new Response[Unit]
+      res.set(())
+      res
+    }
+  }
+
+  /** Load `file` if its loading was deferred by `askWarmReload`. */
+  private def loadDeferred(file: AbstractFile): Unit =
+    if (deferredUnits.remove(file) ne null) {
+      val icu = managedUnits.get(file)
+      if (icu ne null) askReload(List(icu.lastSourceMap().sourceFile), new Response[Unit])
+    }
+
+  /** Record the problems of the loaded units that have no pending changes, for the next compiler.
+   *
+   *  @note Must be called on the compiler thread, it reads the loaded units.
+   */
+  private def saveUnitCache(): Unit = unitCache foreach { cache =>
+    val projectFingerprint = cache.projectFingerprint()
+    for {
+      icu <- compilationUnits
+      if !deferredUnits.containsKey(icu.file) && !scheduledUnits.containsKey(icu)
+      if getCompilationUnit(icu.file).isDefined
+    } cache.update(icu.file, CompilationUnitCache.UnitKey(icu.lastSourceMap().contentHash, projectFingerprint), problemsOf(icu.file))
+    cache.save()
   }
 
   def filesDeleted(units: Seq[InteractiveCompilationUnit]) {
     logger.info("files deleted:\n" + (units map (_.file.path) mkString "\n"))
+    units foreach (scheduledUnits.remove(_))
     if (!units.isEmpty)
       askFilesDeleted(units.map(_.lastSourceMap().sourceFile).toList)
   }
 
   def discardCompilationUnit(scu: InteractiveCompilationUnit): Unit = {
     logger.info("discarding " + scu.file.path)
-    asyncExec { removeUnitOf(scu.lastSourceMap().sourceFile) }.getOption()
+    managedUnits.remove(scu.file)
+    deferredUnits.remove(scu.file)
+    scheduledUnits.remove(scu)
+    presentationReporter.forget(scu.file)
+    submit(Reconcile) { removeUnitOf(scu.lastSourceMap().sourceFile) }.getOption()
   }
 
   /** Tell the presentation compiler to refresh the given files,
    *  if they are not managed by the presentation compiler already.
    */
   def refreshChangedFiles(files: IList[IFile]) {
-    // transform to batch source files
-    val freshSources: IList[SourceFile] = files.collect {
-      // When a compilation unit is moved (e.g. using the Move refactoring) between packages,
-      // an ElementChangedEvent is fired but with the old IFile name. Ignoring the file does
-      // not seem to cause any bad effects later on, so we simply ignore these files -- Mirko
-      // using an Util class from jdt.internal to read the file, Eclipse doesn't seem to
-      // provide an API way to do it -- Luc
-      case file if file.exists => new FgSourceFile(EclipseResource(file), Util.getResourceContentsAsCharArray(file))
-    }
-
     // only the files not already managed should be refreshed
     val managedFs = managedFiles
-    val notLoadedFiles = freshSources.filter(f => !managedFs(f.file))
-
-    notLoadedFiles.foreach(file => {
-      // call askParsedEntered to force the refresh without loading the file
-      val r = withResponse[CompilationUnit] { askParsedEntered(file, false, _) }
+    // When a compilation unit is moved (e.g. using the Move refactoring) between packages,
+    // an ElementChangedEvent is fired but with the old IFile name. Ignoring the file does
+    // not seem to cause any bad effects later on, so we simply ignore these files -- Mirko
+    val toRefresh = files.filter(file => file.exists && !managedFs(EclipseResource(file)))
+
+    // transform to batch source files, reading them on the worker pool
+    // using an Util class from jdt.internal to read the file, Eclipse doesn't seem to
+    // provide an API way to do it -- Luc
+    val notLoadedFiles: IList[SourceFile] = ParallelPreparation.map(toRefresh) { file =>
+      new FgSourceFile(EclipseResource(file), Util.getResourceContentsAsCharArray(file))
+    }
 
-      r.get
-    })
+    // call askParsedEntered to force the refresh without loading the file. The requests are not
+    // waited for, this is called from the notifications of the Java model
+    notLoadedFiles foreach { file =>
+      askParsedEntered(file, false, new Response[CompilationUnit])
+    }
 
-    // reconcile the opened editors if some files have been refreshed
+    // reconcile the opened editors if some files have been refreshed. The reload is a request
+    // of the same class, it runs after the files are entered
     if (notLoadedFiles.nonEmpty)
       askReloadManagedUnits()
   }
 
+  def sourcesRemoved(paths: IList[IPath]) {
+    def isRemoved(file: AbstractFile) = file match {
+      case EclipseFile(ifile) =>
+        paths.exists(_.isPrefixOf(ifile.getFullPath)) &&
+          !(ifile.exists && JavaCore.create(ifile.getProject).isOnClasspath(ifile))
+      case _ => false
+    }
+
+    val removed = managedFiles.filter(isRemoved).toList
+    if (removed.nonEmpty) {
+      logger.info("sources removed:\n" + (removed map (_.path) mkString "\n"))
+      val sources = removed map { file =>
+        // the file is gone, its contents don't matter
+        Option(managedUnits.get(file)).map(_.lastSourceMap().sourceFile).getOrElse(new FgSourceFile(file, Array.emptyCharArray))
+      }
+      removed foreach (file => Option(managedUnits.get(file)) foreach (scheduledUnits.remove(_)))
+      askFilesDeleted(sources)
+      // the remaining units may refer to the removed ones
+      askReloadManagedUnits()
+    }
+  }
+
 //  override def synchronizeNames = true
 
   override def logError(msg: String, t: Throwable) =
@@ -259,6 +428,12 @@ class JawaPresentationCompiler(name: String) extends {
 
   def destroy() {
     logger.info("shutting down presentation compiler on project: " + name)
+    scheduler.shutdown()
+    // the cache is saved by a last request, once the running one is done
+    askForResponse { () =>
+      try saveUnitCache()
+      catch { case NonFatal(e) => eclipseLog.error("Could not save the presentation compiler cache of " + name, e) }
+    }.getOption()
     askShutdown()
   }
 
@@ -405,6 +580,10 @@ class JawaPresentationCompiler(name: String) extends {
 }
 
 object JawaPresentationCompiler {
+  /** Used by `estimatedFootprint`, measured on typical decompiled APKs. */
+  private final val BaseFootprint = 16L * 1024 * 1024
+  private final val BytesPerSourceChar = 48L
+
   case class InvalidThread(msg: String) extends RuntimeException(msg)
 
   class PresentationReporter extends InteractiveReporter {
@@ -417,6 +596,28 @@ object JawaPresentationCompiler {
         case INFO.id    => ProblemSeverities.Ignore
       }
 
+    /** The problems last translated for each file. A unit keeps its problems until it is
+     *  reloaded, so problems are looked up by identity: the same problem of the same loaded
+     *  unit is translated only once, however many times the problems of the unit are asked.
+     */
+    private val translated = new ConcurrentHashMap[AbstractFile, java.util.IdentityHashMap[Problem, Option[JawaCompilationProblem]]]
+
+    def eclipseProblems(file: AbstractFile, problems: IList[Problem]): IList[JawaCompilationProblem] = {
+      val previous = translated.get(file)
+      val current = new java.util.IdentityHashMap[Problem, Option[JawaCompilationProblem]]
+      val result = problems flatMap { prob =>
+        val eclipseProb =
+          if ((previous ne null) && previous.containsKey(prob)) previous.get(prob)
+          else eclipseProblem(prob)
+        current.put(prob, eclipseProb)
+        eclipseProb
+      }
+      translated.put(file, current)
+      result
+    }
+
+    def forget(file: AbstractFile): Unit = translated.remove(file)
+
     def eclipseProblem(prob: Problem): Option[JawaCompilationProblem] = {
       import prob._
       if (pos.isDefined) {
@@ -0,0 +1,42 @@
+package org.arguside.core.internal.compiler
+
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import org.sireum.util._
+
+/** Prepares many sources for the presentation compiler on a pool of worker threads.
+ *
+ *  Reading the contents of a source, building its source map and hashing it don't need the
+ *  compiler thread. When a compiler (re)loads many units at once, this is done here, in
+ *  parallel, and only the prepared sources are handed to the compiler, in one request.
+ *
+ *  Items are split in contiguous chunks, one per worker, and the results keep the order of
+ *  the items. Few items are prepared on the calling thread.
+ */
+private[compiler] object ParallelPreparation {
+  private final val MinItemsPerWorker = 16
+
+  def map[A, B](items: IList[A])(prepare: A => B): IList[B] = {
+    val workers = math.min(Runtime.getRuntime.availableProcessors, items.size / MinItemsPerWorker)
+    if (workers <= 1) items map prepare
+    else {
+      val chunks = items.grouped((items.size + workers - 1) / workers).toList
+      val pool = Executors.newFixedThreadPool(chunks.size)
+      try {
+        val futures = chunks map { chunk =>
+          pool.submit(new Callable[IList[B]] {
+            def call(): IList[B] = chunk map prepare
+          })
+        }
+
+        try futures.flatMap(_.get)
+        catch {
+          case e: ExecutionException =>
+            futures foreach (_.cancel(true))
+            throw e.getCause
+        }
+      } finally pool.shutdownNow()
+    }
+  }
+}
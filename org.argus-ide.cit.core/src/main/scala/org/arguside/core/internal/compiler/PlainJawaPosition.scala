@@ -2,6 +2,7 @@ package org.arguside.core.internal.compiler
 
 import org.arguside.core.compiler.IPositionInformation
 import org.arguside.core.compiler.ISourceMap
+import org.arguside.util.internal.CompactText
 import org.sireum.jawa.io.SourceFile
 import org.sireum.jawa.io.AbstractFile
 import org.sireum.jawa.io.FgSourceFile
@@ -16,11 +17,31 @@ class PlainJawaPosition(sourceFile: SourceFile) extends IPositionInformation {
   def lineToOffset(line: Int): Int = sourceFile.lineToOffset(line)
 }
 
-/** An implementation of `ISourceMap` that is the identity transformation. */
-class PlainJawaInfo(file: AbstractFile, override val originalSource: Array[Char]) extends ISourceMap {
+/** Position information for untranslated text, that doesn't need its `SourceFile`. */
+private class PlainTextPosition(text: CompactText) extends IPositionInformation {
+  def apply(pos: Int): Int = pos
+
+  def offsetToLine(offset: Int): Int = text.offsetToLine(offset)
+
+  def lineToOffset(line: Int): Int = text.lineToOffset(line)
+}
+
+/** An implementation of `ISourceMap` that is the identity transformation.
+ *
+ *  The contents are kept compact (see `CompactText`): a unit that is not loaded in the
+ *  presentation compiler doesn't hold its contents as characters. The `SourceFile`, which
+ *  does, is only created when the unit is loaded.
+ */
+class PlainJawaInfo(file: AbstractFile, text: CompactText) extends ISourceMap {
+  def this(file: AbstractFile, contents: Array[Char]) = this(file, CompactText(contents))
+
+  /** A fresh copy of the contents. */
+  override def originalSource: Array[Char] = text.toCharArray
   override lazy val sourceFile = new FgSourceFile(file, jawaSource)
-  override val jawaPos = IPositionInformation.plainJawa(sourceFile)
-  override val originalPos = IPositionInformation.plainJawa(sourceFile)
+  override val jawaPos: IPositionInformation = new PlainTextPosition(text)
+  override val originalPos: IPositionInformation = jawaPos
+
+  override def contentHash: Long = text.contentHash
 
   override def jawaLine(line: Int): Int = line
   override def originalLine(line: Int): Int = line
@@ -0,0 +1,108 @@
+package org.arguside.core.internal.compiler
+
+import java.util.Timer
+import java.util.TimerTask
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import scala.collection.JavaConverters._
+import scala.collection.mutable.Subscriber
+import org.arguside.core.IArgusPlugin
+import org.arguside.logging.HasLogger
+import org.arguside.ui.internal.preferences.ResourcesPreferences
+import org.sireum.util._
+
+/** Keeps the presentation compilers of all projects within a heap budget.
+ *
+ *  The footprint of each live compiler is estimated from the sources it loaded. When the
+ *  total goes over the budget (`ResourcesPreferences.PRES_COMP_HEAP_BUDGET`), the least
+ *  recently used compilers are evicted: they are shut down, and their units are loaded again
+ *  by the next request to their project. The most recently used compiler, the ones used
+ *  in the last few seconds, and the ones serving a request, are never evicted.
+ *
+ *  The budget is checked periodically, and each time a compiler starts, until `stop`.
+ */
+object PresentationCompilerManager extends Subscriber[PresentationCompilerActivity, PresentationCompilerProxy] with HasLogger {
+
+  private final val CheckPeriodMillis = 30000L
+  private final val MinIdleMillis = 10000L
+  private final val MB = 1024L * 1024
+
+  private val timer: Timer = new Timer( /*isDaemon =*/ true)
+
+  private val prefStore = IArgusPlugin().getPreferenceStore()
+
+  /** The registered proxies, with the last time their compiler was used. */
+  private val lastActivity = new ConcurrentHashMap[PresentationCompilerProxy, java.lang.Long]
+
+  private val evictionCount = new AtomicInteger
+
+  private val checker = new TimerTask {
+    override def run(): Unit = enforceBudget()
+  }
+  timer.schedule(checker, CheckPeriodMillis, CheckPeriodMillis)
+
+  /** The footprint of the live compiler of a project, and how long it has been idle. */
+  case class CompilerStatus(name: String, footprint: Long, idleMillis: Long)
+
+  def register(proxy: PresentationCompilerProxy): Unit = {
+    lastActivity.put(proxy, System.currentTimeMillis())
+    proxy.subscribe(this)
+  }
+
+  def unregister(proxy: PresentationCompilerProxy): Unit = {
+    proxy.removeSubscription(this)
+    lastActivity.remove(proxy)
+  }
+
+  /** Stop checking the budget. Called when the plugin stops. */
+  def stop(): Unit = timer.cancel()
+
+  def budget: Long = prefStore.getInt(ResourcesPreferences.PRES_COMP_HEAP_BUDGET) * MB
+
+  def evictions: Int = evictionCount.get
+
+  /** The live compilers, least recently used first. */
+  def status: IList[CompilerStatus] = {
+    val now = System.currentTimeMillis()
+    live.map { case (proxy, last, footprint) => CompilerStatus(proxy.name, footprint, now - last) }
+  }
+
+  def estimatedTotal: Long = live.map(_._3).sum
+
+  override def notify(pub: PresentationCompilerProxy, event: PresentationCompilerActivity): Unit = event match {
+    case Activity => noteActivity(pub)
+    case Start =>
+      noteActivity(pub)
+      // a new compiler may take us over the budget, check without waiting for the next period
+      timer.schedule(new TimerTask { override def run(): Unit = enforceBudget() }, 0)
+    case Shutdown | Restart => ()
+  }
+
+  private def noteActivity(proxy: PresentationCompilerProxy): Unit =
+    if (lastActivity.containsKey(proxy)) lastActivity.put(proxy, System.currentTimeMillis())
+
+  private def live: IList[(PresentationCompilerProxy, Long, Long)] =
+    (for {
+      (proxy, last) <- lastActivity.asScala.toList
+      footprint <- proxy.estimatedFootprint
+    } yield (proxy, last.longValue, footprint)).sortBy(_._2)
+
+  private def enforceBudget(): Unit = synchronized {
+    try {
+      val compilers = live
+      val limit = budget
+      var total = compilers.map(_._3).sum
+      val now = System.currentTimeMillis()
+      // the activity is noted when a request starts and ends, a long request looks idle meanwhile
+      for ((proxy, last, footprint) <- compilers.dropRight(1) if total > limit && now - last >= MinIdleMillis && !proxy.isBusy) {
+        if (proxy.evict()) {
+          logger.info(s"Evicted the presentation compiler of ${proxy.name} (~${footprint / MB}MB), over the budget of ${limit / MB}MB by ${(total - limit) / MB}MB")
+          evictionCount.incrementAndGet()
+          total -= footprint
+        }
+      }
+    } catch {
+      case e: Throwable => logger.error("Unexpected error occurred while enforcing the presentation compiler heap budget", e)
+    }
+  }
+}
@@ -4,6 +4,7 @@ package internal.compiler
 import org.arguside.logging.HasLogger
 import scala.tools.nsc.Settings
 import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
 import scala.reflect.internal.MissingRequirementError
 import scala.reflect.internal.FatalError
 import org.eclipse.core.runtime.IStatus
@@ -15,13 +16,16 @@ import org.arguside.core.compiler.IJawaPresentationCompiler
 import org.arguside.core.compiler.InteractiveCompilationUnit
 import org.arguside.ui.internal.editor.JawaEditor
 import scala.collection.mutable.Publisher
+import scala.util.Try
+import org.eclipse.core.resources.ResourcesPlugin
 
 /** Holds a reference to a 'live' presentation compiler and manages its lifecycle.
   *
   * @note This class is thread-safe.
   */
-final class PresentationCompilerProxy(name: String) extends IPresentationCompilerProxy
+final class PresentationCompilerProxy(val name: String) extends IPresentationCompilerProxy
     with Publisher[PresentationCompilerActivity] with HasLogger {
+  import PresentationCompilerProxy._
 
   type Pub = PresentationCompilerProxy
 
@@ -49,6 +53,26 @@ final class PresentationCompilerProxy(name: String) extends IPresentationCompile
     */
   private var isInitializing: Boolean = false
 
+  /** The problems of the managed units, shared by the successive compilers of the project, and
+    * persisted in its working area. `None` if `name` is not the name of an open project.
+    */
+  private lazy val unitCache: Option[CompilationUnitCache] =
+    for {
+      project <- Try(ResourcesPlugin.getWorkspace.getRoot.getProject(name)).toOption
+      if project.isAccessible
+      location <- Option(project.getWorkingLocation(CitConstants.PluginId))
+    } yield new CompilationUnitCache(location.append(UnitCacheFileName).toFile, () =>
+      IArgusPlugin().asArgusProject(project).fold(0L)(CompilationUnitCache.projectFingerprint))
+
+  /** The units of the compiler shut down by `evict`.
+    *
+    * @note All access are guarded by `pcLock`.
+    */
+  private var evictedUnits: List[InteractiveCompilationUnit] = Nil
+
+  /** The number of operations running on the compiler, see `internal`. A compiler in use is not evicted. */
+  private val inFlight = new AtomicInteger
+
   /** Signal that the presentation compiler should be restarted before processing the next request. */
   @volatile private var restartNextTime = false
 
@@ -81,7 +105,12 @@ final class PresentationCompilerProxy(name: String) extends IPresentationCompile
         val shouldRestart = restartNextTime
         restartNextTime = false
 
-        if (pc eq null) initialize()
+        if (pc eq null) {
+          initialize()
+          // the units of an evicted compiler are loaded again
+          unitsToReload = evictedUnits
+          evictedUnits = Nil
+        }
         else if (shouldRestart) {
           // Before restarting, keep track of the compilation units managed by the current presentation compiler
           unitsToReload = Option(pc).map(_.compilationUnits).getOrElse(Nil)
@@ -96,18 +125,25 @@ final class PresentationCompilerProxy(name: String) extends IPresentationCompile
        * may not be loaded in the new presentation compiler. This can happen if a concurrent presentation compiler restart request is handled
        * before the current presentation compiler was given a change to load the `unitsToReload`.
        */
-      if((pc ne null) && unitsToReload.nonEmpty) pc.askReload(unitsToReload).get
+      if((pc ne null) && unitsToReload.nonEmpty) pc.askWarmReload(unitsToReload).get
       pc
     }
 
     publish(Activity)
-    Option(obtainPc()) flatMap { pc =>
-      val result = Option(op(pc))
-      publish(Activity)
-      result
-    }
+    // counted before the compiler is obtained, so that `evict` can't shut it down meanwhile
+    inFlight.incrementAndGet()
+    try {
+      Option(obtainPc()) flatMap { pc =>
+        val result = Option(op(pc))
+        publish(Activity)
+        result
+      }
+    } finally inFlight.decrementAndGet()
   }
 
+  /** Is an operation running on the compiler? */
+  def isBusy: Boolean = inFlight.get > 0
+
   /** Updates `pc` with a new Presentation Compiler instance.
     *
     * @note Precondition: Expects `pc` to be `null`.
@@ -137,17 +173,38 @@ final class PresentationCompilerProxy(name: String) extends IPresentationCompile
     *
     * @note If you need the presentation compiler to be re-initialized (because, for instance, you have changed the project's classpath), use `askRestart`.
     */
-  def shutdown(): Unit = {
-    publish(Shutdown)
+  def shutdown(): Unit = doShutdown(keepUnits = false)
+
+  /** Shutdown the presentation compiler to free memory. Unlike `shutdown`, the units it manages are
+    * loaded again by the compiler started on the next request.
+    *
+    * @return false if the compiler is in use, in which case it is left running.
+    */
+  def evict(): Boolean = doShutdown(keepUnits = true)
+
+  private def doShutdown(keepUnits: Boolean): Boolean = {
     val oldPc = pcLock.synchronized {
-      val temp = pc
-      pc = null
-      temp
+      // checked under the lock, an operation that starts later obtains a new compiler
+      if (keepUnits && isBusy) None
+      else {
+        val temp = pc
+        pc = null
+        evictedUnits = if (keepUnits && (temp ne null)) temp.compilationUnits else Nil
+        Some(temp)
+      }
     }
 
-    if (oldPc ne null) oldPc.destroy()
+    oldPc foreach { temp =>
+      publish(Shutdown)
+      if (temp ne null) temp.destroy()
+    }
+    oldPc.isDefined
   }
 
+  /** The estimated heap footprint of the live compiler, if any. Doesn't start a compiler. */
+  def estimatedFootprint: Option[Long] =
+    pcLock.synchronized(Option(pc)).map(_.estimatedFootprint)
+
   /** Creates a presentation compiler instance.
    *
    *  @note Should not throw.
@@ -155,7 +212,7 @@ final class PresentationCompilerProxy(name: String) extends IPresentationCompile
   private def create(): JawaPresentationCompiler = {
     pcLock.synchronized {
       try {
-        val pc = new JawaPresentationCompiler(name)
+        val pc = new JawaPresentationCompiler(name, unitCache)
 //        logger.debug("Presentation compiler classpath: " + pc.classPath)
         publish(Start)
         pc
@@ -175,6 +232,10 @@ final class PresentationCompilerProxy(name: String) extends IPresentationCompile
   }
 }
 
+object PresentationCompilerProxy {
+  private final val UnitCacheFileName = "presentation-compiler.cache"
+}
+
 /** Listeners can receive this kind of events */
 sealed trait PresentationCompilerActivity
 
@@ -0,0 +1,94 @@
+package org.arguside.core.internal.compiler
+
+import scala.collection.mutable
+import org.eclipse.core.runtime.IProgressMonitor
+import org.eclipse.core.runtime.Status
+import org.eclipse.core.runtime.jobs.Job
+import org.arguside.core.compiler.IJawaPresentationCompiler.Background
+import org.arguside.core.compiler.IJawaPresentationCompiler.Implicits._
+import org.arguside.core.compiler.InteractiveCompilationUnit
+import org.arguside.core.internal.jdt.model.JawaCompilationUnit
+import org.arguside.util.eclipse.EclipseUtils
+import org.arguside.util.internal.JavaElementFinder
+import org.sireum.jawa.JavaKnowledge
+import org.sireum.jawa.JawaType
+import org.sireum.jawa.sjc.parser._
+import org.sireum.util._
+
+/** Prepares the units an opened unit refers to, so that the first navigation into them
+ *  doesn't pay for parsing them and building their structure.
+ *
+ *  The classes referred to by the types, methods and fields of the unit are collected by a
+ *  background request to the compiler. Their source units are then opened in the Java model
+ *  by a low priority job, which builds their structure through the compiler (see
+ *  `JawaCompilationUnit.buildStructure`), in the order of their first reference.
+ *
+ *  Prefetching is bounded by a number of units and their total size, and is skipped when the
+ *  presentation compilers are over their heap budget (see `PresentationCompilerManager`).
+ */
+trait RelatedUnitsPrefetcher { self: JawaPresentationCompiler =>
+  import RelatedUnitsPrefetcher._
+
+  def askPrefetchRelated(icu: InteractiveCompilationUnit): Unit =
+    if (PresentationCompilerManager.estimatedTotal < PresentationCompilerManager.budget) {
+      // a newer request for the same unit replaces this one
+      val referenced = submit(Background, supersedes = Some(("prefetch", icu.file))) {
+        parseCompilationUnit(icu.lastSourceMap().sourceFile).map(referencedClasses).getOrElse(Nil)
+      }
+
+      val job = EclipseUtils.prepareJob(s"Prefetching the units referenced by ${icu.file.name}", priority = Job.DECORATE) { monitor =>
+        referenced.getOption() foreach { types =>
+          prefetch(icu, types, monitor)
+        }
+        Status.OK_STATUS
+      }
+      job.setSystem(true)
+      job.schedule()
+    }
+
+  private def prefetch(icu: InteractiveCompilationUnit, types: IList[JawaType], monitor: IProgressMonitor): Unit = {
+    val project = icu.argusProject.underlying
+    var units = 0
+    var size = 0L
+    val seen = mutable.HashSet.empty[JawaCompilationUnit]
+
+    for (typ <- types.iterator.takeWhile(_ => !monitor.isCanceled && units < MaxUnits && size < MaxTotalSize)) {
+      for {
+        t <- JavaElementFinder.findJavaClass(project, typ)
+        cu <- Option(t.getCompilationUnit) collect { case jcu: JawaCompilationUnit => jcu }
+        if !seen(cu) && cu.workspaceFile != icu.workspaceFile && !cu.isOpen
+        location <- Option(cu.workspaceFile.getLocation)
+      } {
+        seen += cu
+        units += 1
+        size += location.toFile.length
+        try cu.open(monitor)
+        catch { case e: Exception => logger.debug(s"Could not prefetch ${cu.getElementName}: ${e.getMessage}") }
+      }
+    }
+    if (units > 0) logger.debug(s"Prefetched $units unit(s) referenced by ${icu.file.name}")
+  }
+}
+
+object RelatedUnitsPrefetcher {
+  private final val MaxUnits = 32
+  /** In bytes of source. */
+  private final val MaxTotalSize = 4L * 1024 * 1024
+
+  /** The classes `cu` refers to, in the order of their first reference. */
+  private def referencedClasses(cu: JawaAstNode): IList[JawaType] = {
+    val types = mutable.LinkedHashSet.empty[JawaType]
+    def scan(node: JawaAstNode): Unit = {
+      node match {
+        case ts: TypeSymbol => types += ts.typ
+        case ms: MethodNameSymbol => types += ms.signature.getClassType
+        case ss: SignatureSymbol => types += ss.signature.getClassType
+        case fs: FieldNameSymbol => types += JavaKnowledge.getClassTypeFromFieldFQN(fs.FQN)
+        case _ =>
+      }
+      node.immediateChildren.foreach(scan)
+    }
+    scan(cu)
+    types.toList
+  }
+}
@@ -0,0 +1,187 @@
+package org.arguside.core.internal.compiler
+
+import java.util.Comparator
+import java.util.PriorityQueue
+import java.util.concurrent.CancellationException
+import java.util.concurrent.TimeoutException
+import java.util.concurrent.atomic.AtomicBoolean
+import scala.collection.mutable
+import scala.concurrent.duration.Deadline
+import scala.concurrent.duration.Duration
+import org.arguside.core.compiler.IJawaPresentationCompiler.RequestClass
+import org.arguside.logging.HasLogger
+import org.sireum.jawa.sjc.interactive.Response
+
+/** Orders the requests made to a presentation compiler by their class.
+ *
+ *  Requests are handed to the compiler thread one at a time (through `post`), so a burst of
+ *  background requests never sits in front of an interactive one: the latter waits at
+ *  most for the request that is running. Requests of the same class run in submission order.
+ *
+ *  A request submitted with a key supersedes the pending request with the same key, which is
+ *  cancelled. A request that didn't start before its deadline is dropped. In both cases its
+ *  response is completed with an exception (`CancellationException`, `TimeoutException`).
+ *
+ *  The `ask` operations of `Global` are ordered the same way, through `forward`. A forwarded
+ *  request holds the compiler until `Global` completed its response, not until it is queued
+ *  there, so `Global` never has more than one of them waiting.
+ *
+ *  @note This class is thread-safe.
+ */
+private[compiler] class RequestScheduler(name: String, post: (() => Unit) => Unit) extends HasLogger {
+  import RequestScheduler._
+
+  private val lock = new Object
+
+  // @GuardedBy("lock")
+  private val pending = new PriorityQueue[Request](16, RequestOrdering)
+  // @GuardedBy("lock")
+  private val pendingByKey = mutable.HashMap.empty[Any, Request]
+  // @GuardedBy("lock")
+  private var running = false
+  // @GuardedBy("lock")
+  private var sequence = 0L
+  // @GuardedBy("lock")
+  private var isShutdown = false
+
+  /** The thread the requests run on. Requests made from it are run right away, since
+   *  waiting for them there would never end.
+   */
+  @volatile private var compilerThread: Thread = null
+
+  // learn the compiler thread before any request is posted, a request made from it (e.g. in a
+  // callback of the compiler) must not wait for a request that would tell it
+  post(() => compilerThread = Thread.currentThread)
+
+  def submit[A](requestClass: RequestClass, key: Option[Any], timeout: Duration)(op: => A): Response[A] = {
+    val response = new Response[A]
+    schedule(new Job(requestClass, key, if (timeout.isFinite) Some(timeout.fromNow) else None, () => response.set(op), response.raise))
+    response
+  }
+
+  /** Run `ask` when the requests of a higher class are done. `ask` hands the work to `Global`
+   *  with the response it is given, which completes `response`. The next request runs once
+   *  that response is completed. `response` is completed with an exception if `ask` fails
+   *  or is cancelled.
+   *
+   *  @note `ask` must complete the response it is given, or no other request runs.
+   */
+  def forward[A](requestClass: RequestClass, response: Response[A])(ask: Response[A] => Unit): Unit =
+    schedule(new Forwarded(requestClass, response, ask))
+
+  private def schedule(request: Request): Unit =
+    if (Thread.currentThread eq compilerThread) request.run(() => ())
+    else lock.synchronized {
+      if (isShutdown) request.cancel(s"$name is shut down")
+      else {
+        request.sequence = sequence
+        sequence += 1
+        for (k <- request.key; superseded <- pendingByKey.put(k, request)) {
+          pending.remove(superseded)
+          superseded.cancel(s"superseded by a newer request for $k")
+        }
+        pending.add(request)
+        dispatchNext()
+      }
+    }
+
+  /** Cancel the pending requests, and refuse new ones. */
+  def shutdown(): Unit = lock.synchronized {
+    isShutdown = true
+    while (!pending.isEmpty) pending.poll().cancel(s"$name is shut down")
+    pendingByKey.clear()
+  }
+
+  // @GuardedBy("lock")
+  private def dispatchNext(): Unit =
+    if (!running) {
+      var next = pending.poll()
+      while ((next ne null) && next.isOverdue) {
+        forget(next)
+        next.expire()
+        next = pending.poll()
+      }
+      if (next ne null) {
+        forget(next)
+        running = true
+        val request = next
+        post(() => execute(request))
+      }
+    }
+
+  // @GuardedBy("lock")
+  private def forget(request: Request): Unit =
+    for (k <- request.key if pendingByKey.get(k).exists(_ eq request))
+      pendingByKey -= k
+
+  private def execute(request: Request): Unit =
+    request.run { () =>
+      lock.synchronized {
+        running = false
+        dispatchNext()
+      }
+    }
+}
+
+private object RequestScheduler {
+
+  private abstract class Request(val requestClass: RequestClass, val key: Option[Any], deadline: Option[Deadline]) {
+    var sequence = 0L
+
+    def isOverdue: Boolean = deadline.exists(_.isOverdue)
+
+    /** Run the request, and call `done` once, when it is done. */
+    def run(done: () => Unit): Unit
+
+    def fail(t: Throwable): Unit
+
+    def cancel(reason: String): Unit = fail(new CancellationException(reason))
+
+    def expire(): Unit = fail(new TimeoutException(s"${requestClass} request not started before its deadline"))
+  }
+
+  /** A request done when `op` returns. */
+  private class Job(requestClass: RequestClass, key: Option[Any], deadline: Option[Deadline], op: () => Unit, onFailure: Throwable => Unit)
+    extends Request(requestClass, key, deadline) {
+
+    override def run(done: () => Unit): Unit =
+      try op()
+      catch { case t: Throwable => fail(t) }
+      finally done()
+
+    override def fail(t: Throwable): Unit = onFailure(t)
+  }
+
+  /** A request done when `Global` completes the response handed to `ask`, which may be
+   *  after `ask` returned.
+   */
+  private class Forwarded[A](requestClass: RequestClass, response: Response[A], ask: Response[A] => Unit)
+    extends Request(requestClass, None, None) {
+
+    override def run(done: () => Unit): Unit = {
+      val released = new AtomicBoolean
+      def release(): Unit = if (released.compareAndSet(false, true)) done()
+
+      val forwarded = new Response[A] {
+        override def set(x: A): Unit = {
+          response.set(x)
+          release()
+        }
+        override def raise(exc: Throwable): Unit = {
+          response.raise(exc)
+          release()
+        }
+      }
+      try ask(forwarded)
+      catch { case t: Throwable => forwarded.raise(t) }
+    }
+
+    override def fail(t: Throwable): Unit = response.raise(t)
+  }
+
+  private object RequestOrdering extends Comparator[Request] {
+    override def compare(a: Request, b: Request): Int =
+      if (a.requestClass.rank != b.requestClass.rank) Integer.compare(a.requestClass.rank, b.requestClass.rank)
+      else java.lang.Long.compare(a.sequence, b.sequence)
+  }
+}
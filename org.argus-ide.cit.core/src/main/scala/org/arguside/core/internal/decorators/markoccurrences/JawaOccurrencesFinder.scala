@@ -2,88 +2,139 @@ package org.arguside.core.internal.decorators.markoccurrences
 
 import org.arguside.core.compiler.InteractiveCompilationUnit
 import org.arguside.logging.HasLogger
+import org.eclipse.jface.text.IDocument
+import org.eclipse.jface.text.IDocumentExtension4
 import org.eclipse.jface.text.IRegion
 import org.eclipse.jface.text.Region
 import org.arguside.util.Utils
 import scala.ref.WeakReference
-import org.arguside.core.compiler.IJawaPresentationCompiler
+import org.arguside.core.compiler.IJawaPresentationCompiler.Interactive
 import org.arguside.core.compiler.IJawaPresentationCompiler.Implicits._
-import org.sireum.jawa.io.SourceFile
-
-//case class Occurrences(name: String, locations: List[IRegion])
-//
-///** Finds all occurrences of a binding in a Jawa source file.
-// *
-// * Note that the occurrences index is re-computed only if the document's modification timestamp
-// * has changed.
-// *
-// * This class is thread-safe.
-// */
-//class JawaOccurrencesFinder(unit: InteractiveCompilationUnit) extends HasLogger {
-//  import JawaOccurrencesFinder._
-//
-//  /* IMPORTANT:
-//   * In the current implementation, all access to `indexCache` are confined to the Presentation
-//   * Compiler thread (and this is why `indexCache` requires no synchronization policy).
-//   */
-//  private var indexCache: Option[TimestampedIndex] = None
-//
-//  private def getCachedIndex(lastModified: Long, currentCompiler: IJawaPresentationCompiler): Option[MarkOccurrencesIndex] = indexCache match {
-//    case Some(TimestampedIndex(`lastModified`, WeakReference(index))) if index.global eq currentCompiler => Some(index)
-//    case _ =>
-//      logger.info("No valid MarkOccurrences index.")
-//      None
-//  }
-//
-//  /** We store the index in a weak reference. This way we trade-off memory consumption with
-//   *  speed of execution: if the editor stays open for a long time (for instance, the user is
-//   *  hyperlinking around), the VM might need more memory and it's a bad idea to hold on to
-//   *  an index that can be easily recomputed.
-//   */
-//  private def cacheIndex(lastModified: Long, index: MarkOccurrencesIndex): Unit = {
-//    indexCache = Some(TimestampedIndex(lastModified, new WeakReference(index)))
-//  }
-//
-//  def findOccurrences(region: IRegion, lastModified: Long): Option[Occurrences] = {
-//    unit.withSourceFile { (sourceFile, compiler) =>
-//
-//      def isNotLoadedInPresentationCompiler(source: SourceFile): Boolean =
-//        !compiler.hasCompilationUnit(source.file)
-//
-//      if (isNotLoadedInPresentationCompiler(sourceFile)) {
-//        logger.info("Source %s is not loded in the presentation compiler. Aborting occurrences update." format (sourceFile.file.name))
-//        None
-//      } else {
-//        val occurrencesIndex = getCachedIndex(lastModified, compiler) getOrElse {
-//          val occurrencesIndex = new MarkOccurrencesIndex {
-//            val global = compiler
-//            override val index: IndexLookup = Utils.debugTimed("Time elapsed for building mark occurrences index in source " + sourceFile.file.name) {
-//              askLoadedTyped(sourceFile, keepLoaded = false).get match {
-//                case Left(tree) => compiler.asyncExec(GlobalIndex(tree)).getOrElse(EmptyIndex)()
-//                case Right(ex)  => EmptyIndex
-//              }
-//            }
-//          }
-//          cacheIndex(lastModified, occurrencesIndex)
-//          occurrencesIndex
-//        }
-//        compiler.asyncExec {
-//          val (from, to) = (region.getOffset, region.getOffset + region.getLength)
-//          val (selectedTree, occurrences) = occurrencesIndex.occurrencesOf(sourceFile.file, from, to)
-//
-//          Option(selectedTree.symbol) filter (!_.name.isOperatorName) map { sym =>
-//            val locations = occurrences map { pos =>
-//              new Region(pos.start, pos.end - pos.start)
-//            }
-//            Occurrences(sym.nameString, locations)
-//          }
-//        }
-//      }.getOrElse(None)()
-//    }.flatten
-//  }
-//}
-//
-//object JawaOccurrencesFinder {
-//  private abstract class MarkOccurrencesIndex extends MarkOccurrences with GlobalIndexes
-//  private case class TimestampedIndex(timestamp: Long, index: WeakReference[MarkOccurrencesIndex])
-//}
+
+case class Occurrences(name: String, locations: List[IRegion])
+
+/** Finds all occurrences of a binding in a Jawa source file.
+ *
+ * The occurrences index is built once per modification of the document, from its current
+ * text, so moving the caret only costs a lookup in it. Edits are reported with `documentChanged`: an edit of a procedure
+ * body only invalidates the index for that procedure, the variables and locations of the other
+ * procedures are still found in it (shifted by the edits) until the next rebuild.
+ *
+ * This class is thread-safe.
+ */
+class JawaOccurrencesFinder(unit: InteractiveCompilationUnit) extends HasLogger {
+  import JawaOccurrencesFinder._
+
+  // @GuardedBy("this")
+  private var indexCache: Option[CachedIndex] = None
+
+  /** Counts the edits, to tell whether the document changed while an index was built. */
+  // @GuardedBy("this")
+  private var edits = 0L
+
+  /** Records that `removed` characters at `offset` were replaced by `inserted` ones. */
+  def documentChanged(offset: Int, removed: Int, inserted: Int): Unit = synchronized {
+    edits += 1
+    indexCache = indexCache filter (_.edit(offset, removed, inserted))
+  }
+
+  /** The occurrences of the symbol at `region` in `document`, modified last at `lastModified`. */
+  def findOccurrences(region: IRegion, document: IDocument, lastModified: Long): Option[Occurrences] = {
+    val offset = region.getOffset
+    val cached = synchronized { indexCache flatMap (_.lookup(offset, lastModified)) }
+    cached getOrElse {
+      buildIndex(document) flatMap (occurrencesAt(_, offset, 0))
+    }
+  }
+
+  /** Build the index of the current text of `document`, not of the last reconciled source of
+   *  the unit, which may lag behind it.
+   */
+  private def buildIndex(document: IDocument): Option[OccurrencesIndex] = {
+    // the edits are counted before the text is read: an edit made while it is read, or while
+    // the index is built, is seen below
+    val editsBefore = synchronized { edits }
+    val modified = document match {
+      case doc: IDocumentExtension4 => doc.getModificationStamp
+      case _                        => IDocumentExtension4.UNKNOWN_MODIFICATION_STAMP
+    }
+    val sourceFile = unit.sourceMap(document.get.toCharArray).sourceFile
+
+    val index = unit.argusProject.presentationCompiler { compiler =>
+      compiler.submit(Interactive, supersedes = Some(("occurrences", sourceFile.file))) {
+        Utils.debugTimed("Time elapsed for building mark occurrences index in source " + sourceFile.file.name) {
+          compiler.parseCompilationUnit(sourceFile) map (OccurrencesIndex(_))
+        }
+      }.getOption().flatten
+    }.flatten
+
+    if (index.isEmpty) logger.info("No mark occurrences index for " + unit.file.name)
+    // an index of a document that has changed since is not cached, its offsets may be off
+    synchronized {
+      if (edits == editsBefore) indexCache = index map (new CachedIndex(modified, _))
+    }
+    index
+  }
+}
+
+object JawaOccurrencesFinder {
+
+  private def occurrencesAt(index: OccurrencesIndex, offset: Int, shift: Int): Option[Occurrences] =
+    index.symbolAt(offset - shift) map { key =>
+      val locations = index.occurrencesOf(key) map (r => new Region(r.getOffset + shift, r.getLength): IRegion)
+      Occurrences(key.displayName, locations)
+    }
+
+  /** An index and how the document was edited since it was built.
+   *
+   *  We store the index in a weak reference. This way we trade-off memory consumption with
+   *  speed of execution: if the editor stays open for a long time, the VM might need more
+   *  memory and it's a bad idea to hold on to an index that can be easily recomputed.
+   *
+   *  @note Not thread-safe, guarded by its finder.
+   */
+  private class CachedIndex(lastModified: Long, built: OccurrencesIndex) {
+    private val index = new WeakReference(built)
+
+    /** The procedures of the index, where they are in the edited document. */
+    private val starts = built.procedureStarts.clone()
+    private val ends = built.procedureEnds.clone()
+    private var dirty = Set.empty[Int]
+
+    /** Shifts the procedures after an edit, returns false if the whole index is invalid. */
+    def edit(offset: Int, removed: Int, inserted: Int): Boolean = {
+      val p = OccurrencesIndex.procedureAt(starts, ends, offset)
+      // an edit of a header or of the declarations between procedures may change anything
+      if (p < 0 || offset == starts(p) || offset + removed >= ends(p)) false
+      else {
+        val delta = inserted - removed
+        ends(p) += delta
+        for (q <- p + 1 until starts.length) {
+          starts(q) += delta
+          ends(q) += delta
+        }
+        dirty += p
+        true
+      }
+    }
+
+    /** The occurrences at `offset`, or `None` if they are not in this index anymore. */
+    def lookup(offset: Int, modified: Long): Option[Option[Occurrences]] = index.get flatMap { index =>
+      if (dirty.isEmpty) {
+        if (modified == lastModified) Some(occurrencesAt(index, offset, 0)) else None
+      } else {
+        val p = OccurrencesIndex.procedureAt(starts, ends, offset)
+        if (p < 0 || dirty(p)) None
+        else {
+          val shift = starts(p) - index.procedureStarts(p)
+          index.symbolAt(offset - shift) match {
+            case None => Some(None)
+            // the occurrences of the others may be in an edited procedure
+            case Some(key) if key.isLocal => Some(occurrencesAt(index, offset, shift))
+            case Some(_) => None
+          }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,137 @@
+package org.arguside.core.internal.decorators.markoccurrences
+
+import scala.collection.mutable
+import org.eclipse.jface.text.IRegion
+import org.eclipse.jface.text.Region
+import org.sireum.jawa.JavaKnowledge
+import org.sireum.jawa.sjc.lexer.{Token => JawaToken}
+import org.sireum.jawa.sjc.parser._
+import org.sireum.util.IList
+
+/** The occurrences of the symbols of a unit, built from one walk of its tree.
+ *
+ *  The symbols are sorted by offset, so the one at an offset is found by binary search, and its
+ *  occurrences by a hash lookup. Variables and locations are only the same symbol within a
+ *  procedure; the procedures are recorded, so that an edit of one of them doesn't have to
+ *  invalidate the whole index (see `JawaOccurrencesFinder`).
+ *
+ *  @note This class is immutable.
+ */
+private[markoccurrences] class OccurrencesIndex private (
+    starts: Array[Int],
+    lengths: Array[Int],
+    keys: Array[OccurrencesIndex.SymbolKey],
+    occurrences: Map[OccurrencesIndex.SymbolKey, IList[IRegion]],
+    val procedureStarts: Array[Int],
+    val procedureEnds: Array[Int]) {
+  import OccurrencesIndex._
+
+  /** The symbol at `offset`, if any. */
+  def symbolAt(offset: Int): Option[SymbolKey] = {
+    var lo = 0
+    var hi = starts.length - 1
+    var found = -1
+    while (lo <= hi) {
+      val mid = (lo + hi) >>> 1
+      if (starts(mid) <= offset) {
+        found = mid
+        lo = mid + 1
+      } else hi = mid - 1
+    }
+    // the caret is on a symbol when it is right after it too
+    if (found >= 0 && offset <= starts(found) + lengths(found)) Some(keys(found)) else None
+  }
+
+  def occurrencesOf(key: SymbolKey): IList[IRegion] = occurrences.getOrElse(key, Nil)
+
+  /** The index of the procedure whose body contains `offset`, or -1. */
+  def procedureAt(offset: Int): Int = OccurrencesIndex.procedureAt(procedureStarts, procedureEnds, offset)
+}
+
+private[markoccurrences] object OccurrencesIndex {
+
+  /** What makes occurrences the same symbol.
+   *
+   *  @param procedure   the index of the procedure of a variable or a location, -1 for the others
+   *  @param name        the signature of a method, the type of a type, the class type and name of
+   *                     a field, the name of the others
+   *  @param displayName the text of the occurrence the key was made for. It is not part of the
+   *                     equality: a method is called and declared with different texts.
+   */
+  case class SymbolKey(kind: Kind, procedure: Int, name: Any)(val displayName: String) {
+    def isLocal: Boolean = procedure >= 0
+  }
+
+  sealed abstract class Kind
+  case object TypeKind extends Kind
+  case object MethodKind extends Kind
+  case object FieldKind extends Kind
+  case object VarKind extends Kind
+  case object LocationKind extends Kind
+
+  def apply(cu: CompilationUnit): OccurrencesIndex = {
+    val symbols = mutable.ArrayBuffer.empty[(Int, Int, SymbolKey)]
+    val procedures = mutable.ArrayBuffer.empty[(Int, Int)]
+
+    def text(id: JawaToken): String = id.text.replace("`", "")
+    def add(id: JawaToken, kind: Kind, procedure: Int, name: Any): Unit =
+      symbols += ((id.range.offset, id.range.length, SymbolKey(kind, procedure, name)(text(id))))
+
+    def scan(node: JawaAstNode, cls: Option[ClassOrInterfaceDeclaration], field: Option[Field with Declaration],
+             method: Option[MethodDeclaration], procedure: Int): Unit = {
+      // declarations and uses are written differently, they are keyed by what they refer to
+      node match {
+        case TypeDefSymbol(id)        => add(id, TypeKind, -1, cls.map(_.typ).getOrElse(text(id)))
+        case ts: TypeSymbol           => add(ts.id, TypeKind, -1, ts.typ)
+        case MethodDefSymbol(id)      => add(id, MethodKind, -1, method.map(_.signature).getOrElse(text(id)))
+        case ms: MethodNameSymbol     => add(ms.id, MethodKind, -1, ms.signature)
+        case ss: SignatureSymbol      => add(ss.id, MethodKind, -1, ss.signature)
+        case fd: FieldDefSymbol       =>
+          val name = for (c <- cls; f <- field) yield (c.typ, f.fieldName)
+          add(fd.id, FieldKind, -1, name.getOrElse(text(fd.id)))
+        case fs: FieldNameSymbol      =>
+          add(fs.id, FieldKind, -1, (JavaKnowledge.getClassTypeFromFieldFQN(fs.FQN), JavaKnowledge.getFieldNameFromFieldFQN(fs.FQN)))
+        case VarDefSymbol(id)         => add(id, VarKind, procedure, text(id))
+        case VarSymbol(id)            => add(id, VarKind, procedure, text(id))
+        case ld: LocationDefSymbol    => add(ld.id, LocationKind, procedure, text(ld.id))
+        case LocationSymbol(id)       => add(id, LocationKind, procedure, text(id))
+        case _ =>
+      }
+      node match {
+        case cd: ClassOrInterfaceDeclaration =>
+          cd.immediateChildren.foreach(scan(_, Some(cd), None, None, -1))
+        case fd: Field with Declaration =>
+          fd.immediateChildren.foreach(scan(_, cls, Some(fd), method, procedure))
+        case md: MethodDeclaration if md.firstTokenOption.isDefined =>
+          procedures += ((md.firstToken.pos.start, md.lastToken.pos.end + 1))
+          md.immediateChildren.foreach(scan(_, cls, None, Some(md), procedures.size - 1))
+        case _ =>
+          node.immediateChildren.foreach(scan(_, cls, field, method, procedure))
+      }
+    }
+    scan(cu, None, None, None, -1)
+
+    val sorted = symbols.sortBy(_._1)
+    val occurrences = sorted.groupBy(_._3) map { case (key, syms) =>
+      key -> syms.map { case (start, length, _) => new Region(start, length): IRegion }.toList
+    }
+    new OccurrencesIndex(
+      sorted.map(_._1).toArray, sorted.map(_._2).toArray, sorted.map(_._3).toArray, occurrences,
+      procedures.map(_._1).toArray, procedures.map(_._2).toArray)
+  }
+
+  /** The index of the range of `starts` and `ends` that contains `offset`, or -1. */
+  def procedureAt(starts: Array[Int], ends: Array[Int], offset: Int): Int = {
+    var lo = 0
+    var hi = starts.length - 1
+    var found = -1
+    while (lo <= hi) {
+      val mid = (lo + hi) >>> 1
+      if (starts(mid) <= offset) {
+        found = mid
+        lo = mid + 1
+      } else hi = mid - 1
+    }
+    if (found >= 0 && offset < ends(found)) found else -1
+  }
+}
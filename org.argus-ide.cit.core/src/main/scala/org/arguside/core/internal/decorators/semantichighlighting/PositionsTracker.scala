@@ -1,18 +1,19 @@
 package org.arguside.core.internal.decorators.semantichighlighting
 
-import java.util.Arrays.binarySearch
 import java.util.Arrays.copyOfRange
 import scala.collection.mutable
 import org.arguside.logging.HasLogger
 import org.arguside.core.internal.decorators.semantichighlighting.classifier.SymbolTypes
 import org.eclipse.jface.text.DocumentEvent
 import org.eclipse.jface.text.IRegion
+import org.eclipse.jface.text.Region
 import org.arguside.core.CitConstants
+import org.sireum.util.IList
 
 /** This class keeps track of semantic positions and it's used by the text's presentation to apply semantic highlighting
   * styles in the editor.
   *
-  * There are two important facts to understand about this implementation:
+  * There are three important facts to understand about this implementation:
   *
   * 1) All accesses that mutate the positions held by `this` instance are run inside the UI Thread. The natural consequence
   * of this is that to get a consistent view of the tracked position your code has to run within the UI Thread.
@@ -24,83 +25,154 @@ import org.arguside.core.CitConstants
   * and only if no change happen while the new positions where being computed. If a change is detected, the positions are
   * discarded (this is ok because a new semantic highlighting job will start as soon as the user pause, and the java
   * reconciler kicks-in).
+  *
+  * 3) Edits don't walk the positions. The positions are kept sorted in an array with a gap: the ones from `gapIndex` on
+  * are `gapDelta` further than their own offset, which is fixed when they are handed out (see `positionsInRegion`). An
+  * edit deletes the positions it touches, found by binary search, and moves the gap. The regions edited since the
+  * positions were last replaced are recorded, so that only the declarations in them need to be classified again (see
+  * `startComputingNewPositions`).
+  *
+  * 4) The positions of a big unit can be computed a region at a time, the visible one first. The regions whose
+  * positions are still to be computed are ''pending'' (see `swapPositions`).
   */
 private[arguside] class PositionsTracker extends HasLogger {
+  import PositionsTracker._
 
-  @volatile private var positions: Array[Position] = Array.empty
+  // @GuardedBy("this")
+  private var positions: Array[Position] = Array.empty
+  // @GuardedBy("this")
+  private var count = 0
+  // @GuardedBy("this")
+  private var gapIndex = 0
+  // @GuardedBy("this")
+  private var gapDelta = 0
+  // @GuardedBy("this")
+  /** The regions edited since the positions were last replaced, or `None` if all of them have to be computed again. */
+  private var edited: Option[List[(Int, Int)]] = None
+  // @GuardedBy("this")
+  /** The regions whose positions are out of date, but that weren't edited. */
+  private var pending: List[(Int, Int)] = Nil
 
   @volatile private var trackedPositionsChanged = false
 
-  def startComputingNewPositions(): Unit = { trackedPositionsChanged = false }
+  /** Starts a computation of new positions.
+    *
+    * @return The regions whose positions have to be computed again.
+    */
+  def startComputingNewPositions(): Damage = synchronized {
+    trackedPositionsChanged = false
+    Damage(edited map (_ map toRegion), pending map toRegion)
+  }
+
+  /** Are there positions that are out of date, though no edit was made? */
+  def hasPendingRegions: Boolean = synchronized { pending.nonEmpty }
 
   def isDirty: Boolean = trackedPositionsChanged
 
-  /** Compares the `newPositions` with the current `positions` and return the sequence of positions
+  /** Compares the `newPositions` with the current `positions` in `regions` and return the sequence of positions
     * that have been added and removed since last reconciliation.
     *
-    * @param `newPositions` The freshly computed positions.
+    * @param regions      The regions where the positions were computed again, or `None` for the whole document.
+    * @param newPositions The freshly computed positions, sorted by offset.
     * @return A container holding the added and removed positions since last reconciliation.
     */
-  def createPositionsChange(newPositions: List[Position]): PositionsChange = {
+  def createPositionsChange(regions: Option[IList[IRegion]], newPositions: List[Position]): PositionsChange = {
     /* Filtering out deleted positions here is important, failing to do so can cause half-colored identifiers.
      * The reason is that deleted positions should not be considered when computing the damaged region that is
      * used to invalidate the text presentation. Failing to do so can result in the computed damaged region to
      * partially remove a keyword's coloring style.
+     *
+     * The existing positions are copied with their current offset, the tracked ones may be behind the gap.
      */
-    val existingPositions = positions.filterNot(_.isDeleted())
-    val existingPositionsByOffset = existingPositions.groupBy(_.getOffset)
+    val existingPositions = synchronized {
+      val ranges = regions.fold(List((0, count)))(_ map (r => (indexAtOrAfter(r.getOffset), indexAtOrAfter(r.getOffset + r.getLength))))
+      for {
+        (lo, hi) <- ranges.sortBy(_._1)
+        i <- lo until hi
+        position = positions(i)
+        if !position.isDeleted()
+      } yield new Position(start(i), position.getLength, position.kind)
+    }
 
     val positionsToAdd = mutable.ListBuffer.empty[Position]
-    val positionsToRemove = mutable.ListBuffer.empty[Position] ++ existingPositions
+    val positionsToRemove = mutable.ListBuffer.empty[Position]
 
-    for {
-      newPos <- newPositions
-      offset = newPos.getOffset()
-    } {
+    // both lists are sorted by offset, walk them side by side
+    var existing = existingPositions
+    for (newPos <- newPositions) {
       // sanity check
       if (newPos.isDeleted()) {
         logger.error("Encountered position deleted during semantic highlighting. Please report a bug at " + CitConstants.IssueTracker)
       }
       else {
-        existingPositionsByOffset.get(offset) match {
-          case None =>
-            // No positions existed at the given offset, hence it's a new position.
+        while (existing.nonEmpty && existing.head.getOffset < newPos.getOffset) {
+          positionsToRemove += existing.head
+          existing = existing.tail
+        }
+        existing.span(_.getOffset == newPos.getOffset) match {
+          case (sameOffset, rest) if sameOffset contains newPos =>
+            // Old position is the same as new one, so no need to remove it.
+            positionsToRemove ++= sameOffset.filterNot(_ == newPos)
+            existing = rest
+          case _ =>
             positionsToAdd += newPos
-
-          case Some(existingPositions) =>
-            for (oldPos <- existingPositions) {
-              if (newPos == oldPos) {
-                // Old position is the same as new one, so no need to remove it.
-                positionsToRemove -= newPos
-              }
-              else positionsToAdd += newPos
-            }
         }
       }
     }
+    positionsToRemove ++= existing
 
     PositionsChange(positionsToAdd.toList, positionsToRemove.toList)
   }
 
   /** @note This method must always be called within the UI Thread. */
-  def reset(): Unit = {
+  def reset(): Unit = synchronized {
     trackedPositionsChanged = true
     positions = Array.empty
+    count = 0
+    gapIndex = 0
+    gapDelta = 0
+    edited = None
+    pending = Nil
   }
 
-  /** Replace the currently held `positions` with the passed `newPositions`.
+  /** Replace the currently held positions in `regions` with the passed `newPositions`.
     *
-    * @note `newPositions` are expected to be sorted.
+    * @note `newPositions` are expected to be sorted, and to be in `regions`.
     * @note This method must always be called within the UI Thread.
     *
     * @precondition `positionsChanged` is `false`
-    * @param newPositions The new semantic positions (that will be colored in the editor)
+    * @param regions        The regions where the positions were computed again, or `None` for the whole document.
+    * @param newPositions   The new semantic positions (that will be colored in the editor)
+    * @param documentLength The length of the document the positions were computed for.
+    * @param restIsPending  Whether the positions outside `regions` are all out of date.
     */
-  def swapPositions(newPositions: Array[Position]): Unit = {
+  def swapPositions(regions: Option[IList[IRegion]], newPositions: Array[Position], documentLength: Int, restIsPending: Boolean): Unit = synchronized {
     if (isDirty)
       logger.error("Error while performing semantic highlighting. Attempting to swap posions on a " +
         "not up-to-date state. Please report a bug at " + CitConstants.IssueTracker)
-    else positions = newPositions
+    else {
+      regions match {
+        case None =>
+          positions = newPositions
+          count = newPositions.length
+          gapIndex = 0
+          gapDelta = 0
+        case Some(rs) =>
+          // from the last region to the first, so that the indices of the ones before don't change
+          for (r <- rs.sortBy(-_.getOffset)) {
+            val regionEnd = r.getOffset + r.getLength
+            val inRegion = newPositions filter (p => p.getOffset >= r.getOffset && p.getOffset < regionEnd)
+            replace(indexAtOrAfter(r.getOffset), indexAtOrAfter(regionEnd), inRegion)
+          }
+      }
+      edited = Some(Nil)
+      pending = regions match {
+        case None => Nil
+        case Some(rs) =>
+          val outOfDate = if (restIsPending) List((0, documentLength)) else pending
+          subtract(outOfDate, rs map (r => (r.getOffset, r.getOffset + r.getLength)))
+      }
+    }
   }
 
   /** Return all currently tracked `positions` in the passed `region`.
@@ -112,70 +184,155 @@ private[arguside] class PositionsTracker extends HasLogger {
     *
     * @return The sequence of positions that are included in the passed `region`
     */
-  def positionsInRegion(region: IRegion): Array[Position] = {
-    if (region.getLength() == 0 || positions.length == 0) Array.empty[Position]
+  def positionsInRegion(region: IRegion): Array[Position] = synchronized {
+    if (region.getLength() == 0 || count == 0) Array.empty[Position]
     else {
-      // `positions` are sorted so here we first find the lower and upper index.
-      // This matters for large files, i.e., when `positions` is > 10K
-      def findIndex(position: Position): Int = {
-        /* @see java.util.Arrays.binarySearch documentation.*/
-        val indexOrMirroredInsertionPoint = binarySearch(positions, position, Position.ByOffset)
-        val index = Math.max(-1 - indexOrMirroredInsertionPoint, indexOrMirroredInsertionPoint)
-        Math.min(index, positions.length)
-      }
-
-      val dummyLowerPosition = new Position(region.getOffset, 0, null)
-      val lowerIndex = findIndex(dummyLowerPosition)
-
-      val dummyUpperPosition = new Position(region.getOffset + region.getLength, 0, null)
-      val upperIndex = findIndex(dummyUpperPosition)
-
+      val lowerIndex = indexAtOrAfter(region.getOffset)
+      val upperIndex = indexAtOrAfter(region.getOffset + region.getLength)
+      // the returned positions must have their real offset
+      moveGap(upperIndex)
       copyOfRange(positions, lowerIndex, upperIndex)
     }
   }
 
   /** Deletes all positions included in the `event`'s region. Positions that are after the `event`'s
-    * region are shifted.
+    * region are shifted, lazily.
     *
     * @note This method must always be called within the UI Thread.
     */
-  def updatePositions(event: DocumentEvent): Unit = {
+  def updatePositions(event: DocumentEvent): Unit = synchronized {
     val editionOffset = event.getOffset
     val editionLength = event.getLength
     val editionEnd = editionOffset + editionLength
     val newText = event.getText()
     val newLength = Option(newText) map (_.length) getOrElse 0
+    val delta = newLength - editionLength
 
-    for (position <- positions) {
-      val posOffset = position.getOffset
-      val posEnd = posOffset + position.getLength
+    // positions being computed are for the text before this edit
+    trackedPositionsChanged = true
 
-      if (editionOffset > posEnd) { /* nothing to do because the current `position` is not affected by the triggered edition change */ }
-      else {
-        trackedPositionsChanged = true
-        if (editionEnd < posOffset) {
-          // edition change occurred *before* the current `position`, which implies that the `position`'s offset needs to be shifted
-          val delta = newLength - editionLength
-          position.setOffset(posOffset + delta)
-        }
-        else {
-          // The edit affected the current `position`, hence let's delete it
-          position.delete()
-        }
+    // the first position that isn't entirely before the edit
+    val first = {
+      val i = indexAtOrAfter(editionOffset) - 1
+      if (i >= 0 && start(i) + positions(i).getLength >= editionOffset) i else i + 1
+    }
+    if (first < count) {
+      // The edit affected these positions, hence let's delete them
+      var last = first
+      while (last < count && start(last) <= editionEnd) {
+        positions(last).delete()
+        last += 1
       }
+      replace(first, last, Array.empty)
+      // the positions after the edit are shifted by moving the gap
+      gapDelta += delta
     }
+    edited = edited map (addDamage(_, editionOffset, editionEnd, newLength))
+    pending = shift(pending, editionOffset, editionEnd, newLength)
   }
 
   /** Deletes all positions of the passed `kind`.
     *
     * @note This method must always be called within the UI Thread.
     */
-  def deletesPositionsOfType(kind: SymbolTypes.SymbolType): Unit = {
-    for (position <- positions) {
-      if (position.kind == kind) {
+  def deletesPositionsOfType(kind: SymbolTypes.SymbolType): Unit = synchronized {
+    for (i <- 0 until count) {
+      if (positions(i).kind == kind) {
         trackedPositionsChanged = true
-        position.delete()
+        positions(i).delete()
       }
     }
+    // they can be anywhere in the document
+    edited = None
+  }
+
+  private def start(i: Int): Int =
+    if (i >= gapIndex) positions(i).getOffset + gapDelta else positions(i).getOffset
+
+  /** The index of the first position starting at or after `offset`. */
+  private def indexAtOrAfter(offset: Int): Int = {
+    var lo = 0
+    var hi = count
+    while (lo < hi) {
+      val mid = (lo + hi) >>> 1
+      if (start(mid) < offset) lo = mid + 1
+      else hi = mid
+    }
+    lo
+  }
+
+  /** Replace the positions in `[from, until)` by `newPositions`, which have their real offsets. */
+  private def replace(from: Int, until: Int, newPositions: Array[Position]): Unit = {
+    moveGap(until)
+    val newCount = count - (until - from) + newPositions.length
+    val target = if (newCount > positions.length) java.util.Arrays.copyOf(positions, math.max(newCount, positions.length * 2)) else positions
+    System.arraycopy(positions, until, target, from + newPositions.length, count - until)
+    System.arraycopy(newPositions, 0, target, from, newPositions.length)
+    java.util.Arrays.fill(target.asInstanceOf[Array[AnyRef]], newCount, count max newCount, null)
+    positions = target
+    count = newCount
+    gapIndex = from + newPositions.length
   }
+
+  private def moveGap(index: Int): Unit = {
+    var i = gapIndex
+    while (i < index) {
+      positions(i).setOffset(positions(i).getOffset + gapDelta)
+      i += 1
+    }
+    i = index
+    while (i < gapIndex) {
+      positions(i).setOffset(positions(i).getOffset - gapDelta)
+      i += 1
+    }
+    gapIndex = index
+  }
+}
+
+/** The regions whose positions are out of date.
+  *
+  * @param edited  The regions edited since the positions were last computed, or `None` for the whole document.
+  * @param pending The other regions whose positions are still to be computed.
+  */
+private[arguside] case class Damage(edited: Option[IList[IRegion]], pending: IList[IRegion])
+
+private object PositionsTracker {
+
+  /** Beyond this many edited regions, they are merged into one. */
+  private final val MaxDamagedRegions = 16
+
+  /** Moves the `damaged` regions with an edit that replaced `[offset, end)` by `newLength` characters, and adds
+    * the edit to them.
+    */
+  private def addDamage(damaged: List[(Int, Int)], offset: Int, end: Int, newLength: Int): List[(Int, Int)] = {
+    val merged = merge((offset, offset + newLength) :: shift(damaged, offset, end, newLength))
+    if (merged.size > MaxDamagedRegions) List((merged.head._1, merged.map(_._2).max))
+    else merged
+  }
+
+  /** Moves `regions` with an edit that replaced `[offset, end)` by `newLength` characters. */
+  private def shift(regions: List[(Int, Int)], offset: Int, end: Int, newLength: Int): List[(Int, Int)] = {
+    val delta = newLength - (end - offset)
+    regions map {
+      case (s, e) if e < offset => (s, e)
+      case (s, e) if s > end => (s + delta, e + delta)
+      case (s, e) => (math.min(s, offset), math.max(e + delta, offset + newLength))
+    }
+  }
+
+  private def merge(regions: List[(Int, Int)]): List[(Int, Int)] =
+    regions.sortBy(_._1).foldLeft(List.empty[(Int, Int)]) {
+      case ((s0, e0) :: rest, (s, e)) if s <= e0 => (s0, math.max(e0, e)) :: rest
+      case (acc, region) => region :: acc
+    }.reverse
+
+  /** The parts of `regions` that are not in `removed`. */
+  private def subtract(regions: List[(Int, Int)], removed: List[(Int, Int)]): List[(Int, Int)] =
+    removed.foldLeft(regions) { case (remaining, (rs, re)) =>
+      remaining flatMap { case (s, e) =>
+        List((s, math.min(e, rs)), (math.max(s, re), e)) filter { case (s1, e1) => s1 < e1 }
+      }
+    }
+
+  private def toRegion(region: (Int, Int)): IRegion = new Region(region._1, region._2 - region._1)
 }
@@ -3,6 +3,7 @@ package org.arguside.core.internal.decorators.semantichighlighting.classifier
 import org.arguside.logging.HasLogger
 import org.arguside.core.internal.decorators.semantichighlighting.classifier.SymbolTypes._
 import org.eclipse.core.runtime.IProgressMonitor
+import org.eclipse.core.runtime.OperationCanceledException
 import org.arguside.core.compiler.IJawaPresentationCompiler
 import org.arguside.core.compiler.IJawaPresentationCompiler.Implicits._
 import org.sireum.util._
@@ -27,11 +28,48 @@ class SymbolClassification(protected val sourceFile: SourceFile, val global: IJa
   
   import scala.collection.mutable
   
-  def classifySymbols(progressMonitor: IProgressMonitor): IList[SymbolInfo] = {
-    val symbolInfos: MList[SymbolInfo] = mlistEmpty
-    for(cu <- global.parseCompilationUnit(sourceFile)){
-      scan(cu)
+  def parse(): Option[CompilationUnit] = global.parseCompilationUnit(sourceFile)
+
+  /** The regions of the procedures of `cu` that overlap `edited`, or `None` if an edited region is
+   *  not in a procedure (an edit of the declarations may change anything).
+   */
+  def editedProcedures(cu: CompilationUnit, edited: IList[IRegion]): Option[IList[IRegion]] = {
+    val procedures = for {
+      cd <- cu.topDecls collect { case cd: ClassOrInterfaceDeclaration => cd }
+      md <- cd.methods
+      region <- regionOf(md)
+    } yield region
+    if (edited.forall(r => procedures.exists(contains(_, r))))
+      Some(procedures filter (p => edited.exists(overlaps(p, _))))
+    else None
+  }
+
+  /** Classifies the symbols of `cu` that start in `regions`, or all of them if it is `None`.
+   *
+   *  Only the procedures that overlap `regions` are scanned. `progressMonitor` is checked before
+   *  each procedure, an `OperationCanceledException` is thrown once it is cancelled.
+   */
+  def classifySymbols(cu: CompilationUnit, regions: Option[IList[IRegion]], progressMonitor: IProgressMonitor): IList[SymbolInfo] = {
+    def inRegions(md: MethodDeclaration): Boolean =
+      regions.forall(rs => regionOf(md).forall(p => rs.exists(overlaps(p, _))))
+    def scanProcedures(node: JawaAstNode): Unit = node match {
+      case cu: CompilationUnit => cu.immediateChildren foreach scanProcedures
+      case cd: ClassOrInterfaceDeclaration => cd.immediateChildren foreach scanProcedures
+      case md: MethodDeclaration =>
+        if (progressMonitor.isCanceled) throw new OperationCanceledException
+        if (inRegions(md)) scan(md)
+      case other => scan(other)
     }
+    scanProcedures(cu)
+    regions match {
+      case None => symbolInfos
+      case Some(rs) =>
+        symbolInfos map (info => info.copy(regions = info.regions filter (r => rs.exists(containsOffset(_, r.getOffset)))))
+    }
+  }
+
+  private def symbolInfos: IList[SymbolInfo] = {
+    val symbolInfos: MList[SymbolInfo] = mlistEmpty
     symbolInfos += SymbolInfo(Class, classes.toList)
     symbolInfos += SymbolInfo(Method, methods.toList)
     symbolInfos += SymbolInfo(SymbolTypes.Location, locations.toList)
@@ -39,7 +77,21 @@ class SymbolClassification(protected val sourceFile: SourceFile, val global: IJa
     symbolInfos += SymbolInfo(LocalVar, localvars.toList)
     symbolInfos.toList
   }
-  
+
+  private def regionOf(node: JawaAstNode): Option[IRegion] =
+    if (node.firstTokenOption.isDefined)
+      Some(new Region(node.firstToken.pos.start, node.lastToken.pos.end - node.firstToken.pos.start + 1))
+    else None
+
+  private def containsOffset(region: IRegion, offset: Int): Boolean =
+    region.getOffset <= offset && offset < region.getOffset + region.getLength
+
+  private def contains(outer: IRegion, inner: IRegion): Boolean =
+    outer.getOffset <= inner.getOffset && inner.getOffset + inner.getLength <= outer.getOffset + outer.getLength
+
+  private def overlaps(a: IRegion, b: IRegion): Boolean =
+    a.getOffset <= b.getOffset + b.getLength && b.getOffset <= a.getOffset + a.getLength
+
   private val classes: MList[IRegion] = mlistEmpty
   private val methods: MList[IRegion] = mlistEmpty
   private val locations: MList[IRegion] = mlistEmpty
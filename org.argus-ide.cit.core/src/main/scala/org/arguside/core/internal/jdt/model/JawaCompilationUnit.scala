@@ -52,7 +52,11 @@ import org.sireum.jawa.io.AbstractFile
 import org.arguside.core.internal.hyperlink.DeclarationHyperlinkDetector
 import org.sireum.jawa.io.Position
 import org.sireum.util._
+import org.arguside.core.compiler.IJawaPresentationCompiler.Background
 import org.arguside.core.compiler.IJawaPresentationCompiler.Implicits._
+import org.arguside.core.internal.compiler.JawaPresentationCompiler
+import org.sireum.jawa.io.SourceFile
+import org.sireum.jawa.io.FgSourceFile
 import org.arguside.core.internal.jdt.search.JawaSourceIndexer
 import org.arguside.core.compiler.ISourceMap
 
@@ -113,7 +117,7 @@ trait JawaCompilationUnit extends Openable
     argusProject.presentationCompiler.internal { compiler =>
       val unsafeElements = newElements.asInstanceOf[JMap[AnyRef, AnyRef]]
       val tmpMap = new java.util.HashMap[AnyRef, AnyRef]
-      val sourceFile = lastSourceMap().sourceFile
+      val sourceFile = sourceFileFor(compiler)
       val sourceLength = sourceFile.length
 
       try {
@@ -121,7 +125,7 @@ trait JawaCompilationUnit extends Openable
 
         compiler.askStructure(sourceFile).get match {
           case Left(cu) =>
-            compiler.asyncExec {
+            compiler.submit(Background) {
               new compiler.StructureBuilderTraverser(this, info, tmpMap, sourceLength).traverse(cu)
             }.getOption() // block until the traverser finished
           case _ =>
@@ -148,13 +152,22 @@ trait JawaCompilationUnit extends Openable
     true
   }
   
+  /** The source to give `compiler` for building the structure or the index of this unit.
+   *
+   *  Unless the unit is managed by the compiler, this is a throwaway copy of the contents:
+   *  the source map of a unit that is not edited only keeps them in compact form.
+   */
+  private def sourceFileFor(compiler: JawaPresentationCompiler): SourceFile =
+    if (compiler.isManaged(this)) lastSourceMap().sourceFile
+    else new FgSourceFile(file, lastSourceMap().jawaSource)
+
   /** Index this source file, but only if the project has the Jawa nature.
    *
    */
   def addToIndexer(indexer : JawaSourceIndexer) {
     if (argusProject.hasArgusNature) {
       try argusProject.presentationCompiler.internal { compiler =>
-        val cu = compiler.parseCompilationUnit(lastSourceMap().sourceFile).get
+        val cu = compiler.parseCompilationUnit(sourceFileFor(compiler)).get
         new compiler.IndexBuilderTraverser(indexer).traverse(cu)
       } catch {
         case ex: Throwable => logger.error("Compiler crash during indexing of %s".format(getResource()), ex)
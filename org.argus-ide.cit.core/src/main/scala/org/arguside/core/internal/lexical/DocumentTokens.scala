@@ -0,0 +1,173 @@
+package org.arguside.core.internal.lexical
+
+import org.eclipse.jdt.ui.text.IJavaPartitions._
+import org.eclipse.jface.text.IDocument
+import org.eclipse.jface.text.IDocument.DEFAULT_CONTENT_TYPE
+import org.eclipse.jface.text.ITypedRegion
+import org.eclipse.jface.text.TypedRegion
+import org.arguside.core.lexical.JawaPartitions._
+import org.arguside.ui.syntax.JawaSyntaxClass
+import org.arguside.ui.syntax.{ JawaSyntaxClasses => ssc }
+
+/** The tokens of a document, sorted by offset, in flat arrays.
+ *
+ *  The tokens are kept up to date by the partitioner of the document (see
+ *  `JawaDocumentPartitioner`), which is the only one to lex it. The other consumers, like the
+ *  code scanner, read them through `DocumentTokens.of`.
+ *
+ *  Offsets are stored with a gap: the tokens from `gapIndex` on are `gapDelta` further than
+ *  their stored offset. An edit only moves the gap to the edited token and adds its length
+ *  change to `gapDelta`, so consecutive edits close to each other cost little whatever the size
+ *  of the document.
+ *
+ *  @note Compound operations must hold the lock of this object; `slice` takes it.
+ */
+class DocumentTokens private[lexical] () {
+  import DocumentTokens._
+
+  private var starts = new Array[Int](InitialCapacity)
+  private var lengths = new Array[Int](InitialCapacity)
+  private var kinds = new Array[Byte](InitialCapacity)
+  private var count = 0
+
+  private var gapIndex = 0
+  private var gapDelta = 0
+
+  /** Copies the tokens in `[offset, offset + length)` to `into`, cropping the ones that
+   *  overlap its bounds.
+   */
+  def slice(offset: Int, length: Int, into: TokenBuffer): Unit = synchronized {
+    into.clear()
+    val end = offset + length
+    var i = math.max(0, indexOf(offset))
+    while (i < count && start(i) < end) {
+      val s = math.max(start(i), offset)
+      val e = math.min(start(i) + lengths(i), end)
+      if (e > s) into.add(s, e - s, kinds(i))
+      i += 1
+    }
+  }
+
+  private[lexical] def size: Int = count
+
+  private[lexical] def start(i: Int): Int = if (i >= gapIndex) starts(i) + gapDelta else starts(i)
+
+  private[lexical] def length(i: Int): Int = lengths(i)
+
+  private[lexical] def kind(i: Int): Byte = kinds(i)
+
+  /** The partition made of the `i`th token. */
+  private[lexical] def region(i: Int): ITypedRegion = new TypedRegion(start(i), lengths(i), partitionType(kinds(i)))
+
+  private[lexical] def regions(from: Int, until: Int): List[ITypedRegion] =
+    (from until until).map(region).toList
+
+  private[lexical] def reset(tokens: TokenBuffer): Unit = {
+    count = 0
+    gapIndex = 0
+    gapDelta = 0
+    replace(0, 0, tokens, 0)
+  }
+
+  /** The index of the last token starting at or before `offset`, or -1. */
+  private[lexical] def indexOf(offset: Int): Int = {
+    var lo = 0
+    var hi = count - 1
+    var found = -1
+    while (lo <= hi) {
+      val mid = (lo + hi) >>> 1
+      if (start(mid) <= offset) {
+        found = mid
+        lo = mid + 1
+      } else hi = mid - 1
+    }
+    found
+  }
+
+  /** Replace the tokens in `[from, until)` by `tokens`, and move the tokens after them by `delta`. */
+  private[lexical] def replace(from: Int, until: Int, tokens: TokenBuffer, delta: Int): Unit = {
+    moveGap(until)
+    val newCount = count - (until - from) + tokens.size
+    ensureCapacity(newCount)
+    val tail = count - until
+    val newUntil = from + tokens.size
+    System.arraycopy(starts, until, starts, newUntil, tail)
+    System.arraycopy(lengths, until, lengths, newUntil, tail)
+    System.arraycopy(kinds, until, kinds, newUntil, tail)
+
+    System.arraycopy(tokens.starts, 0, starts, from, tokens.size)
+    System.arraycopy(tokens.lengths, 0, lengths, from, tokens.size)
+    System.arraycopy(tokens.kinds, 0, kinds, from, tokens.size)
+    count = newCount
+    // the new tokens have their real offsets, the ones after them get the delta
+    gapIndex = newUntil
+    gapDelta += delta
+  }
+
+  private def moveGap(index: Int): Unit = {
+    var i = gapIndex
+    while (i < index) {
+      starts(i) += gapDelta
+      i += 1
+    }
+    i = index
+    while (i < gapIndex) {
+      starts(i) -= gapDelta
+      i += 1
+    }
+    gapIndex = index
+  }
+
+  private def ensureCapacity(capacity: Int): Unit =
+    if (capacity > starts.length) {
+      val newCapacity = math.max(capacity, starts.length * 2)
+      starts = java.util.Arrays.copyOf(starts, newCapacity)
+      lengths = java.util.Arrays.copyOf(lengths, newCapacity)
+      kinds = java.util.Arrays.copyOf(kinds, newCapacity)
+    }
+}
+
+object DocumentTokens {
+
+  private final val InitialCapacity = 256
+
+  /** The token streams of the documents with a connected partitioner. */
+  private val streams = new java.util.WeakHashMap[IDocument, DocumentTokens]
+
+  /** The up to date tokens of `document`, if its partitioner keeps them. */
+  def of(document: IDocument): Option[DocumentTokens] = streams.synchronized {
+    Option(streams.get(document))
+  }
+
+  private[lexical] def register(document: IDocument, tokens: DocumentTokens): Unit = streams.synchronized {
+    streams.put(document, tokens)
+  }
+
+  private[lexical] def unregister(document: IDocument, tokens: DocumentTokens): Unit = streams.synchronized {
+    if (streams.get(document) eq tokens) streams.remove(document)
+  }
+
+  /** The syntax classes given by the lexer, indexed by token kind. */
+  private val syntaxClasses: Array[JawaSyntaxClass] = Array(
+    ssc.DEFAULT, ssc.BRACKET, ssc.STRING, ssc.CHARACTER, ssc.MULTI_LINE_STRING, ssc.KEYWORD, ssc.RETURN,
+    ssc.LID, ssc.SINGLE_LINE_COMMENT, ssc.MULTI_LINE_COMMENT, ssc.DOC_COMMENT, ssc.OPERATOR, ssc.NUMBER_LITERAL)
+
+  private val partitionTypes: Array[String] = syntaxClasses map {
+    case ssc.CHARACTER => JAVA_CHARACTER
+    case ssc.STRING => JAVA_STRING
+    case ssc.MULTI_LINE_STRING => JAWA_MULTI_LINE_STRING
+    case ssc.SINGLE_LINE_COMMENT => JAVA_SINGLE_LINE_COMMENT
+    case ssc.MULTI_LINE_COMMENT => JAVA_MULTI_LINE_COMMENT
+    case ssc.DOC_COMMENT => JAVA_DOC
+    case _ => DEFAULT_CONTENT_TYPE
+  }
+
+  def syntaxClass(kind: Byte): JawaSyntaxClass = syntaxClasses(kind)
+
+  def partitionType(kind: Byte): String = partitionTypes(kind)
+
+  def kindOf(syntaxClass: JawaSyntaxClass): Byte = {
+    val kind = syntaxClasses.indexOf(syntaxClass)
+    if (kind < 0) 0 else kind.toByte
+  }
+}
@@ -14,23 +14,24 @@ class JawaCodeScanner(
   val preferenceStore: IPreferenceStore)
     extends AbstractJawaScanner {
 
-  import org.arguside.core.lexical.JawaCodeTokenizer.{Token => JToken}
-
-  private val tokenizer = new JawaCodeTokenizerJawaCompilerBased
-
-  private var ranges: IndexedSeq[JToken] = _
+  /** The tokens of the range, read from the tokens kept by the partitioner of the document,
+   *  or lexed when the document has none (e.g. in a compare viewer).
+   */
+  private val ranges = new TokenBuffer
   private var index: Int = _
   private var length: Int = _
   private var offset: Int = _
 
   def setRange(document: IDocument, offset: Int, length: Int) {
-    ranges = tokenizer.tokenize(document.get(offset, length), offset)
+    DocumentTokens.of(document) match {
+      case Some(tokens) => tokens.slice(offset, length, ranges)
+      case None => JawaCodeTokenizerJawaCompilerBased.lex(document.get(offset, length), offset, ranges)
+    }
     index = 0
 
     if (!ranges.isEmpty) {
-      val JToken(start, len, _) = ranges(index)
-      this.offset = start
-      this.length = len
+      this.offset = ranges.start(index)
+      this.length = ranges.length(index)
     }
   }
 
@@ -38,11 +39,10 @@ class JawaCodeScanner(
     if (index >= ranges.size)
       Token.EOF
     else {
-      val JToken(start, len, syntaxClass) = ranges(index)
-      val tok = getToken(syntaxClass)
+      val tok = getToken(DocumentTokens.syntaxClass(ranges.kind(index)))
+      offset = ranges.start(index)
+      length = ranges.length(index)
       index += 1
-      offset = start
-      length = len
       tok
     }
 
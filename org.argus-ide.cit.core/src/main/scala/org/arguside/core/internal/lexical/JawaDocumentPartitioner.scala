@@ -2,47 +2,111 @@ package org.arguside.core.internal.lexical
 
 import org.eclipse.jface.text._
 import org.eclipse.jface.text.IDocument.DEFAULT_CONTENT_TYPE
-import scala.collection.mutable.ListBuffer
+import scala.annotation.tailrec
+import scala.collection.mutable.ArrayBuffer
 import scala.math.max
 import scala.math.min
-import org.arguside.core.lexical.JawaCodePartitioner
 
 class JawaDocumentPartitioner(conservative: Boolean = false) extends IDocumentPartitioner with IDocumentPartitionerExtension with IDocumentPartitionerExtension2 {
 
   import JawaDocumentPartitioner._
   import org.arguside.util.eclipse.RegionUtils.RichTypedRegion
 
-  private var partitionRegions: List[ITypedRegion] = Nil
+  /** The tokens of the document, each one a partition. Guarded by their own lock: the document
+   *  is changed by the UI thread, and queried by reconcilers.
+   */
+  private val tokens = new DocumentTokens
+  private var document: IDocument = null
 
-  def connect(document: IDocument) {
-    partitionRegions = JawaCodePartitioner.partition(document.get)
+  /** The re-lexed tokens, reused from one change to the next. */
+  private val lexed = new TokenBuffer
+
+  def connect(document: IDocument): Unit = tokens.synchronized {
+    JawaCodeTokenizerJawaCompilerBased.lex(document.get, 0, lexed)
+    tokens.reset(lexed)
+    this.document = document
+    DocumentTokens.register(document, tokens)
   }
 
-  def disconnect() {
-    partitionRegions = Nil
+  def disconnect(): Unit = tokens.synchronized {
+    if (document != null) DocumentTokens.unregister(document, tokens)
+    document = null
+    lexed.clear()
+    tokens.reset(lexed)
   }
 
   def documentAboutToBeChanged(event: DocumentEvent) {}
 
   def documentChanged(event: DocumentEvent): Boolean = documentChanged2(event) != null
 
-  def documentChanged2(event: DocumentEvent): IRegion = {
-    val oldPartitions = partitionRegions
-    val newPartitions = JawaCodePartitioner.partition(event.getDocument.get)
-    partitionRegions = newPartitions
+  /** Partitions again only the damaged part of the document.
+   *
+   *  Lexing restarts at the token before the edit (typing at the end of a token may extend it),
+   *  and goes on until it produces a token that is an old one moved by the edit: from there on,
+   *  the lexer is in the same state as before, so the old tokens are still right. Most edits
+   *  re-lex a few tokens; opening a comment or a string re-lexes up to where it is closed.
+   */
+  def documentChanged2(event: DocumentEvent): IRegion = tokens.synchronized {
+    val document = event.getDocument
+    val offset = event.getOffset
+    val length = event.getLength
+    val text = Option(event.getText).getOrElse("")
+    val delta = text.length - length
+
+    val firstDirty = max(0, tokens.indexOf(offset - 1))
+    val restart = if (tokens.size == 0) 0 else min(tokens.start(firstDirty), offset)
+    val editEnd = offset + text.length
+
+    /** Lexes a growing window after the edit, until an old token is found in it. Returns the
+     *  index of that token, `lexed` holding the tokens before it.
+     */
+    @tailrec
+    def relex(window: Int): Int = {
+      val end = min(document.getLength, editEnd + window)
+      val atEnd = end == document.getLength
+      JawaCodeTokenizerJawaCompilerBased.lex(document.get(restart, end - restart), restart, lexed)
+      // the last token may be cut by the end of the window
+      val candidates = if (atEnd) lexed.size else lexed.size - 1
+      var i = 0
+      while (i < candidates && (lexed.start(i) < editEnd || oldTokenIndex(i, delta) < 0))
+        i += 1
+      if (i < candidates) {
+        val old = oldTokenIndex(i, delta)
+        lexed.truncate(i)
+        old
+      } else if (atEnd) tokens.size
+      else relex(window * 4)
+    }
+
+    val lastDirty = relex(InitialWindow)
+    val oldDirty = tokens.regions(firstDirty, lastDirty)
+    tokens.replace(firstDirty, lastDirty, lexed, delta)
+    val newDirty = tokens.regions(firstDirty, firstDirty + lexed.size)
+
     if (conservative)
-      new Region(0, event.getDocument.getLength)
+      new Region(0, document.getLength)
+    else if (tokens.size == 0)
+      new Region(0, 0)
     else
-      calculateDirtyRegion(oldPartitions, newPartitions, event.getOffset, event.getLength, event.getText)
+      calculateDirtyRegion(oldDirty, newDirty, offset, length, text)
+  }
+
+  /** The index of the `i`th re-lexed token among the old tokens, after the edit moved them by
+   *  `delta`, or -1 if it isn't an old token.
+   */
+  private def oldTokenIndex(i: Int, delta: Int): Int = {
+    val start = lexed.start(i) - delta
+    val old = tokens.indexOf(start)
+    if (old >= 0 && tokens.start(old) == start && tokens.length(old) == lexed.length(i) && tokens.kind(old) == lexed.kind(i)) old
+    else -1
   }
 
+  /** Compares the partitions replaced by an edit with the ones replacing them. */
   private def calculateDirtyRegion(oldPartitions: List[ITypedRegion], newPartitions: List[ITypedRegion], offset: Int, length: Int, text: String): IRegion =
-    if (newPartitions.isEmpty)
-      new Region(0, 0)
-    else if (oldPartitions == newPartitions)
+    if (oldPartitions == newPartitions)
       null
     else {
-      // Scan outside-in from both the beginning and the end of the document to match up undisturbed partitions:
+      // Scan outside-in from both ends of the damaged part to match up undisturbed partitions:
       val unchangedLeadingRegionCount = commonPrefixLength(oldPartitions, newPartitions)
       val adjustedOldPartitions =
         for (region <- oldPartitions if region.getOffset > offset + length - 1)
@@ -56,7 +120,7 @@ class JawaDocumentPartitioner(conservative: Boolean = false) extends IDocumentPa
         oldPartitions(unchangedLeadingRegionCount).getType == newPartitions(unchangedLeadingRegionCount).getType
       if (singleDirtyPartitionWithUnchangedContentType)
         null
-      else if (dirtyNewPartitionCount == 0) // i.e. a deletion of partitions
+      else if (dirtyNewPartitionCount <= 0) // i.e. a deletion of partitions
         new Region(offset, 0)
       else {
         // Otherwise just the dirty region:
@@ -72,23 +136,21 @@ class JawaDocumentPartitioner(conservative: Boolean = false) extends IDocumentPa
 
   def getContentType(offset: Int) = getToken(offset) map { _.getType } getOrElse DEFAULT_CONTENT_TYPE
 
-  private def getToken(offset: Int) = partitionRegions.find(_.containsPositionExclusive(offset))
-
-  def computePartitioning(offset: Int, length: Int): Array[ITypedRegion] = {
-    val regions = new ListBuffer[ITypedRegion]
-    var searchingForStart = true
-    for (partitionRegion <- partitionRegions)
-      if (searchingForStart) {
-        if (partitionRegion containsPositionExclusive offset) {
-          searchingForStart = false
-          regions += partitionRegion.crop(offset, length)
-        }
-      } else {
-        if (partitionRegion.getOffset > offset + length - 1)
-          return regions.toArray
-        else
-          regions += partitionRegion.crop(offset, length)
+  private def getToken(offset: Int): Option[ITypedRegion] = tokens.synchronized {
+    val i = tokens.indexOf(offset)
+    if (i >= 0 && offset < tokens.start(i) + tokens.length(i)) Some(tokens.region(i)) else None
+  }
+
+  def computePartitioning(offset: Int, length: Int): Array[ITypedRegion] = tokens.synchronized {
+    val regions = new ArrayBuffer[ITypedRegion]
+    val first = tokens.indexOf(offset)
+    if (first >= 0 && offset < tokens.start(first) + tokens.length(first)) {
+      var i = first
+      while (i < tokens.size && (i == first || tokens.start(i) <= offset + length - 1)) {
+        regions += tokens.region(i).crop(offset, length)
+        i += 1
       }
+    }
     regions.toArray
   }
 
@@ -124,6 +186,9 @@ object JawaDocumentPartitioner {
 
   private val NO_PARTITION_AT_ALL = "__no_partition_at_all"
 
+  /** The characters lexed past the edit before looking for old tokens, grown until one is found. */
+  private final val InitialWindow = 256
+
   final val EOF = '\u001A'
 
 }
@@ -0,0 +1,45 @@
+package org.arguside.core.internal.lexical
+
+/** A growable sequence of tokens, stored as primitive arrays.
+ *
+ *  A token is an offset, a length and a kind (see `DocumentTokens.syntaxClass`).
+ *
+ *  @note This class is not thread-safe.
+ */
+class TokenBuffer(initialCapacity: Int = 64) {
+  private[lexical] var starts = new Array[Int](initialCapacity)
+  private[lexical] var lengths = new Array[Int](initialCapacity)
+  private[lexical] var kinds = new Array[Byte](initialCapacity)
+  private var count = 0
+
+  def size: Int = count
+
+  def isEmpty: Boolean = count == 0
+
+  def start(i: Int): Int = starts(i)
+
+  def length(i: Int): Int = lengths(i)
+
+  def kind(i: Int): Byte = kinds(i)
+
+  def clear(): Unit = count = 0
+
+  def add(start: Int, length: Int, kind: Byte): Unit = {
+    ensureCapacity(count + 1)
+    starts(count) = start
+    lengths(count) = length
+    kinds(count) = kind
+    count += 1
+  }
+
+  /** Keep only the first `n` tokens. */
+  def truncate(n: Int): Unit = if (n < count) count = n
+
+  private[lexical] def ensureCapacity(capacity: Int): Unit =
+    if (capacity > starts.length) {
+      val newCapacity = math.max(capacity, starts.length * 2)
+      starts = java.util.Arrays.copyOf(starts, newCapacity)
+      lengths = java.util.Arrays.copyOf(lengths, newCapacity)
+      kinds = java.util.Arrays.copyOf(kinds, newCapacity)
+    }
+}
@@ -14,8 +14,7 @@ import org.eclipse.core.resources.IFile
 import org.eclipse.core.resources.IMarker
 import org.eclipse.core.resources.IProject
 import org.eclipse.core.resources.IResource
-import org.eclipse.core.resources.IResourceProxy
-import org.eclipse.core.resources.IResourceProxyVisitor
+import org.eclipse.core.resources.IResourceDelta
 import org.eclipse.core.resources.ProjectScope
 import org.eclipse.core.runtime.IPath
 import org.eclipse.core.runtime.IProgressMonitor
@@ -59,6 +58,7 @@ import java.io.IOException
 import org.arguside.ui.internal.preferences.PropertyStore
 import org.arguside.core.internal.compiler.PresentationCompilerProxy
 import org.arguside.core.internal.compiler.PresentationCompilerActivityListener
+import org.arguside.core.internal.compiler.PresentationCompilerManager
 import org.arguside.core.compiler.IJawaPresentationCompiler
 import org.arguside.core.internal.builder.EclipseBuildManager
 import org.arguside.core.internal.compiler.JawaPresentationCompiler
@@ -138,6 +138,7 @@ class ArgusProject private (val underlying: IProject) extends ClasspathManagemen
    */
   private def init(): Unit = {
     presentationCompiler.subscribe(watchdog)
+    PresentationCompilerManager.register(presentationCompiler)
     SWTUtils.getWorkbenchWindow map (_.getPartService().addPartListener(worbenchPartListener))
   }
 
@@ -150,12 +151,6 @@ class ArgusProject private (val underlying: IProject) extends ClasspathManagemen
     mrk.setAttribute(IMarker.MESSAGE, msg)
   }
 
-    /** Deletes the build problem marker associated to {{{this}}} Scala project. */
-  private def clearBuildProblemMarker(): Unit =
-    if (isUnderlyingValid) {
-      underlying.deleteMarkers(CitConstants.ProblemMarkerId, true, IResource.DEPTH_ZERO)
-    }
-
   /** Deletes all build problem markers for all resources in {{{this}}} Scala project. */
   private def clearAllBuildProblemMarkers(): Unit = {
     if (isUnderlyingValid) {
@@ -232,84 +227,23 @@ class ArgusProject private (val underlying: IProject) extends ClasspathManagemen
       case e: JavaModelException => logger.error(e); Nil
     }
   
-  def allSourceFiles(): Set[IFile] = {
-    allFilesInSourceDirs() filter (f => FileUtils.isBuildable(f.getName))
-  }
-
-  def allFilesInSourceDirs(): Set[IFile] = {
-    /** Cache it for the duration of this call */
-    lazy val currentSourceOutputFolders = sourceOutputFolders
-
-    /** Return the inclusion patterns of `entry` as an Array[Array[Char]], ready for consumption
-     *  by the JDT.
-     *
-     *  @see org.eclipse.jdt.internal.core.ClassPathEntry.fullInclusionPatternChars()
-     */
-    def fullPatternChars(entry: IClasspathEntry, patterns: Array[IPath]): Array[Array[Char]] = {
-      if (patterns.isEmpty)
-        null
-      else {
-        val prefixPath = entry.getPath().removeTrailingSeparator();
-        for (pattern <- patterns)
-          yield prefixPath.append(pattern).toString().toCharArray();
-      }
-    }
-
-    /** Logic is copied from existing code ('isExcludedFromProject'). Code is trying to
-     *  see if the given path is a source or output folder for any source entry in the
-     *  classpath of this project.
-     */
-    def sourceOrBinaryFolder(path: IPath): Boolean = {
-      if (path.segmentCount() > 2) return false // is a subfolder of a package
+  /** The files in the source folders, maintained from resource deltas. */
+  private[project] val sourceIndex = new SourceIndex(this)
 
-      currentSourceOutputFolders exists {
-        case (srcFolder, binFolder) =>
-          (srcFolder.getFullPath() == path || binFolder.getFullPath() == path)
-      }
-    }
+  def allSourceFiles(): Set[IFile] =
+    sourceIndex.allSourceFiles
 
-    var sourceFiles = new immutable.HashSet[IFile]
+  def allFilesInSourceDirs(): Set[IFile] =
+    sourceIndex.allFilesInSourceDirs
 
-    for {
-      srcEntry <- javaProject.getResolvedClasspath(true)
-      if srcEntry.getEntryKind() == IClasspathEntry.CPE_SOURCE
-      srcFolder = EclipseUtils.workspaceRoot.findMember(srcEntry.getPath())
-      if srcFolder ne null
-    } {
-      val inclusionPatterns = fullPatternChars(srcEntry, srcEntry.getInclusionPatterns())
-      val exclusionPatterns = fullPatternChars(srcEntry, srcEntry.getExclusionPatterns())
-      val isAlsoProject = srcFolder == underlying // source folder is the project itself
-
-      srcFolder.accept(
-        new IResourceProxyVisitor {
-          def visit(proxy: IResourceProxy): Boolean = {
-            proxy.getType match {
-              case IResource.FILE =>
-                if (!Util.isExcluded(proxy.requestFullPath(), inclusionPatterns, exclusionPatterns, false))
-                  sourceFiles += proxy.requestResource().asInstanceOf[IFile] // must be an IFile, otherwise we wouldn't be here
-
-                false // don't recurse, it's a file anyway
-
-              case IResource.FOLDER =>
-                if (isAlsoProject) {
-                  !sourceOrBinaryFolder(proxy.requestFullPath) // recurse if not on a source or binary folder path
-                } else if (exclusionPatterns != null) {
-                  if (Util.isExcluded(proxy.requestFullPath, inclusionPatterns, exclusionPatterns, true)) {
-                    // must walk children if inclusionPatterns != null, can skip them if == null
-                    // but folder is excluded so do not create it in the output folder
-                    inclusionPatterns != null
-                  } else true
-                } else true // recurse into subfolders
-
-              case _ =>
-                true
-            }
-          }
-        }, IResource.NONE)
-    }
+  def hasResourcesInSourceDirs(): Boolean =
+    sourceIndex.hasResources
 
-    sourceFiles
-  }
+  /** Called with the resource delta of this project, by the plugin after each workspace change,
+   *  and by the builder before it reads the source files.
+   */
+  private[core] def resourcesChanged(delta: IResourceDelta): Unit =
+    sourceIndex.update(delta)
 
   private def cleanOutputFolders(implicit monitor: IProgressMonitor) = {
     def delete(container: IContainer, deleteDirs: Boolean)(f: String => Boolean): Unit =
@@ -352,7 +286,8 @@ class ArgusProject private (val underlying: IProject) extends ClasspathManagemen
   private def refreshOutputFolders(): Unit = {
     sourceOutputFolders foreach {
       case (_, binFolder) =>
-        binFolder.refreshLocal(IResource.DEPTH_INFINITE, null)
+        if (!buildManager.keepsOutputInSync)
+          binFolder.refreshLocal(IResource.DEPTH_INFINITE, null)
         // make sure the folder is marked as Derived, so we don't see classfiles in Open Resource
         // but don't set it unless necessary (this might be an expensive operation)
         if (!binFolder.isDerived && binFolder.exists)
@@ -448,11 +383,12 @@ class ArgusProject private (val underlying: IProject) extends ClasspathManagemen
     buildManager.invalidateAfterLoad
   else false
 
-  def build(addedOrUpdated: Set[IFile], removed: Set[IFile], monitor: SubMonitor) {
+  def build(addedOrUpdated: Set[IFile], removed: Set[IFile], forced: Set[IFile], monitor: SubMonitor) {
     hasBeenBuilt = true
 
-    clearBuildProblemMarker()
-    buildManager.build(addedOrUpdated, removed, monitor)
+    // the build manager replaces the problem markers of the project, see `JawaBuildManager.build`
+    val apiBefore = buildManager.apiFingerprint
+    buildManager.build(addedOrUpdated, removed, forced, monitor)
     refreshOutputFolders()
 
     // Already performs saving the dependencies
@@ -461,9 +397,12 @@ class ArgusProject private (val underlying: IProject) extends ClasspathManagemen
       // reset presentation compilers of projects that depend on this one
       // since the output directory now contains the up-to-date version of this project
       // note: JawaBuilder resets the presentation compiler when a referred project
-      // is built, but only when it has changes! this call makes sure that a rebuild,
-      // even when there are no changes, propagates the classpath to dependent projects
-      resetDependentProjects()
+      // is built, but only when its API changed! this call makes sure that a rebuild
+      // propagates the classpath to dependent projects, unless the API is the same
+      if (apiBefore.isEmpty || buildManager.apiFingerprint != apiBefore)
+        resetDependentProjects()
+      else
+        logger.debug(s"[$this] API unchanged, not resetting the dependent projects")
       publish(BuildSuccess())
     }
   }
@@ -490,7 +429,7 @@ class ArgusProject private (val underlying: IProject) extends ClasspathManagemen
     resetCompilers // reset them only after the output directory is emptied
   }
   
-  private def resetBuildCompiler() {
+  protected def resetBuildCompiler() {
     buildManager0 = null
     hasBeenBuilt = false
   }
@@ -506,6 +445,7 @@ class ArgusProject private (val underlying: IProject) extends ClasspathManagemen
     def shutDownCompilers() {
       logger.info("shutting down compilers for " + this)
       resetBuildCompiler()
+      PresentationCompilerManager.unregister(presentationCompiler)
       presentationCompiler.shutdown()
     }
 
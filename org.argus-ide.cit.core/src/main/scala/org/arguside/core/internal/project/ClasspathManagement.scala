@@ -229,13 +229,19 @@ trait ClasspathManagement extends HasLogger { self: ArgusProject =>
       classpathCheckLock.synchronized {
         // mark as in progress
         classpathHasBeenChecked = false
+        // source folders and their filters might have changed
+        sourceIndex.invalidate()
             checkClasspath()
         if (classpathValid) {
-          // no point in resetting compilers on an invalid classpath,
-          // it would not work anyway. But we need to reset them if the classpath
+          // no point in resetting the build compiler on an invalid classpath,
+          // it would not work anyway. But we need to reset it if the classpath
           // was (and still is) valid, because the contents might have changed.
-          logger.info("Resetting compilers due to classpath change.")
-          resetCompilers()
+          // The presentation compiler only reads the sources of the project: the source
+          // folders that came or went with the classpath are passed to it by ArgusPlugin.elementChanged.
+          logger.info("Resetting the build compiler due to classpath change.")
+          // the sources have to be compiled against the new classpath, even the unchanged ones
+          buildManager.invalidate()
+          resetBuildCompiler()
         }
       }
     }
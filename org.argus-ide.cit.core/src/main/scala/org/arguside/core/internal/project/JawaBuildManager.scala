@@ -7,6 +7,7 @@ import org.arguside.core.IArgusPlugin
 import org.arguside.core.IArgusProject
 import org.arguside.core.CitConstants
 import org.arguside.core.internal.builder.BuildProblemMarker
+import org.arguside.core.resources.MarkerBatch
 import org.arguside.util.internal.SettingConverterUtil
 import org.arguside.core.internal.builder.CachedAnalysisBuildManager
 import org.arguside.logging.HasLogger
@@ -22,7 +23,7 @@ class JawaBuildManager(project: IArgusProject, analysisCache: Option[IFile] = No
   addToClasspath: Seq[IPath] = Seq.empty, srcOutputs: Seq[(IContainer, IContainer)] = Seq.empty) 
   extends EclipseJawaBuildManager(project, analysisCache, addToClasspath, srcOutputs) with HasLogger {
   
-  private def areTransitiveDependenciesBuilt = {
+  private def areTransitiveDependenciesBuilt(markers: MarkerBatch) = {
     val projectsInError =
       project.transitiveDependencies.filter(p => IArgusPlugin().getArgusProject(p).buildManager.hasErrors)
 
@@ -30,18 +31,22 @@ class JawaBuildManager(project: IArgusProject, analysisCache: Option[IFile] = No
     val stopBuildOnErrors = true//project.storage.getBoolean(stopBuildOnErrorsProperty)
 
     if (stopBuildOnErrors && projectsInError.nonEmpty) {
-      project.underlying.deleteMarkers(CitConstants.ProblemMarkerId, true, IResource.DEPTH_INFINITE)
       val errorText = projectsInError.map(_.getName).toSet.mkString(", ")
-      BuildProblemMarker.create(project.underlying,
+      BuildProblemMarker.create(markers, project.underlying,
         s"Project ${project.underlying.getName} not built due to errors in dependent project(s) ${errorText}")
       false
     } else true
   }
 
-  override def build(addedOrUpdated: Set[IFile], removed: Set[IFile], pm: SubMonitor): Unit = {
-    if (areTransitiveDependenciesBuilt) {
-      project.underlying.deleteMarkers(CitConstants.ProblemMarkerId, true, IResource.DEPTH_INFINITE)
-      super.build(addedOrUpdated, removed, pm)
-    }
+  /** Replaces all the problem and task markers of the project in one operation: the ones the
+   *  build reports are kept or created, the others are deleted.
+   */
+  override def build(addedOrUpdated: Set[IFile], removed: Set[IFile], forced: Set[IFile], pm: SubMonitor): Unit = {
+    val markers = new MarkerBatch
+    BuildProblemMarker.reset(markers, project.underlying, IResource.DEPTH_INFINITE)
+    try {
+      if (areTransitiveDependenciesBuilt(markers))
+        build(addedOrUpdated, removed, forced, pm, markers)
+    } finally markers.apply(pm)
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,217 @@
+package org.arguside.core.internal.project
+
+import scala.collection.immutable
+import org.eclipse.core.resources.IFile
+import org.eclipse.core.resources.IResource
+import org.eclipse.core.resources.IResourceDelta
+import org.eclipse.core.resources.IResourceDeltaVisitor
+import org.eclipse.core.resources.IResourceProxy
+import org.eclipse.core.resources.IResourceProxyVisitor
+import org.eclipse.core.runtime.IPath
+import org.eclipse.jdt.core.IClasspathEntry
+import org.eclipse.jdt.internal.core.util.Util
+import org.arguside.logging.HasLogger
+import org.arguside.util.eclipse.EclipseUtils
+import org.arguside.util.eclipse.FileUtils
+
+/** The files in the source folders of a project.
+ *
+ *  The index walks the source folders once, the first time it is queried, and is then
+ *  kept up to date with the resource deltas of the workspace (see `update`). A change
+ *  to the classpath or to the `.classpath` file discards it, and the next query walks
+ *  the source folders again.
+ *
+ *  @note This class is thread-safe. The returned sets are immutable snapshots.
+ */
+private[project] class SourceIndex(project: ArgusProject) extends HasLogger {
+  import SourceIndex._
+
+  /** `null` when the index has to be rebuilt. */
+  private var filters: Seq[SourceFilter] = null
+  private var allFiles = immutable.HashSet.empty[IFile]
+  private var sourceFiles = immutable.HashSet.empty[IFile]
+
+  /** All files in the source folders, respecting inclusion and exclusion filters. */
+  def allFilesInSourceDirs: Set[IFile] = synchronized {
+    ensureIndexed()
+    allFiles
+  }
+
+  /** The buildable files (Java or pilar sources) in the source folders. */
+  def allSourceFiles: Set[IFile] = synchronized {
+    ensureIndexed()
+    sourceFiles
+  }
+
+  /** Are there files in the source folders that are not sources, and need to be copied to the output? */
+  def hasResources: Boolean = synchronized {
+    ensureIndexed()
+    allFiles.size != sourceFiles.size
+  }
+
+  /** Discard the index, it is rebuilt on the next query. */
+  def invalidate(): Unit = synchronized {
+    filters = null
+    allFiles = immutable.HashSet.empty
+    sourceFiles = immutable.HashSet.empty
+  }
+
+  /** Apply a resource delta rooted at this project. Only the changed files are visited.
+   *
+   *  The delta is visited, and the source folders are read from the JDT, without holding the
+   *  lock of the index. Applying the same delta twice (e.g. by the builder, then by the
+   *  workspace listener) has no effect the second time.
+   */
+  def update(projectDelta: IResourceDelta): Unit = {
+    val indexed = synchronized(filters)
+    if (indexed ne null) {
+      var classpathChanged = false
+      val added = List.newBuilder[IFile]
+      val removed = List.newBuilder[IFile]
+      projectDelta.accept(new IResourceDeltaVisitor {
+        def visit(delta: IResourceDelta): Boolean = delta.getResource match {
+          case file: IFile if file.getParent == project.underlying && file.getName == ClasspathFileName =>
+            classpathChanged = true
+            false
+          case file: IFile =>
+            delta.getKind match {
+              case IResourceDelta.ADDED => added += file
+              case IResourceDelta.REMOVED => removed += file
+              case _ =>
+            }
+            false
+          case _ =>
+            // once invalidated, the rest of the delta is irrelevant
+            !classpathChanged
+        }
+      })
+
+      if (classpathChanged) invalidate()
+      else {
+        lazy val sourceOrBinaryFolders = project.sourceOutputFolders flatMap {
+          case (srcFolder, binFolder) => List(srcFolder.getFullPath, binFolder.getFullPath)
+        }
+        val included = added.result filter (isIncluded(indexed, _, sourceOrBinaryFolders))
+        synchronized {
+          // an index rebuilt meanwhile already knows about these files
+          if (filters eq indexed) {
+            included foreach add
+            removed.result foreach remove
+          }
+        }
+      }
+    }
+  }
+
+  private def add(file: IFile): Unit = {
+    allFiles += file
+    if (FileUtils.isBuildable(file.getName))
+      sourceFiles += file
+  }
+
+  private def remove(file: IFile): Unit = {
+    allFiles -= file
+    sourceFiles -= file
+  }
+
+  private def isIncluded(filters: Seq[SourceFilter], file: IFile, sourceOrBinaryFolders: => Seq[IPath]): Boolean = {
+    val path = file.getFullPath
+    filters exists { filter =>
+      filter.folder.isPrefixOf(path) &&
+        !Util.isExcluded(path, filter.inclusionPatterns, filter.exclusionPatterns, false) &&
+        !(filter.isAlsoProject && path.segmentCount > 2 && sourceOrBinaryFolders.contains(path.uptoSegment(2)))
+    }
+  }
+
+  private def ensureIndexed(): Unit =
+    if (filters eq null) {
+      val start = System.currentTimeMillis
+      scan()
+      logger.debug(s"Indexed ${allFiles.size} files in the source folders of ${project} in ${System.currentTimeMillis - start}ms")
+    }
+
+  private def scan(): Unit = {
+    /** Cache it for the duration of this call */
+    lazy val currentSourceOutputFolders = project.sourceOutputFolders
+
+    /** Logic is copied from existing code ('isExcludedFromProject'). Code is trying to
+     *  see if the given path is a source or output folder for any source entry in the
+     *  classpath of this project.
+     */
+    def sourceOrBinaryFolder(path: IPath): Boolean = {
+      if (path.segmentCount() > 2) return false // is a subfolder of a package
+
+      currentSourceOutputFolders exists {
+        case (srcFolder, binFolder) =>
+          (srcFolder.getFullPath() == path || binFolder.getFullPath() == path)
+      }
+    }
+
+    var newFilters = List.empty[SourceFilter]
+    var files = new immutable.HashSet[IFile]
+
+    for {
+      srcEntry <- project.javaProject.getResolvedClasspath(true)
+      if srcEntry.getEntryKind() == IClasspathEntry.CPE_SOURCE
+      srcFolder = EclipseUtils.workspaceRoot.findMember(srcEntry.getPath())
+      if srcFolder ne null
+    } {
+      val inclusionPatterns = fullPatternChars(srcEntry, srcEntry.getInclusionPatterns())
+      val exclusionPatterns = fullPatternChars(srcEntry, srcEntry.getExclusionPatterns())
+      val isAlsoProject = srcFolder == project.underlying // source folder is the project itself
+      newFilters ::= SourceFilter(srcFolder.getFullPath, inclusionPatterns, exclusionPatterns, isAlsoProject)
+
+      srcFolder.accept(
+        new IResourceProxyVisitor {
+          def visit(proxy: IResourceProxy): Boolean = {
+            proxy.getType match {
+              case IResource.FILE =>
+                if (!Util.isExcluded(proxy.requestFullPath(), inclusionPatterns, exclusionPatterns, false))
+                  files += proxy.requestResource().asInstanceOf[IFile] // must be an IFile, otherwise we wouldn't be here
+
+                false // don't recurse, it's a file anyway
+
+              case IResource.FOLDER =>
+                if (isAlsoProject) {
+                  !sourceOrBinaryFolder(proxy.requestFullPath) // recurse if not on a source or binary folder path
+                } else if (exclusionPatterns != null) {
+                  if (Util.isExcluded(proxy.requestFullPath, inclusionPatterns, exclusionPatterns, true)) {
+                    // must walk children if inclusionPatterns != null, can skip them if == null
+                    // but folder is excluded so do not create it in the output folder
+                    inclusionPatterns != null
+                  } else true
+                } else true // recurse into subfolders
+
+              case _ =>
+                true
+            }
+          }
+        }, IResource.NONE)
+    }
+
+    filters = newFilters
+    allFiles = files
+    sourceFiles = files filter (f => FileUtils.isBuildable(f.getName))
+  }
+}
+
+private object SourceIndex {
+  private final val ClasspathFileName = ".classpath"
+
+  private case class SourceFilter(folder: IPath, inclusionPatterns: Array[Array[Char]], exclusionPatterns: Array[Array[Char]], isAlsoProject: Boolean)
+
+  /** Return the inclusion patterns of `entry` as an Array[Array[Char]], ready for consumption
+   *  by the JDT.
+   *
+   *  @see org.eclipse.jdt.internal.core.ClassPathEntry.fullInclusionPatternChars()
+   */
+  private def fullPatternChars(entry: IClasspathEntry, patterns: Array[IPath]): Array[Array[Char]] = {
+    if (patterns.isEmpty)
+      null
+    else {
+      val prefixPath = entry.getPath().removeTrailingSeparator();
+      for (pattern <- patterns)
+        yield prefixPath.append(pattern).toString().toCharArray();
+    }
+  }
+}
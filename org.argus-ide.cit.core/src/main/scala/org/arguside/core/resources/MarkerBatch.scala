@@ -0,0 +1,96 @@
+package org.arguside.core.resources
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+import org.eclipse.core.resources.IMarker
+import org.eclipse.core.resources.IResource
+import org.eclipse.core.resources.IWorkspace
+import org.eclipse.core.resources.IWorkspaceRunnable
+import org.eclipse.core.resources.ResourcesPlugin
+import org.eclipse.core.runtime.IProgressMonitor
+import org.arguside.logging.HasLogger
+
+/** Collects the markers that a set of resources should have, and applies them in a single
+ *  workspace operation.
+ *
+ *  Resources passed to `reset` get exactly the markers of that type added to the batch:
+ *  existing markers with the same attributes are kept, the others are deleted. This way, a
+ *  build that finds the same problems (or tasks) as the previous one does not touch the
+ *  markers at all, and all changes are broadcast in one resource change notification.
+ *
+ *  {{{
+ *  val batch = new MarkerBatch
+ *  batch.reset(file, CitConstants.TaskMarkerId)
+ *  batch.add(file, CitConstants.TaskMarkerId, attributes)
+ *  batch.apply(monitor)
+ *  }}}
+ *
+ *  @note This class is not thread-safe.
+ */
+class MarkerBatch extends HasLogger {
+  private val resets = mutable.LinkedHashMap.empty[(IResource, String), Int]
+  private val desired = mutable.LinkedHashMap.empty[(IResource, String), mutable.ArrayBuffer[Map[String, AnyRef]]]
+
+  /** Declare the markers of type `markerType` of `resource`, and of its members up to `depth`:
+   *  its existing markers that are not added to this batch are deleted.
+   */
+  def reset(resource: IResource, markerType: String, depth: Int = IResource.DEPTH_ZERO): this.type = {
+    val key = (resource, markerType)
+    resets(key) = resets.get(key).fold(depth)(_ max depth)
+    this
+  }
+
+  /** Add a marker of type `markerType` with the given `attributes` to `resource`. */
+  def add(resource: IResource, markerType: String, attributes: Map[String, AnyRef]): this.type = {
+    desired.getOrElseUpdate((resource, markerType), mutable.ArrayBuffer.empty) += attributes
+    this
+  }
+
+  def isEmpty: Boolean = resets.isEmpty && desired.isEmpty
+
+  /** Apply the changes, and empty this batch. */
+  def apply(monitor: IProgressMonitor = null): Unit = if (!isEmpty) {
+    val workspace = ResourcesPlugin.getWorkspace
+    workspace.run(new IWorkspaceRunnable {
+      def run(monitor: IProgressMonitor): Unit = applyChanges(workspace)
+    }, null, IWorkspace.AVOID_UPDATE, monitor)
+    resets.clear()
+    desired.clear()
+  }
+
+  private def applyChanges(workspace: IWorkspace): Unit = {
+    val toCreate = desired map { case (key, markers) => key -> markers.clone() }
+    val toDelete = mutable.ArrayBuffer.empty[IMarker]
+
+    val existing = for {
+      ((resource, markerType), depth) <- resets.toSeq
+      if resource.exists
+      marker <- resource.findMarkers(markerType, true, depth)
+    } yield marker
+
+    // a marker may be found by more than one reset, e.g. of a folder and of a file in it
+    for (marker <- existing.distinct) {
+      // subtypes of `markerType` are found as well, they are only kept if they were added as such
+      val wanted = toCreate.get((marker.getResource, marker.getType))
+      val attributes = marker.getAttributes.asScala.toMap
+      val index = wanted.map(_.indexOf(attributes)).getOrElse(-1)
+      if (index >= 0) wanted.get.remove(index) // already there, keep it
+      else toDelete += marker
+    }
+
+    if (toDelete.nonEmpty)
+      workspace.deleteMarkers(toDelete.toArray)
+
+    var created = 0
+    for {
+      ((resource, markerType), markers) <- toCreate
+      if resource.exists
+      attributes <- markers
+    } {
+      val (keys, values) = attributes.toArray.unzip
+      resource.createMarker(markerType).setAttributes(keys, values)
+      created += 1
+    }
+    logger.debug(s"Updated markers: $created created, ${toDelete.size} deleted")
+  }
+}
@@ -46,13 +46,26 @@ abstract class MarkerFactory(markerType: String) {
     * @param pos      The source position for the marker.
     */
   def create(resource: IResource, severity: Int, msg: String, pos: MarkerFactory.Position): Unit = {
-    val marker = resource.createMarker(markerType)
-    update(marker, severity, msg)
-    setPos(marker, pos)
+    val (keys, values) = attributes(severity, msg, pos).toArray.unzip
+    resource.createMarker(markerType).setAttributes(keys, values)
   }
 
-  private def update(marker: IMarker, severity: Int, msg: String): IMarker = {
-    marker.setAttribute(IMarker.SEVERITY, severity)
+  /** Declare in `batch` all the markers of this factory's type of `resource` and of its members
+    * up to `depth`, see [[MarkerBatch.reset]].
+    */
+  def reset(batch: MarkerBatch, resource: IResource, depth: Int = IResource.DEPTH_ZERO): Unit =
+    batch.reset(resource, markerType, depth)
+
+  /** Add a marker to `batch`, instead of creating it right away.
+    * @see [[create(IResource,Int,String,MarkerFactory.Position)]]
+    */
+  def create(batch: MarkerBatch, resource: IResource, severity: Int, msg: String, pos: MarkerFactory.Position): Unit =
+    batch.add(resource, markerType, attributes(severity, msg, pos))
+
+  private def attributes(severity: Int, msg: String, pos: MarkerFactory.Position): Map[String, AnyRef] =
+    message(severity, msg) ++ position(pos)
+
+  private def message(severity: Int, msg: String): Map[String, AnyRef] = {
     // Marker attribute values are limited to <= 65535 bytes and setAttribute will assert if they
     // exceed this. To guard against this we trim to <= 21000 characters ... see
     // org.eclipse.core.internal.resources.MarkerInfo.checkValidAttribute for justification
@@ -65,19 +78,19 @@ abstract class MarkerFactory(markerType: String) {
       case c => c
     }
 
-    // the truncated error message is shown by the problems view and the annotation hover
-    marker.setAttribute(IMarker.MESSAGE, attrValue)
-    // the full error message is shown by the editor hover
-    marker.setAttribute(ArgusMarkers.FullErrorMessage, trimmedMsg)
-    marker
+    Map(
+      IMarker.SEVERITY -> Integer.valueOf(severity),
+      // the truncated error message is shown by the problems view and the annotation hover
+      IMarker.MESSAGE -> attrValue,
+      // the full error message is shown by the editor hover
+      ArgusMarkers.FullErrorMessage -> trimmedMsg)
   }
 
-  private def setPos(marker: IMarker, position: MarkerFactory.Position): IMarker = {
-    if (position.isDefined) {
-      marker.setAttribute(IMarker.CHAR_START, position.offset)
-      marker.setAttribute(IMarker.CHAR_END, position.offset + math.max(position.length, 1))
-      marker.setAttribute(IMarker.LINE_NUMBER, position.line)
-    }
-    marker
-  }
+  private def position(position: MarkerFactory.Position): Map[String, AnyRef] =
+    if (position.isDefined)
+      Map(
+        IMarker.CHAR_START -> Integer.valueOf(position.offset),
+        IMarker.CHAR_END -> Integer.valueOf(position.offset + math.max(position.length, 1)),
+        IMarker.LINE_NUMBER -> Integer.valueOf(position.line))
+    else Map.empty
 }
@@ -1,9 +1,9 @@
 package org.arguside.ui.editor
 
+import scala.collection.mutable
 import org.eclipse.jface.text.source.Annotation
 import org.eclipse.jface.text.source.IAnnotationModel
 import org.eclipse.jdt.internal.ui.javaeditor.CompilationUnitDocumentProvider.ProblemAnnotation
-import scala.collection.breakOut
 import org.eclipse.jdt.core.compiler.IProblem
 import org.arguside.util.eclipse.SWTUtils
 import org.arguside.util.internal.eclipse.AnnotationUtils.RichModel
@@ -13,33 +13,64 @@ import org.eclipse.jdt.core.ICompilationUnit
 import org.arguside.util.ui.DisplayThread
 
 trait DecoratedInteractiveEditor extends ISourceViewerEditor {
+  import DecoratedInteractiveEditor._
 
   /** Return the annotation model associated with the current document. */
   private def annotationModel = Option(getDocumentProvider).map(_.getAnnotationModel(getEditorInput).asInstanceOf[IAnnotationModel])
 
-  private var previousAnnotations = List[Annotation]()
+  /** The problem annotations in the model, with the problem each one shows. */
+  private var previousAnnotations = List[(Annotation, IProblem)]()
 
   /**
    * Update annotations on the editor from a list of IProblems
+   *
+   * Only the difference with the annotations already shown is applied to the model. The model
+   * moves the annotations along with the edits of the document, so a problem that is reported
+   * again, at the position its annotation has now, keeps that annotation.
    */
   def updateErrorAnnotations(errors: List[IProblem], cu: ICompilationUnit): Unit = annotationModel foreach { model ⇒
-    val newAnnotations: Map[Annotation, Position] = (for (e <- errors) yield {
-      val annotation = new ProblemAnnotation(e, cu) // no compilation unit
-      val position = new Position(e.getSourceStart, e.getSourceEnd - e.getSourceStart + 1)
-      (annotation, position)
-    })(breakOut)
+    val (removedPositions, addedAnnotations) = model.withLock {
+      val shown = mutable.HashMap.empty[ProblemKey, List[(Annotation, IProblem)]]
+      for ((annotation, problem) <- previousAnnotations; position <- Option(model.getPosition(annotation)) if !position.isDeleted) {
+        val key = ProblemKey(problem, position)
+        shown(key) = (annotation, problem) :: shown.getOrElse(key, Nil)
+      }
 
-    model.replaceAnnotations(previousAnnotations, newAnnotations)
-    previousAnnotations = newAnnotations.keys.toList
+      val current = List.newBuilder[(Annotation, IProblem)]
+      val added = mutable.HashMap.empty[Annotation, Position]
+      for (e <- errors) {
+        val position = problemPosition(e)
+        val key = ProblemKey(e, position)
+        shown.get(key) match {
+          case Some(kept :: others) =>
+            current += kept
+            shown(key) = others
+          case _ =>
+            val annotation = new ProblemAnnotation(e, cu) // no compilation unit
+            added(annotation) = position
+            current += ((annotation, e))
+        }
+      }
+
+      val currentAnnotations = current.result()
+      val kept = currentAnnotations.map(_._1).toSet
+      val removed = previousAnnotations.map(_._1).filterNot(kept)
+      val removedPositions = removed.flatMap(a => Option(model.getPosition(a)))
+      if (removed.nonEmpty || added.nonEmpty)
+        model.replaceAnnotations(removed, added.toMap)
+      previousAnnotations = currentAnnotations
+      (removedPositions, added.values.toList)
+    }
 
     // This shouldn't be necessary in @dragos' opinion. But see #84 and
     // http://stackoverflow.com/questions/12507620/race-conditions-in-annotationmodel-error-annotations-lost-in-reconciler
     val presViewer = getViewer
-    if (presViewer.isInstanceOf[ITextViewerExtension2]) {
+    val changedPositions = removedPositions ++ addedAnnotations
+    if (changedPositions.isEmpty) ()
+    else if (presViewer.isInstanceOf[ITextViewerExtension2]) {
         // TODO: This should be replaced by a better modularization of semantic highlighting PositionsChange
-        val newPositions = newAnnotations.values
         def end (x:Position) = x.offset + x.length - 1
-        val taintedBounds : (Int, Int) = ((Int.MaxValue, 0) /: newPositions) {(acc, p1) => (Math.min(acc._1, p1.offset), Math.max(acc._2, end(p1)))}
+        val taintedBounds : (Int, Int) = ((Int.MaxValue, 0) /: changedPositions) {(acc, p1) => (Math.min(acc._1, p1.offset), Math.max(acc._2, end(p1)))}
         val taintedLength = (taintedBounds._2 - taintedBounds._1 +1)
 
         DisplayThread.asyncExec { presViewer.asInstanceOf[ITextViewerExtension2].invalidateTextPresentation(taintedBounds._1, taintedLength) }
@@ -49,3 +80,19 @@ trait DecoratedInteractiveEditor extends ISourceViewerEditor {
   }
 
 }
+
+private object DecoratedInteractiveEditor {
+
+  /** What identifies a shown problem. Line numbers are left out: they change with edits
+   *  above the problem, which don't move its annotation off the problem.
+   */
+  private case class ProblemKey(isError: Boolean, isWarning: Boolean, message: String, offset: Int, length: Int)
+
+  private object ProblemKey {
+    def apply(problem: IProblem, position: Position): ProblemKey =
+      ProblemKey(problem.isError, problem.isWarning, problem.getMessage, position.offset, position.length)
+  }
+
+  private def problemPosition(problem: IProblem): Position =
+    new Position(problem.getSourceStart, problem.getSourceEnd - problem.getSourceStart + 1)
+}
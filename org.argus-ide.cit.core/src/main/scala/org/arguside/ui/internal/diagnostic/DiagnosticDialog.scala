@@ -29,9 +29,11 @@ import org.arguside.core.internal.logging.LogManager
 import java.io.File
 import java.net.URI
 import org.arguside.ui.internal.actions.OpenExternalFile
+import org.arguside.core.internal.compiler.PresentationCompilerManager
 
 object Diagnostics {
-  val heapSize = Runtime.getRuntime.maxMemory / (1024 * 1024)
+  val MB = 1024L * 1024
+  val heapSize = Runtime.getRuntime.maxMemory / MB
   val recommendedHeap = 1024
   def insufficientHeap: Boolean = heapSize < recommendedHeap
 
@@ -262,6 +264,13 @@ class DiagnosticDialog(configurer: WeavingStateConfigurer, shell: Shell) extends
       link.addListener(SWT.Selection, linkListener)
     }
 
+    val compilersGroup = newGroup("Presentation compilers", control, new GridLayout(1, true))
+    val compilers = PresentationCompilerManager
+    new Label(compilersGroup, SWT.LEFT).setText(
+      s"Estimated heap use: ${compilers.estimatedTotal / MB}M of a budget of ${compilers.budget / MB}M (${compilers.evictions} compiler(s) evicted)")
+    for (compilers.CompilerStatus(name, footprint, idleMillis) <- compilers.status.reverse)
+      new Label(compilersGroup, SWT.LEFT).setText(s"  $name: ~${footprint / MB}M, idle for ${idleMillis / 1000}s")
+
     val otherGroup = newGroup("Additional", control, new GridLayout(1, true))
 
     val knownIssuesLink = new Link(otherGroup, SWT.NONE)
@@ -21,8 +21,11 @@ import org.eclipse.jface.action.Action
 import org.eclipse.jface.action.IContributionItem
 import org.eclipse.jface.action.MenuManager
 import org.eclipse.jface.action.Separator
+import org.eclipse.jface.text.DocumentEvent
 import org.eclipse.jface.text.IDocument
 import org.eclipse.jface.text.IDocumentExtension4
+import org.eclipse.jface.text.IDocumentListener
+import org.eclipse.jface.text.IRegion
 import org.eclipse.jface.text.ITextOperationTarget
 import org.eclipse.jface.text.ITextSelection
 import org.eclipse.jface.text.ITextViewerExtension
@@ -39,6 +42,8 @@ import org.eclipse.ui.texteditor.IAbstractTextEditorHelpContextIds
 import org.eclipse.ui.texteditor.ITextEditorActionConstants
 import org.eclipse.ui.texteditor.TextOperationAction
 import org.arguside.core.internal.ArgusPlugin
+import org.arguside.core.internal.decorators.markoccurrences.JawaOccurrencesFinder
+import org.arguside.core.internal.decorators.markoccurrences.Occurrences
 import org.arguside.core.internal.extensions.SemanticHighlightingParticipants
 import org.arguside.core.internal.jdt.model.JawaCompilationUnit
 import org.arguside.ui.internal.actions
@@ -55,6 +60,12 @@ import org.arguside.util.ui.DisplayThread
 class JawaSourceFileEditor extends CompilationUnitEditor with JawaCompilationUnitEditor { self =>
   import JawaSourceFileEditor._
 
+  private var occurrenceAnnotations: Set[Annotation] = Set()
+  private var occurrencesFinder: Option[JawaOccurrencesFinder] = None
+  private var occurrencesDocument: Option[IDocument] = None
+  private var occurencesFinderInstalled = false
+  private var runningJob: Job = _
+
   private val reconcilingListeners: ReconcilingListeners = new JawaSourceFileEditor.ReconcilingListeners
 
   /**
@@ -200,6 +211,89 @@ class JawaSourceFileEditor extends CompilationUnitEditor with JawaCompilationUni
   override def isMarkingOccurrences =
     argusPrefStore.getBoolean(EditorPreferencePage.P_ENABLE_MARK_OCCURRENCES)
 
+  private lazy val selectionListener = new ISelectionListener() {
+    override def selectionChanged(part: IWorkbenchPart, selection: ISelection) {
+      selection match {
+        case textSel: ITextSelection if part eq self => requireOccurrencesUpdate(textSel)
+        case _ =>
+      }
+    }
+  }
+
+  /** Tells the occurrences finder about the edits, so that it only rebuilds what they invalidate. */
+  private lazy val occurrencesDocumentListener = new IDocumentListener {
+    override def documentAboutToBeChanged(event: DocumentEvent): Unit = ()
+    override def documentChanged(event: DocumentEvent): Unit =
+      occurrencesFinder foreach (_.documentChanged(event.getOffset, event.getLength, Option(event.getText).map(_.length).getOrElse(0)))
+  }
+
+  override def installOccurrencesFinder(forceUpdate: Boolean) {
+    if (!occurencesFinderInstalled) {
+      occurrencesFinder = Option(getInteractiveCompilationUnit) map (new JawaOccurrencesFinder(_))
+      occurrencesDocument = Option(getSourceViewer) flatMap (viewer => Option(viewer.getDocument))
+      occurrencesDocument foreach (_.addDocumentListener(occurrencesDocumentListener))
+      getEditorSite.getPage.addPostSelectionListener(selectionListener)
+      occurencesFinderInstalled = true
+    }
+  }
+
+  override def uninstallOccurrencesFinder() {
+    occurencesFinderInstalled = false
+    getEditorSite.getPage.removePostSelectionListener(selectionListener)
+    occurrencesDocument foreach (_.removeDocumentListener(occurrencesDocumentListener))
+    occurrencesDocument = None
+    occurrencesFinder = None
+    removeOccurrenceAnnotations()
+  }
+
+  /** Clear the existing Mark Occurrences annotations.
+   */
+  def removeOccurrenceAnnotations() {
+    for (annotationModel <- getAnnotationModelOpt) annotationModel.withLock {
+      annotationModel.replaceAnnotations(occurrenceAnnotations, Map())
+      occurrenceAnnotations = Set()
+    }
+  }
+
+  private def requireOccurrencesUpdate(selection: ITextSelection) {
+    def spawnNewJob(document: IDocument, lastModified: Long) = {
+      runningJob = EclipseUtils.scheduleJob("Updating occurrence annotations", priority = Job.DECORATE) { monitor =>
+        val fileName = getInteractiveCompilationUnit.file.name
+        Utils.debugTimed("Time elapsed for \"updateOccurrences\" on source " + fileName) {
+          updateOccurrenceAnnotations(selection, document, lastModified)
+        }
+        Status.OK_STATUS
+      }
+    }
+
+    if (selection.getLength >= 0 && selection.getOffset >= 0) {
+      getDocumentProvider.getDocument(getEditorInput) match {
+        // don't spawn a new job when another one is already running
+        case document: IDocumentExtension4 if runningJob == null || runningJob.getState == Job.NONE =>
+          spawnNewJob(document, document.getModificationStamp)
+        case _ =>
+      }
+    }
+  }
+
+  private def updateOccurrenceAnnotations(selection: ITextSelection, document: IDocument, lastModified: Long) {
+    val annotations = getAnnotations(EditorUtils.textSelection2region(selection), document, lastModified)
+    for (annotationModel <- getAnnotationModelOpt) annotationModel.withLock {
+      annotationModel.replaceAnnotations(occurrenceAnnotations, annotations)
+      occurrenceAnnotations = annotations.keySet
+    }
+  }
+
+  private def getAnnotations(region: IRegion, document: IDocument, lastModified: Long): Map[Annotation, Position] = {
+    val occurrences = occurrencesFinder flatMap (_.findOccurrences(region, document, lastModified))
+    for {
+      Occurrences(name, locations) <- occurrences.toList
+      location <- locations
+      annotation = new Annotation(OCCURRENCE_ANNOTATION, false, "Occurrence of '" + name + "'")
+      position = new Position(location.getOffset, location.getLength)
+    } yield annotation -> position
+  }.toMap
+
   override def createSemanticHighlighter: TextPresentationHighlighter =
     TextPresentationEditorHighlighter(this, semanticHighlightingPreferences, addReconcilingListener _, removeReconcilingListener _)
 
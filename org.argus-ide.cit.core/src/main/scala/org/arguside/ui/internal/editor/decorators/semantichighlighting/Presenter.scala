@@ -2,6 +2,7 @@ package org.arguside.ui.internal.editor.decorators.semantichighlighting
 
 import org.eclipse.core.runtime.IProgressMonitor
 import org.eclipse.core.runtime.IStatus
+import org.eclipse.core.runtime.OperationCanceledException
 import org.eclipse.core.runtime.Status
 import org.eclipse.core.runtime.jobs.Job
 import org.eclipse.jface.text.DocumentEvent
@@ -10,12 +11,18 @@ import org.eclipse.jface.text.IDocumentListener
 import org.eclipse.jface.text.IPositionUpdater
 import org.eclipse.jface.text.IRegion
 import org.eclipse.jface.text.ITextInputListener
+import org.eclipse.jface.text.Region
+import org.arguside.core.internal.decorators.semantichighlighting.Damage
 import org.arguside.core.internal.decorators.semantichighlighting.Position
 import org.arguside.core.internal.decorators.semantichighlighting.PositionsTracker
 import org.arguside.core.internal.decorators.semantichighlighting.classifier.SymbolClassification
+import org.arguside.core.internal.decorators.semantichighlighting.classifier.SymbolInfo
 import org.arguside.logging.HasLogger
 import org.arguside.ui.editor.InteractiveCompilationUnitEditor
 import org.arguside.util.internal.ui.UIThread
+import org.sireum.jawa.io.SourceFile
+import org.sireum.jawa.sjc.parser.CompilationUnit
+import org.sireum.util.IList
 
 /** This class is responsible of coordinating the correct initialization of the different components
   * needed to perform semantic highlighting in an editor.
@@ -115,44 +122,86 @@ class Presenter(
       else performSemanticHighlighting(monitor)
     }
 
+    /** The unit parsed by the last run, reused while its source doesn't change. Runs of a job don't overlap. */
+    private var parsed: Option[(SourceFile, CompilationUnit)] = None
+
     private def performSemanticHighlighting(monitor: IProgressMonitor): IStatus = {
       Option(editor.getInteractiveCompilationUnit).flatMap(_.withSourceFile { (sourceFile, compiler) =>
         logger.debug("performing semantic highlighting on " + sourceFile.file.name)
-        positionsTracker.startComputingNewPositions()
-        val symbolInfos =
-          try new SymbolClassification(sourceFile, compiler, preferences.isUseSyntacticHintsEnabled()).classifySymbols(monitor)
-          catch {
+        val damage = positionsTracker.startComputingNewPositions()
+        val (documentLength, viewport) = visibleRegion()
+        /* the unit is parsed and classified on this job's thread, not on the compiler's, so
+         * a long classification never delays the requests of hovers and hyperlinks, and
+         * a newer run (`job.cancel()` on each edit) stops this one through `monitor`.
+         */
+        val classified =
+          try {
+            val classification = new SymbolClassification(sourceFile, compiler, preferences.isUseSyntacticHintsEnabled())
+            Some(parse(sourceFile, classification).fold(Classified(None, Nil, restIsPending = false)) { cu =>
+              val (regions, restIsPending) = regionsToClassify(cu, classification, damage, viewport)
+              Classified(regions, classification.classifySymbols(cu, regions, monitor), restIsPending)
+            })
+          } catch {
+            case _: OperationCanceledException => None
             case e: Exception =>
               logger.error("Error while performing semantic highlighting", e)
-              Nil
+              Some(Classified(None, Nil, restIsPending = false))
           }
-        val newPositions = Position.from(symbolInfos)
-        val positionsChange = positionsTracker.createPositionsChange(newPositions)
-        val damagedRegion = positionsChange.affectedRegion()
 
-        if (damagedRegion.getLength > 0) {
-          val sortedPositions = newPositions.sorted.toArray
+        classified.fold(Status.CANCEL_STATUS) { case Classified(regions, symbolInfos, restIsPending) =>
+          val newPositions = Position.from(symbolInfos).sorted
+          val positionsChange = positionsTracker.createPositionsChange(regions, newPositions)
+          val damagedRegion = positionsChange.affectedRegion()
+
           /* if the positions held by the `positionsTracker` have changed, then
            * it's useless to proceed because the `newPositions` have computed on a
            * not up-to-date compilation unit. Let the next reconciler run take care
            * of re-computing the correct positions with the up-to-date content.
+           *
+           * Even when nothing changed, the positions are swapped so that the edited
+           * regions are known to be classified.
            */
           if (!positionsTracker.isDirty) {
-            runPositionsUpdateInUiThread(sortedPositions, damagedRegion)
+            runPositionsUpdateInUiThread(regions, newPositions.toArray, damagedRegion, documentLength, restIsPending)
             Job.ASYNC_FINISH
           } else Status.OK_STATUS
         }
-        else Status.OK_STATUS
       }) getOrElse (Status.OK_STATUS)
     }
 
-    private def runPositionsUpdateInUiThread(newPositions: Array[Position], damagedRegion: IRegion): Unit =
+    private def parse(sourceFile: SourceFile, classification: SymbolClassification): Option[CompilationUnit] =
+      parsed match {
+        case Some((source, cu)) if source eq sourceFile => Some(cu)
+        case _ =>
+          val cu = classification.parse()
+          parsed = cu map ((sourceFile, _))
+          cu
+      }
+
+    /** The length of the document, and its visible region when it is big enough to be highlighted a
+      * region at a time.
+      */
+    private def visibleRegion(): (Int, Option[IRegion]) = {
+      var result: (Int, Option[IRegion]) = (0, None)
+      uiThread.syncExec {
+        for (sv <- Option(presentationHighlighter.sourceViewer); document <- Option(sv.getDocument)) {
+          val length = document.getLength
+          result = (length, if (length < ViewportFirstThreshold) None else presentationHighlighter.visibleRegion)
+        }
+      }
+      result
+    }
+
+    private def runPositionsUpdateInUiThread(regions: Option[IList[IRegion]], newPositions: Array[Position], damagedRegion: IRegion, documentLength: Int, restIsPending: Boolean): Unit =
       uiThread.asyncExec {
         try {
           setThread(uiThread.get)
           if (!positionsTracker.isDirty) {
-            positionsTracker.swapPositions(newPositions)
-            presentationHighlighter.updateTextPresentation(damagedRegion)
+            positionsTracker.swapPositions(regions, newPositions, documentLength, restIsPending)
+            if (damagedRegion.getLength > 0)
+              presentationHighlighter.updateTextPresentation(damagedRegion)
+            // the rest of the unit is classified by the next runs, a chunk at a time
+            if (positionsTracker.hasPendingRegions) schedule()
           }
         }
         catch { case e: Exception => () }
@@ -162,6 +211,56 @@ class Presenter(
 }
 
 private object Presenter {
+
+  /** Documents at least this long are highlighted a region at a time, the visible one first. */
+  private final val ViewportFirstThreshold = 64 * 1024
+
+  /** The number of characters classified by each run, once the visible region is highlighted. */
+  private final val ChunkSize = 32 * 1024
+
+  /** The regions classified by a run.
+    *
+    * @param regions       The classified regions, or `None` for the whole unit.
+    * @param restIsPending Whether the positions outside `regions` are all to be computed again.
+    */
+  private case class Classified(regions: Option[IList[IRegion]], symbolInfos: IList[SymbolInfo], restIsPending: Boolean)
+
+  /** The regions a run has to classify, and whether the positions of the rest of the unit are out of date.
+    *
+    * Edits confined to procedures only need these procedures to be classified again. Other edits may change
+    * the whole unit: the visible region, if any, is classified first, and the rest is left pending. When
+    * there are no edits, the next chunk of the pending regions, the nearest to the visible region, is
+    * classified, so scrolling moves the classification along.
+    */
+  private def regionsToClassify(cu: CompilationUnit, classification: SymbolClassification, damage: Damage, viewport: Option[IRegion]): (Option[IList[IRegion]], Boolean) =
+    damage.edited.map(classification.editedProcedures(cu, _)) match {
+      case Some(Some(procedures)) if procedures.nonEmpty || damage.pending.isEmpty =>
+        (Some(procedures), false)
+      case Some(Some(_)) =>
+        (Some(List(nextChunk(damage.pending, viewport))), false)
+      case _ =>
+        viewport match {
+          case Some(visible) => (Some(List(visible)), true)
+          case None => (None, false)
+        }
+    }
+
+  /** The part of the `pending` regions to classify first: the one nearest to the `viewport`. */
+  private def nextChunk(pending: IList[IRegion], viewport: Option[IRegion]): IRegion = {
+    val center = viewport.fold(0)(v => v.getOffset + v.getLength / 2)
+    def distance(r: IRegion): Int =
+      if (center < r.getOffset) r.getOffset - center
+      else if (center >= r.getOffset + r.getLength) center - (r.getOffset + r.getLength) + 1
+      else 0
+    val nearest = pending minBy distance
+    val end = nearest.getOffset + nearest.getLength
+    val start =
+      if (center <= nearest.getOffset) nearest.getOffset
+      else if (center >= end) math.max(nearest.getOffset, end - ChunkSize)
+      else math.max(nearest.getOffset, math.min(center - ChunkSize / 2, end - ChunkSize))
+    new Region(start, math.min(end, start + ChunkSize) - start)
+  }
+
   class DocumentSwapListener(presenter: Presenter, semanticHighlightingJob: Job) extends ITextInputListener with HasLogger {
     override def inputDocumentAboutToBeChanged(oldInput: IDocument, newInput: IDocument): Unit = {
       semanticHighlightingJob.cancel()
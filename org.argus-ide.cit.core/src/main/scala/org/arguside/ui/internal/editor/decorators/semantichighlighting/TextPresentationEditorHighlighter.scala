@@ -9,6 +9,7 @@ import org.eclipse.jdt.internal.ui.javaeditor.JavaSourceViewer
 import org.eclipse.jdt.internal.ui.text.java.IJavaReconcilingListener
 import org.eclipse.jface.text.IRegion
 import org.eclipse.jface.text.ITextPresentationListener
+import org.eclipse.jface.text.Region
 import org.eclipse.jface.text.TextPresentation
 import org.eclipse.jface.util.IPropertyChangeListener
 import org.eclipse.jface.util.PropertyChangeEvent
@@ -62,6 +63,18 @@ private class TextPresentationEditorHighlighter(editor: JawaCompilationUnitEdito
     }
   }
 
+  override def visibleRegion: Option[IRegion] =
+    for {
+      sv <- Option(sourceViewer)
+      document <- Option(sv.getDocument)
+      if sv.getTopIndex >= 0
+    } yield {
+      val top = math.max(0, sv.getTopIndex - VisibleLinesMargin)
+      val bottom = math.min(document.getNumberOfLines - 1, math.max(sv.getBottomIndex, sv.getTopIndex) + VisibleLinesMargin)
+      val start = document.getLineOffset(top)
+      new Region(start, document.getLineOffset(bottom) + document.getLineLength(bottom) - start)
+    }
+
   private def createRepairDescription(damage: IRegion): Option[TextPresentation] =
     EditorUtils.withDocument(sourceViewer) { document =>
       val configuration = editor.createJavaSourceViewerConfiguration()
@@ -72,6 +85,9 @@ private class TextPresentationEditorHighlighter(editor: JawaCompilationUnitEdito
 
 object TextPresentationEditorHighlighter {
 
+  /** The lines above and below the visible ones that are highlighted with them. */
+  private final val VisibleLinesMargin = 50
+
   def apply(editor: JawaCompilationUnitEditor, preferences: Preferences, addReconcilingListener: IJavaReconcilingListener => Unit, removeReconcilingListener: IJavaReconcilingListener => Unit): TextPresentationHighlighter =
     new TextPresentationEditorHighlighter(editor, preferences, addReconcilingListener, removeReconcilingListener)
 
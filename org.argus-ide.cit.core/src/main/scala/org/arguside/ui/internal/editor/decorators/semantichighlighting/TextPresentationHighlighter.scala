@@ -18,4 +18,10 @@ private[arguside] trait TextPresentationHighlighter {
 
   /** Triggers an update of the editor's `TextPresentation` based on the passed `damage` region.*/
   def updateTextPresentation(damage: IRegion): Unit
+
+  /** The region of the document shown in the editor, with some margin, or `None` if it is not shown.
+   *
+   *  @note Must be called from within the UI Thread.
+   */
+  def visibleRegion: Option[IRegion]
 }
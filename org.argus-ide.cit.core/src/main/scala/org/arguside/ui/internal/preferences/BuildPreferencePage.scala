@@ -0,0 +1,48 @@
+package org.arguside.ui.internal.preferences
+
+import org.eclipse.jface.preference.FieldEditorPreferencePage
+import org.eclipse.jface.preference.IntegerFieldEditor
+import org.eclipse.swt.SWT
+import org.eclipse.swt.layout.GridData
+import org.eclipse.swt.layout.GridLayout
+import org.eclipse.swt.widgets.Composite
+import org.eclipse.swt.widgets.Group
+import org.eclipse.ui.IWorkbench
+import org.eclipse.ui.IWorkbenchPreferencePage
+import org.arguside.core.IArgusPlugin
+import org.arguside.core.internal.builder.jawa.EclipseJawaBuildManager
+import org.arguside.util.internal.SettingConverterUtil
+
+class BuildPreferencePage extends FieldEditorPreferencePage(FieldEditorPreferencePage.GRID) with IWorkbenchPreferencePage {
+
+  setPreferenceStore(IArgusPlugin().getPreferenceStore())
+
+  // vars due to proper ordering of initialization
+  private var builderGroup: Group = null
+  private var builderInnerGroup: Composite = null
+
+  override def init(wb: IWorkbench): Unit = {}
+
+  override def createFieldEditors(): Unit = {
+    builderGroup = new Group(getFieldEditorParent, SWT.NONE)
+    builderGroup.setText("Jawa Builder")
+
+    builderGroup.setLayout(new GridLayout(1, true))
+    builderGroup.setLayoutData(new GridData(SWT.FILL, SWT.DEFAULT, true, false))
+
+    // workaround to limit width of text field
+    builderInnerGroup = new Composite(builderGroup, SWT.NONE)
+
+    val workersEditor = new IntegerFieldEditor(
+      SettingConverterUtil.convertNameToProperty(EclipseJawaBuildManager.ParallelWorkersSetting),
+      "Number of parallel compile workers", builderInnerGroup)
+    workersEditor.setValidRange(1, Integer.MAX_VALUE)
+    addField(workersEditor)
+  }
+
+  override def dispose(): Unit = {
+    if (builderGroup != null) builderGroup.dispose()
+    if (builderInnerGroup != null) builderInnerGroup.dispose()
+    super.dispose()
+  }
+}
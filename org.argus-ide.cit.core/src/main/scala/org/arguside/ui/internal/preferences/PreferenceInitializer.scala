@@ -3,12 +3,16 @@ package org.arguside.ui.internal.preferences
 import org.eclipse.core.runtime.preferences.AbstractPreferenceInitializer
 import org.eclipse.core.runtime.preferences.DefaultScope
 import org.arguside.ui.internal.diagnostic.StartupDiagnostics
+import org.arguside.util.internal.SettingConverterUtil
+import org.arguside.core.internal.builder.jawa.EclipseJawaBuildManager
 
 class PreferenceInitializer extends AbstractPreferenceInitializer {
 
   def initializeDefaultPreferences(): Unit = {
     val node = DefaultScope.INSTANCE.getNode("org.argus-ide.cit.core");
     node.putBoolean(StartupDiagnostics.ASK_DIAGNOSTICS, true);
+    node.putInt(SettingConverterUtil.convertNameToProperty(EclipseJawaBuildManager.ParallelWorkersSetting),
+      Runtime.getRuntime.availableProcessors)
   }
 
 }
@@ -23,6 +23,7 @@ class ResourcesPreferencePage extends FieldEditorPreferencePage(FieldEditorPrefe
   // vars due to proper ordering of initialization
   private var presCompGroup: Group = null
   private var presCompInnerGroup: Composite = null
+  private var presCompBudgetGroup: Composite = null
 
   // these ones are disposed by parent class
   private var closingEnabledEditor: BooleanFieldEditor = null
@@ -56,6 +57,12 @@ class ResourcesPreferencePage extends FieldEditorPreferencePage(FieldEditorPrefe
     }
     maxIdlenessLengthEditor.setValidRange(10, Integer.MAX_VALUE)
     addField(maxIdlenessLengthEditor)
+
+    presCompBudgetGroup = new Composite(presCompGroup, SWT.NONE)
+
+    val heapBudgetEditor = new IntegerFieldEditor(PRES_COMP_HEAP_BUDGET, "Heap budget for all compiler instances (MB)", presCompBudgetGroup)
+    heapBudgetEditor.setValidRange(16, Integer.MAX_VALUE)
+    addField(heapBudgetEditor)
   }
 
   override def initialize(): Unit = {
@@ -73,6 +80,7 @@ class ResourcesPreferencePage extends FieldEditorPreferencePage(FieldEditorPrefe
   override def dispose(): Unit = {
     if (presCompGroup != null) presCompGroup.dispose()
     if (presCompInnerGroup != null) presCompInnerGroup.dispose()
+    if (presCompBudgetGroup != null) presCompBudgetGroup.dispose()
     super.dispose()
   }
 
@@ -108,6 +116,11 @@ object ResourcesPreferences {
   val PRES_COMP_CLOSE_UNUSED = "org.argus-ide.cit.core.resources.presentationCompiler.closeUnused"
   val PRES_COMP_MAX_IDLENESS_LENGTH = "org.argus-ide.cit.core.resources.presentationCompiler.maxIdlenessLength"
 
+  /** The heap (in MB) the presentation compilers of all projects may use together. When they use
+   *  more, the least recently used ones are shut down. See `PresentationCompilerManager`.
+   */
+  val PRES_COMP_HEAP_BUDGET = "org.argus-ide.cit.core.resources.presentationCompiler.heapBudget"
+
   /**
    * Changes in preferences related to closing presentation compilers should be always taken into account together.
    * Unfortunately preferences are saved separately step by step and notification about the change of one of them is sent before new values
@@ -125,5 +138,7 @@ class ResourcesPreferencePageInitializer extends AbstractPreferenceInitializer {
     store.setDefault(PRES_COMP_CLOSE_UNUSED, true)
     store.setDefault(PRES_COMP_MAX_IDLENESS_LENGTH, 120)
     store.setDefault(PRES_COMP_PREFERENCES_CHANGE_MARKER, true)
+    // a quarter of the maximum heap
+    store.setDefault(PRES_COMP_HEAP_BUDGET, math.max(256L, Runtime.getRuntime.maxMemory / (4 * 1024 * 1024)).toInt)
   }
 }
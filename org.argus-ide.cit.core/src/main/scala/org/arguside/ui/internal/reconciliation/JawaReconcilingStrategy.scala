@@ -9,9 +9,24 @@ import org.eclipse.jface.text.reconciler.IReconcilingStrategyExtension
 import org.eclipse.jface.text.reconciler.DirtyRegion
 import org.eclipse.jdt.internal.ui.text.java.IJavaReconcilingListener
 import org.eclipse.jdt.core.ICompilationUnit
+import org.arguside.core.compiler.JawaCompilationProblem
 import org.arguside.ui.editor.InteractiveCompilationUnitEditor
 import org.arguside.util.Utils._
+import org.sireum.util._
 
+/** Reconciles the editor with the presentation compiler.
+ *
+ *  There is no incremental reconciliation: every edit of the code, inside a procedure
+ *  body or not, reloads the whole unit in the presentation compiler, which can't check a
+ *  single procedure. Only edits that leave the tokens of procedure bodies unchanged
+ *  (whitespace and comments) skip the compiler, since they can't change the problems:
+ *  the problems of the last round are kept, shifted by the edits. An edit overlapping a
+ *  problem, or a forced reconciliation, also goes through a full reload.
+ *
+ *  A round without the compiler doesn't reload the unit. It stays scheduled in the
+ *  presentation compiler, so the next request to the compiler (or the next full round)
+ *  flushes it, as before.
+ */
 class JawaReconcilingStrategy(icuEditor: InteractiveCompilationUnitEditor) extends IReconcilingStrategy with IReconcilingStrategyExtension with HasLogger {
 
   /**
@@ -29,22 +44,93 @@ class JawaReconcilingStrategy(icuEditor: InteractiveCompilationUnitEditor) exten
   private val listeningEditor: Option[IJavaReconcilingListener] =
     icuEditor.asInstanceOfOpt[IJavaReconcilingListener]
 
-  override def setDocument(doc: IDocument) {}
+  /** Guards the state below, which is updated by document events in the UI thread,
+   *  and read by the reconciler thread.
+   */
+  private val lock = new Object
+
+  @volatile private var document: IDocument = _
+
+  // @GuardedBy("lock")
+  /** The procedures of the document, or `None` if the next round has to be a full one. */
+  private var procedures: Option[ProcedureIndex] = None
+  // @GuardedBy("lock")
+  /** Incremented before and after each document change. */
+  private var generation = 0L
+  // @GuardedBy("lock")
+  private var edited = false
+  // @GuardedBy("lock")
+  /** The problems reported in the last round, positioned in the current document. */
+  private var problems: IList[JawaCompilationProblem] = Nil
+  // @GuardedBy("lock")
+  /** Set when an edit overlapped a problem, which can then not be shifted. */
+  private var problemsLost = false
+
+  private object documentListener extends IDocumentListener {
+    override def documentAboutToBeChanged(event: DocumentEvent): Unit = lock.synchronized {
+      generation += 1
+    }
+
+    override def documentChanged(event: DocumentEvent): Unit = lock.synchronized {
+      generation += 1
+      edited = true
+      val inserted = Option(event.getText).fold(0)(_.length)
+      val offset = event.getOffset
+      val removed = event.getLength
+      procedures = procedures filter (_.edit(offset, removed, inserted).isDefined)
+
+      val delta = inserted - removed
+      problems = problems flatMap {
+        case p if p.end < offset => Some(p)
+        case p if p.start >= offset + removed => Some(p.copy(start = p.start + delta, end = p.end + delta))
+        case _ =>
+          problemsLost = true
+          None
+      }
+    }
+  }
+
+  override def setDocument(doc: IDocument) {
+    Option(document).foreach(_.removeDocumentListener(documentListener))
+    document = doc
+    lock.synchronized { procedures = None }
+    Option(doc).foreach(_.addDocumentListener(documentListener))
+  }
 
   override def setProgressMonitor(pMonitor: IProgressMonitor) {}
 
   override def reconcile(dirtyRegion: DirtyRegion, subRegion: IRegion) {
+    // never called: the reconciler isn't incremental, see `reconcile(IRegion)`
     logger.debug("Incremental reconciliation not implemented.")
   }
 
   override def reconcile(partition: IRegion) {
+    if (!reconcileLayoutEdits())
+      reconcileFully()
+  }
+
+  private def reconcileFully() {
+    val (startGeneration, text) = lock.synchronized {
+      edited = false
+      problemsLost = false
+      (generation, Option(document).map(_.get))
+    }
+    // indexing is done outside the lock, the edits made meanwhile are detected below
+    val index = text.map(ProcedureIndex(_))
+
     listeningEditor.foreach(_.aboutToBeReconciled())
     val errors = icUnit.forceReconcile()
+    updateErrorAnnotations(errors)
 
-    // Some features, such as quick fixes, are dependent upon getting an ICompilationUnit there
-    val cu: Option[ICompilationUnit] = icUnit.asInstanceOfOpt[ICompilationUnit]
-    // we only update the edited compilation unit
-    icuEditor.updateErrorAnnotations(errors, cu.orNull)
+    lock.synchronized {
+      if (generation == startGeneration) {
+        procedures = index
+        problems = errors
+      } else {
+        procedures = None
+        problems = Nil
+      }
+    }
 
     // reconciled expects a jdt.core.dom.CompilationUnitEditor as first argument,
     // which JawaSourceFileEditor and other ICU Editors aren't
@@ -52,6 +138,42 @@ class JawaReconcilingStrategy(icuEditor: InteractiveCompilationUnitEditor) exten
     listeningEditor.foreach(_.reconciled(null, false, new NullProgressMonitor()))
   }
 
+  /** Reconcile without the presentation compiler, if the edits since the last round only
+   *  changed whitespace and comments inside procedure bodies: the problems are then the
+   *  ones of the last round, shifted by the edits. Nothing is checked here, any other
+   *  edit needs a full round.
+   *
+   *  @return false if a full round is needed.
+   */
+  private def reconcileLayoutEdits(): Boolean = {
+    val doc = document
+    val errors = lock.synchronized {
+      procedures match {
+        case Some(index) if edited && doc != null && !problemsLost =>
+          val text = doc.get
+          val dirty = index.dirty
+          // only the edited bodies are lexed
+          if (dirty.forall(index.isUnchanged(text, _))) {
+            index.markClean()
+            edited = false
+            logger.debug(s"Only layout edits in ${dirty.size} procedure(s) of ${icUnit.file.name}, kept the problems of the last round")
+            Some(problems map (p => p.copy(lineNumber = doc.getLineOfOffset(p.start) + 1)))
+          } else None
+        case _ => None
+      }
+    }
+
+    errors foreach updateErrorAnnotations
+    errors.isDefined
+  }
+
+  private def updateErrorAnnotations(errors: IList[JawaCompilationProblem]) {
+    // Some features, such as quick fixes, are dependent upon getting an ICompilationUnit there
+    val cu: Option[ICompilationUnit] = icUnit.asInstanceOfOpt[ICompilationUnit]
+    // we only update the edited compilation unit
+    icuEditor.updateErrorAnnotations(errors, cu.orNull)
+  }
+
   override def initialReconcile() {
     // an askReload there adds the scUnit to the list of managed CUs
     icUnit.initialReconcile()
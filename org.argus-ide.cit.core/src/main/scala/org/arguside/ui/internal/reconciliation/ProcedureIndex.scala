@@ -0,0 +1,137 @@
+package org.arguside.ui.internal.reconciliation
+
+import scala.collection.mutable.ArrayBuffer
+import org.sireum.jawa.DefaultReporter
+import org.sireum.jawa.sjc.lexer.JawaLexer
+import org.sireum.jawa.sjc.lexer.Tokens._
+import org.sireum.util._
+
+/** The procedures of a Jawa source, kept in sync with the edits of its document.
+ *
+ *  An edit that falls strictly inside the braces of a procedure body only marks that
+ *  procedure as dirty, and shifts the procedures after it. Any other edit may change
+ *  the declarations of the source, and invalidates the index.
+ *
+ *  Each procedure remembers a fingerprint of the tokens of its body, whitespace and
+ *  comments aside, so that edits that don't change them can be told apart.
+ *
+ *  @note This class is not thread-safe.
+ */
+private[reconciliation] class ProcedureIndex private (procedures: ArrayBuffer[ProcedureIndex.Procedure]) {
+  import ProcedureIndex._
+
+  /** Apply an edit that replaced `removed` characters at `offset` by `inserted` ones.
+   *
+   *  @return the procedure whose body contains the edit, or `None` if the edit is not
+   *          confined to a body (in which case this index should be discarded).
+   */
+  def edit(offset: Int, removed: Int, inserted: Int): Option[Procedure] = {
+    val i = enclosing(offset)
+    if (i < 0 || offset + removed >= procedures(i).end) None
+    else {
+      val p = procedures(i)
+      val delta = inserted - removed
+      p.end += delta
+      p.dirty = true
+      var j = i + 1
+      while (j < procedures.length) {
+        procedures(j).shift(delta)
+        j += 1
+      }
+      Some(p)
+    }
+  }
+
+  /** The procedures edited since the last call to `markClean`. */
+  def dirty: IList[Procedure] = procedures.filter(_.dirty).toList
+
+  def markClean(): Unit = procedures.foreach(_.dirty = false)
+
+  /** Does the body of `p` in `text` have the same tokens, whitespace and comments aside,
+   *  as when it was indexed? Only the body is lexed.
+   */
+  def isUnchanged(text: String, p: Procedure): Boolean =
+    p.end <= text.length && text.charAt(p.bodyStart) == '{' &&
+      fingerprint(JawaLexer.rawTokenise(Left(text.substring(p.bodyStart, p.end)), new DefaultReporter)
+        .filter(t => t.tokenType != WS && !t.tokenType.isComment && t.text.nonEmpty)
+        .map(_.text)) == p.fingerprint
+
+  /** The index of the procedure whose body strictly contains `offset`, or -1. */
+  private def enclosing(offset: Int): Int = {
+    var lo = 0
+    var hi = procedures.length - 1
+    var found = -1
+    while (lo <= hi) {
+      val mid = (lo + hi) >>> 1
+      if (procedures(mid).bodyStart < offset) {
+        found = mid
+        lo = mid + 1
+      } else hi = mid - 1
+    }
+    if (found >= 0 && offset < procedures(found).end) found else -1
+  }
+}
+
+private[reconciliation] object ProcedureIndex {
+
+  /** A procedure declaration.
+   *
+   *  @param start     offset of the `procedure` keyword
+   *  @param bodyStart offset of the opening brace of the body
+   *  @param end       offset just after the closing brace of the body
+   *  @param fingerprint of the tokens of the body, see `ProcedureIndex.fingerprint`
+   */
+  final class Procedure(var start: Int, var bodyStart: Int, var end: Int, val fingerprint: Long) {
+    var dirty = false
+
+    def shift(delta: Int): Unit = {
+      start += delta
+      bodyStart += delta
+      end += delta
+    }
+
+    def contains(offset: Int): Boolean = bodyStart < offset && offset < end
+  }
+
+  private final val ProcedureKeyword = "procedure"
+
+  /** A hash of the texts of a sequence of tokens. */
+  private def fingerprint(tokens: TraversableOnce[String]): Long =
+    tokens.foldLeft(1L)(addToFingerprint)
+
+  private def addToFingerprint(hash: Long, text: String): Long = hash * 1000003L + text.hashCode
+
+  /** Index the procedures of `text` with a single pass of the lexer. */
+  def apply(text: String): ProcedureIndex = {
+    val procedures = new ArrayBuffer[Procedure]
+    var headerStart = -1
+    var bodyStart = -1
+    var depth = 0
+    var hash = 1L
+
+    for {
+      token <- JawaLexer.rawTokenise(Left(text), new DefaultReporter)
+      if token.tokenType != WS && !token.tokenType.isComment
+    } {
+      if (depth > 0) {
+        if (token.text.nonEmpty) hash = addToFingerprint(hash, token.text)
+        token.tokenType match {
+          case LBRACE => depth += 1
+          case RBRACE =>
+            depth -= 1
+            if (depth == 0) {
+              procedures += new Procedure(headerStart, bodyStart, token.offset + token.text.length, hash)
+              headerStart = -1
+            }
+          case _ =>
+        }
+      } else if (token.text == ProcedureKeyword) headerStart = token.offset
+      else if (headerStart >= 0 && token.tokenType == LBRACE) {
+        bodyStart = token.offset
+        depth = 1
+        hash = addToFingerprint(1L, token.text)
+      }
+    }
+    new ProcedureIndex(procedures)
+  }
+}
@@ -85,17 +85,18 @@ object FileUtils {
    *  exception.
    */
   def createFile(file: IFile): Try[Unit] = Try {
-    def createParentFolders(c: IContainer): Unit = c match {
-      case f: IFolder if !f.exists() =>
-        createParentFolders(f.getParent())
-        f.create(/* force */ true, /* local */ true, null)
-      case _ =>
-    }
-
     createParentFolders(file.getParent())
     file.create(new ByteArrayInputStream(Array()), /* force */ true, null)
   }
 
+  /** Creates the folder `c`, and all of its parent folders, if they don't exist. */
+  def createParentFolders(c: IContainer): Unit = c match {
+    case f: IFolder if !f.exists() =>
+      createParentFolders(f.getParent())
+      f.create(/* force */ true, /* local */ true, null)
+    case _ =>
+  }
+
   /**
    * Find a File that matches the given absolute location on the file system. Since a given
    * file might "mounted" under multiple locations in the Eclipse file system, the `prefix`
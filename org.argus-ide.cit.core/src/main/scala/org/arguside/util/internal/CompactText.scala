@@ -0,0 +1,94 @@
+package org.arguside.util.internal
+
+import java.nio.charset.StandardCharsets
+
+/** Immutable text, stored as one byte per character when it is all Latin-1 (decompiled
+ *  sources nearly always are), and as characters otherwise.
+ *
+ *  The line table is computed the first time a line is asked for. Line breaks are the ones
+ *  of compiler source files: LF, FF, and CR when not followed by LF. Lines are 0-based.
+ *
+ *  @note This class is thread-safe.
+ */
+final class CompactText private (latin1: Array[Byte], utf16: Array[Char], val isAscii: Boolean) extends CharSequence {
+
+  override def length: Int =
+    if (latin1 ne null) latin1.length else utf16.length
+
+  override def charAt(index: Int): Char =
+    if (latin1 ne null) (latin1(index) & 0xff).toChar else utf16(index)
+
+  override def subSequence(start: Int, end: Int): CharSequence =
+    new String(toCharArray, start, end - start)
+
+  override def toString: String =
+    if (latin1 ne null) new String(latin1, StandardCharsets.ISO_8859_1) else new String(utf16)
+
+  /** A fresh copy of the characters. */
+  def toCharArray: Array[Char] =
+    if (latin1 ne null) {
+      val chars = new Array[Char](latin1.length)
+      var i = 0
+      while (i < chars.length) {
+        chars(i) = (latin1(i) & 0xff).toChar
+        i += 1
+      }
+      chars
+    } else utf16.clone()
+
+  /** The same as `ContentHash` of the characters, without copying them when they are ASCII. */
+  lazy val contentHash: Long =
+    if (isAscii) ContentHash(latin1) else ContentHash(toString)
+
+  /** The offsets where each line starts. */
+  private lazy val lineStarts: Array[Int] = {
+    val starts = Array.newBuilder[Int]
+    starts += 0
+    val n = length
+    var i = 0
+    while (i < n) {
+      val c = charAt(i)
+      if (c == '\n' || c == '\f' || (c == '\r' && (i + 1 == n || charAt(i + 1) != '\n')))
+        starts += i + 1
+      i += 1
+    }
+    starts.result()
+  }
+
+  def lineToOffset(line: Int): Int = lineStarts(line)
+
+  def offsetToLine(offset: Int): Int = {
+    if (offset < 0 || offset > length) throw new IndexOutOfBoundsException(offset.toString)
+    val starts = lineStarts
+    var lo = 0
+    var hi = starts.length - 1
+    while (lo < hi) {
+      val mid = (lo + hi + 1) >>> 1
+      if (starts(mid) <= offset) lo = mid
+      else hi = mid - 1
+    }
+    lo
+  }
+}
+
+object CompactText {
+
+  def apply(chars: Array[Char]): CompactText = {
+    var ascii = true
+    var i = 0
+    while (i < chars.length && chars(i) <= 0xff) {
+      if (chars(i) > 0x7f) ascii = false
+      i += 1
+    }
+    if (i < chars.length) new CompactText(null, chars.clone(), isAscii = false)
+    else {
+      val bytes = new Array[Byte](chars.length)
+      var j = 0
+      while (j < bytes.length) {
+        bytes(j) = chars(j).toByte
+        j += 1
+      }
+      new CompactText(bytes, null, ascii)
+    }
+  }
+}
@@ -0,0 +1,63 @@
+package org.arguside.util.internal
+
+import java.nio.charset.StandardCharsets
+import java.security.MessageDigest
+
+/** Stable 64-bit content hashes.
+ *
+ *  The hashes are the first 8 bytes of a SHA-1 digest, so they are stable across
+ *  sessions and can be persisted (unlike `hashCode`).
+ */
+object ContentHash {
+
+  /** Hash of the given bytes. */
+  def apply(bytes: Array[Byte]): Long =
+    new Hasher().update(bytes).result
+
+  /** Hash of the given string, encoded as UTF-8. */
+  def apply(text: String): Long =
+    apply(text.getBytes(StandardCharsets.UTF_8))
+
+  /** Hash of the given characters, encoded as UTF-8. */
+  def apply(chars: Array[Char]): Long =
+    apply(new String(chars))
+
+  /** Accumulates content piece by piece. Not thread-safe. */
+  class Hasher {
+    private val digest = MessageDigest.getInstance("SHA-1")
+
+    def update(bytes: Array[Byte]): Hasher = {
+      digest.update(bytes)
+      this
+    }
+
+    /** Adds `text` followed by a separator, so that `update("ab").update("c")`
+     *  and `update("a").update("bc")` produce different hashes.
+     */
+    def update(text: String): Hasher = {
+      digest.update(text.getBytes(StandardCharsets.UTF_8))
+      digest.update(0: Byte)
+      this
+    }
+
+    def update(value: Long): Hasher = {
+      var i = 0
+      while (i < 8) {
+        digest.update((value >>> (i * 8)).toByte)
+        i += 1
+      }
+      this
+    }
+
+    def result: Long = {
+      val bytes = digest.digest()
+      var h = 0L
+      var i = 0
+      while (i < 8) {
+        h = (h << 8) | (bytes(i) & 0xff)
+        i += 1
+      }
+      h
+    }
+  }
+}